@@ -14,6 +14,7 @@ package io.mashona.logwriting.perftest;
 
 import io.mashona.logwriting.AppendOnlyLog;
 import io.mashona.logwriting.AppendOnlyLogImpl;
+import io.mashona.logwriting.AppendOnlyLogImplConfig;
 import jdk.nio.mapmode.ExtendedMapMode;
 import org.openjdk.jmh.annotations.*;
 import org.openjdk.jmh.runner.Runner;
@@ -66,6 +67,10 @@ public class AppendOnlyLogBenchmark {
     @Param({"false", "true"})
     public boolean blockPadding;
 
+    // compare space reservation under the log's lock with the atomic (CAS) reservation. Best run with '-t N'.
+    @Param({"false", "true"})
+    public boolean lockFreeReservation;
+
     private byte[] data;
 
     @State(Scope.Thread)
@@ -96,7 +101,8 @@ public class AppendOnlyLogBenchmark {
 
         mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, length);
 
-        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, length, blockPadding, false);
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, length,
+                AppendOnlyLogImplConfig.builder().blockPadding(blockPadding).lockFreeReservation(lockFreeReservation).build());
 
         Arrays.fill(data, (byte)-1);
     }
@@ -0,0 +1,131 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting.perftest;
+
+import io.mashona.logwriting.AppendOnlyLog;
+import io.mashona.logwriting.AppendOnlyLogImpl;
+import io.mashona.logwriting.AppendOnlyLogImplConfig;
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmarking code for opening (i.e. recovering) an existing AppendOnlyLog.
+ */
+@State(Scope.Benchmark)
+public class AppendOnlyLogRecoveryBenchmark {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "AppendOnlyLogRecoveryBenchmark");
+
+    private static final int length = 1024 * 1024 * 512;
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    @Param({"1801"})
+    public int dataSize;
+
+    // the percentage of the log's capacity that is written, none of it checkpointed, before it is reopened.
+    @Param({"10", "50", "100"})
+    public int fillPercentage;
+
+    @Param({"false", "true"})
+    public boolean parallelRecovery;
+
+    private AppendOnlyLogImplConfig config;
+
+    private void deleteFile() {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+
+        deleteFile();
+
+        byte[] data = new byte[dataSize];
+        Arrays.fill(data, (byte)-1);
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, length);
+
+        config = AppendOnlyLogImplConfig.builder().linearOrdering(true).parallelRecovery(parallelRecovery).build();
+
+        AppendOnlyLog appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, length, config);
+        long fillLength = (long) length * fillPercentage / 100;
+        while (length - appendOnlyLog.remaining() < fillLength && appendOnlyLog.tryPut(data)) {
+            // keep writing
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        deleteFile();
+    }
+
+    @Benchmark()
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AppendOnlyLog openLog() {
+
+        // recovery walks the records without changing them, so the same log can be opened repeatedly.
+        return new AppendOnlyLogImpl(mappedByteBuffer, 0, length, config);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(AppendOnlyLogRecoveryBenchmark.class.getSimpleName())
+                .forks(0) // use 0 for debugging in-process
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting.perftest;
+
+import io.mashona.logwriting.AppendOnlyLog;
+import io.mashona.logwriting.AppendOnlyLogImpl;
+import io.mashona.logwriting.AppendOnlyLogImplConfig;
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.EnumSet;
+import java.util.Iterator;
+
+/**
+ * JMH benchmarking code for reading an AppendOnlyLog whilst it is concurrently written.
+ */
+@State(Scope.Group)
+public class AppendOnlyLogScanBenchmark {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "AppendOnlyLogScanBenchmark");
+
+    private static final int length = 1024 * 1024 * 64;
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+    private AppendOnlyLog appendOnlyLog;
+
+    @Param({"1801"})
+    public int dataSize;
+
+    @Param({"false", "true"})
+    public boolean linearOrdering;
+
+    private byte[] data;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class WriteCounters {
+        public long write;
+        public long reset;
+    }
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class ScanCounters {
+        public long record;
+        public long abandoned;
+    }
+
+    private void deleteFile() {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void setUp() throws IOException {
+
+        deleteFile();
+
+        data = new byte[dataSize];
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, length);
+
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, length,
+                new AppendOnlyLogImplConfig(false, linearOrdering, false, false));
+
+        Arrays.fill(data, (byte)-1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws Exception {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        deleteFile();
+    }
+
+    @Benchmark()
+    @Group("appendAndScan")
+    @GroupThreads(3)
+    @BenchmarkMode(Mode.Throughput)
+    public void append(WriteCounters counters) {
+
+        if(appendOnlyLog.tryPut(data)) {
+            counters.write++;
+        } else {
+            synchronized (this) {
+                if(!appendOnlyLog.canAccept(data.length)) {
+                    appendOnlyLog.clear();
+                    counters.reset++;
+                }
+            }
+        }
+    }
+
+    @Benchmark()
+    @Group("appendAndScan")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    public long scan(ScanCounters counters) {
+
+        long sum = 0;
+        try {
+            Iterator<ByteBuffer> iterator = appendOnlyLog.iterator();
+            while (iterator.hasNext()) {
+                ByteBuffer record = iterator.next();
+                sum += record.remaining();
+                counters.record++;
+            }
+        } catch (ConcurrentModificationException e) {
+            // a writer cleared the log, so start over
+            counters.abandoned++;
+        }
+        return sum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(AppendOnlyLogScanBenchmark.class.getSimpleName())
+                .forks(0) // use 0 for debugging in-process
+                .build();
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting.perftest;
+
+import io.mashona.logwriting.ChecksumUtil;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * JMH benchmarking code for checksumming a record payload whilst copying it into the log.
+ * <p>
+ * Compares the original approach, a separate checksum pass over the source followed by the copy,
+ * with the single fused pass in ChecksumUtil. The destination is ordinary direct memory rather than pmem,
+ * so that the cost of flushing doesn't drown out the difference.
+ */
+@State(Scope.Thread)
+public class ChecksumBenchmark {
+
+    @Param({"64", "1024", "16384", "65536", "1048576"})
+    public int dataSize;
+
+    private ByteBuffer src;
+    private ByteBuffer dst;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+
+        byte[] data = new byte[dataSize];
+        Arrays.fill(data, (byte)-1);
+        src = ByteBuffer.wrap(data);
+
+        dst = ByteBuffer.allocateDirect(dataSize + 8);
+    }
+
+    @Benchmark()
+    @BenchmarkMode(Mode.Throughput)
+    public int twoPass() {
+
+        ByteBuffer srcSlice = src.slice();
+
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(srcSlice);
+        int checksum = (int) crc32c.getValue();
+        srcSlice.rewind();
+
+        dst.clear();
+        dst.putInt(dataSize);
+        dst.putInt(checksum);
+        dst.put(srcSlice);
+
+        return checksum;
+    }
+
+    @Benchmark()
+    @BenchmarkMode(Mode.Throughput)
+    public int fused() {
+
+        ByteBuffer srcSlice = src.slice();
+
+        int checksum = ChecksumUtil.copyWithChecksum(srcSlice, dst, 8);
+
+        dst.clear();
+        dst.putInt(dataSize);
+        dst.putInt(checksum);
+
+        return checksum;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options opt = new OptionsBuilder()
+                .include(ChecksumBenchmark.class.getSimpleName())
+                .forks(0) // use 0 for debugging in-process
+                .build();
+        new Runner(opt).run();
+    }
+}
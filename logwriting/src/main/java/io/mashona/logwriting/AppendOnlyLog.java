@@ -15,6 +15,8 @@ package io.mashona.logwriting;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public interface AppendOnlyLog extends Iterable<ByteBuffer> {
 
@@ -177,10 +179,63 @@ public interface AppendOnlyLog extends Iterable<ByteBuffer> {
      */
     boolean tryPut(ByteBuffer src);
 
+    /**
+     * This method transfers the bytes remaining in each of the given source buffers into this log, as one record per buffer,
+     * failing with an Exception if insufficient space exists for all of them.
+     * <p>
+     * Space for the whole batch is claimed at once and the records are persisted together,
+     * which is cheaper than writing them individually. Records are written in the order given.
+     * <p>
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed)
+     * and the position of each src has been advanced by the number of bytes it contained.
+     *
+     * <p>
+     * The default implementation puts each record in turn, so is no cheaper than doing so directly,
+     * and if it fails, leaves the records before the one that didn't fit written.
+     *
+     * @param srcs The source buffers from which bytes are to be read. Each must have at least one byte remaining.
+     * @throws BufferOverflowException If there is insufficient space in this log for the entire batch
+     * @see #tryPutAll(ByteBuffer[])
+     */
+    default void putAll(ByteBuffer[] srcs) {
+        for (ByteBuffer src : srcs) {
+            put(src);
+        }
+    }
+
+    /**
+     * This method transfers the bytes remaining in each of the given source buffers into this log, as one record per buffer,
+     * returning false if insufficient space exists for all of them.
+     * <p>
+     * Space for the whole batch is claimed at once and the records are persisted together,
+     * which is cheaper than writing them individually. Records are written in the order given.
+     * <p>
+     * After this method returns true, the data is guaranteed persisted (i.e. flushed) and the srcs have been read.
+     * <p>
+     * After this method returns false, the log is unwritten and the srcs are unread.
+     *
+     * <p>
+     * The default implementation tries to put each record in turn, so is no cheaper than doing so directly,
+     * and if it returns false, leaves the records before the one that didn't fit written.
+     *
+     * @param srcs The source buffers from which bytes are to be read. Each must have at least one byte remaining.
+     * @return true after a successful write, false if insufficient space remains to accommodate the whole batch.
+     * @see #putAll(ByteBuffer[])
+     */
+    default boolean tryPutAll(ByteBuffer[] srcs) {
+        for (ByteBuffer src : srcs) {
+            if (!tryPut(src)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     /**
      * Clears this log.
      * <p>
-     * This operation overwrites the entire log capacity, so may be slow on large logs.
+     * Depending on the implementation and its configuration,
+     * this operation may overwrite the entire log capacity, so may be slow on large logs.
      */
     void clear();
 
@@ -231,4 +286,24 @@ public interface AppendOnlyLog extends Iterable<ByteBuffer> {
      * @return An {@code Iterator} over the entries in this log
      */
     Iterator<ByteBuffer> copyingIterator();
+
+    /**
+     * Returns a sequential stream over the entries in this log, using non-copying views onto the log data,
+     * as for {@link #iterator()}.
+     *
+     * @return A {@code Stream} over the entries in this log
+     */
+    default Stream<ByteBuffer> stream() {
+        return StreamSupport.stream(spliterator(), false);
+    }
+
+    /**
+     * Returns a possibly parallel stream over the entries in this log, using non-copying views onto the log data,
+     * as for {@link #iterator()}. Implementations may validate the entries in parallel.
+     *
+     * @return A possibly parallel {@code Stream} over the entries in this log
+     */
+    default Stream<ByteBuffer> parallelStream() {
+        return StreamSupport.stream(spliterator(), true);
+    }
 }
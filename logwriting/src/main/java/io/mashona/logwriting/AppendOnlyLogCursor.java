@@ -0,0 +1,63 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import java.nio.ByteBuffer;
+import java.util.ConcurrentModificationException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A reader's position in an {@link AppendOnlyLogImpl}, which follows the tail of the log as records are appended,
+ * each call returning the records written since the previous one.
+ * <p>
+ * Unlike repeatedly creating Iterators, a cursor doesn't revisit records it has already returned,
+ * and can wait for new records to arrive without polling.
+ * <p>
+ * As with Iterators, the ByteBuffers returned are read-only views onto the log, the content of which is undefined
+ * once the log has been cleared. A cursor fails with a ConcurrentModificationException once the log is cleared or reset.
+ * <p>
+ * Instances are thread-safe, but intended for use by a single reader at a time.
+ *
+ * @see AppendOnlyLogImpl#cursor()
+ */
+public interface AppendOnlyLogCursor extends AutoCloseable {
+
+    /**
+     * Returns the records appended since those last returned, without waiting for more.
+     *
+     * @param maxRecords The maximum number of records to return. Must be greater than zero.
+     * @return The records, in log order, which may be none.
+     * @throws ConcurrentModificationException if the log has been cleared or reset since the cursor was created.
+     */
+    List<ByteBuffer> poll(int maxRecords);
+
+    /**
+     * Returns the records appended since those last returned, waiting for at least one to be written if necessary.
+     *
+     * @param maxRecords The maximum number of records to return. Must be greater than zero.
+     * @param timeout    The maximum time to wait.
+     * @param unit       The unit of the timeout argument.
+     * @return The records, in log order, which will be none only if the timeout elapses or the cursor is closed.
+     * @throws InterruptedException if the thread is interrupted whilst waiting.
+     * @throws ConcurrentModificationException if the log has been cleared or reset since the cursor was created.
+     */
+    List<ByteBuffer> take(int maxRecords, long timeout, TimeUnit unit) throws InterruptedException;
+
+    /**
+     * Closes the cursor, waking any thread waiting in {@link #take(int, long, TimeUnit)}.
+     * Subsequent calls return no records.
+     */
+    @Override
+    void close();
+}
@@ -18,12 +18,25 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.stream.IntStream;
 import java.util.zip.CRC32C;
 
 /**
@@ -38,10 +51,27 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
 
     // change this if changing the data layout!
     private static final byte[] MAGIC_HEADER = new String("TRBAOL01").getBytes(StandardCharsets.UTF_8);
+    // records validated by commit words rather than checksums. The log header gains generation and base sequence fields.
+    private static final byte[] COMMIT_WORD_MAGIC_HEADER = new String("TRBAOL02").getBytes(StandardCharsets.UTF_8);
+    // records validated by checksums, as in the original format, but the log header gains a base sequence field.
+    // Used only for linear ordering logs, which number their records. Others keep the original layout, which earlier versions can read.
+    private static final byte[] SEQUENCED_MAGIC_HEADER = new String("TRBAOL03").getBytes(StandardCharsets.UTF_8);
+    // left in place of the magic whilst the log is zeroed, so that if we crash, the base sequence isn't lost with the rest.
+    private static final byte[] CLEARING_MAGIC_HEADER = new String("TRBAOLCL").getBytes(StandardCharsets.UTF_8);
 
     private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
     private static final int BLOCK_SIZE = 256;
 
+    // parallel recovery validates this many records at a time, bounding the memory it uses to track them.
+    private static final int RECOVERY_BATCH_SIZE = 1 << 14;
+
+    // the sequence index holds the location of every this-many-th record, so a lookup scans at most this many more.
+    private static final int SEQUENCE_INDEX_INTERVAL = 64;
+
+    // spliterators won't split off a range smaller than this, as the records in it would be too few to be worth it.
+    private static final int MIN_SPLIT_BYTES = BLOCK_SIZE;
+
     private static final int CACHE_LINE_SIZE = 64; // safe bet for Intel. the JVM knows the actual runtime value, but doesn't expose it except via unsafe.dataCacheLineFlushSize
 
     // these offsets are relative to 'buffer'
@@ -53,10 +83,30 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
 
     private static final int LOG_HEADER_BYTES = FIRST_RECORD_OFFSET;
 
+    // the later formats have extra header fields, which also conveniently 8 byte align both the base sequence and the first record.
+    // The generation is used only by the commit word format, and is zero otherwise.
+    private static final int GENERATION_OFFSET = LINEAR_ORDERING_OFFSET + 4;
+    private static final int BASE_SEQUENCE_OFFSET = GENERATION_OFFSET + 4;
+    private static final int SEQUENCED_FIRST_RECORD_OFFSET = BASE_SEQUENCE_OFFSET + LONG_SIZE;
+
+    private static final int SEQUENCED_LOG_HEADER_BYTES = SEQUENCED_FIRST_RECORD_OFFSET;
+
     private static final int ENTRY_HEADER_SIZE = 8; // int payload length + int checksum
     private static final int PER_ENTRY_OVERHEAD = ENTRY_HEADER_SIZE;
 
-    private final Lock lock = new ReentrantLock();
+    // In the commit word format, the entry header is instead a single long, written atomically:
+    // a check value in the high int and the payload length in the low, with its top bit set once committed.
+    // The check is a hash of the log's generation and the low int, so that neither a stale word from before a reset,
+    // nor payload bytes encountered when probing past a hole for the next record, are likely to pass for a header.
+    private static final int COMMITTED_FLAG = 0x80000000;
+
+    // values for the ordering mode field in the log header.
+    // 0 and 1 match the original boolean encoding, so existing logs remain readable.
+    private static final int ORDERING_RELAXED = 0;
+    private static final int ORDERING_LINEAR = 1;
+    private static final int ORDERING_RELAXED_LOCK_FREE = 2;
+
+    private final ReentrantLock lock = new ReentrantLock();
 
     private final PersistenceHandle persistenceHandle;
 
@@ -68,11 +118,77 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
     private boolean effectiveLinearOrdering;
     private final boolean requestedLinearOrdering;
 
+    private boolean effectiveLockFreeReservation;
+    private final boolean requestedLockFreeReservation;
+
+    private boolean effectiveCommitWords;
+    private final boolean requestedCommitWords;
+
     private final boolean alwaysCheckpoint;
     private final boolean authoritativeCheckpointOnReads;
+    private final boolean groupCommit;
+    private final boolean parallelRecovery;
+    private final int checkpointInterval;
+
+    // the tail position as of the last checkpoint, against which the checkpointInterval is measured.
+    private volatile int checkpointPosition;
+
+    // set whilst a checkpoint for the checkpointInterval is queued on the common fork-join pool, so writers queue at most one.
+    private final AtomicBoolean intervalCheckpointScheduled = new AtomicBoolean(false);
+
+    // writers queue here in group commit mode. The first to find no group in progress writes the whole queue.
+    // guarded by groupCommitLock, which is always taken before, never whilst holding, the main lock.
+    private final Lock groupCommitLock = new ReentrantLock();
+    private final Condition groupCommitCompleted = groupCommitLock.newCondition();
+    private List<GroupCommitEntry> groupCommitQueue = new ArrayList<>();
+    private boolean groupCommitInProgress = false;
+
+    // In lock-free reservation mode this is the authoritative write position, advanced by CAS,
+    // and buffer.position() is not maintained. Otherwise it is unused.
+    private final AtomicInteger tail = new AtomicInteger(0);
+
+    // Writers that have claimed space but are still writing it outside the lock. clear and reset wait for these to drain
+    // before reusing the space, setting draining meanwhile to turn away lock-free writers, which claim space without the lock.
+    private final AtomicInteger writersInFlight = new AtomicInteger(0);
+    private volatile boolean draining = false;
 
     // The number of times this log has been cleared, used to keep Iterators in sync.
-    private int epoch = 0;
+    // volatile, as Iterators check it without taking the lock.
+    private volatile int epoch = 0;
+
+    // the end of the records written before the last reset. They're left in place, so reads that don't treat the
+    // checkpoint as authoritative continue to find them, as they would on recovery, until they're overwritten.
+    private int resetPosition = 0;
+
+    // In the commit word format, the persistent counterpart of the epoch. Records from earlier generations are stale.
+    private int generation = 0;
+
+    // true if the log header has a base sequence field, i.e. for linear ordering or commit word logs,
+    // except those written by earlier versions in the original format, until they're cleared.
+    private boolean sequencedHeader;
+
+    // the sequence number of the first record of the current epoch. Persisted in the header, so numbering continues
+    // across clear and reset, except in the original format, which numbers from zero. Always zero for relaxed ordering logs.
+    private long baseSequence = 0;
+
+    // A sparse in-memory index from record sequence numbers to locations, used in linear ordering mode only.
+    // It's not persisted, but built by recovery, then extended lazily by walking the records, resuming from where the previous walk ended.
+    // Guarded by sequenceIndexLock, which is taken before, never whilst holding, the main lock.
+    // An index built in an earlier epoch is stale and discarded.
+    private final Lock sequenceIndexLock = new ReentrantLock();
+    private int[] sequenceIndexLocations = new int[16];
+    private long sequenceIndexBase = 0; // the sequence number of the first record, as of the sequenceIndexEpoch.
+    private long sequenceIndexRecords = 0; // the number of records walked, i.e. the next sequence number less the base.
+    private int sequenceIndexPosition = 0; // the location at which the walk resumes.
+    private int sequenceIndexEpoch = -1;
+
+    // cursors waiting for records to be written park on tailAdvanced, and tailVersion is bumped whenever they may have been.
+    // Writers signal only if the count of waiting cursors is non-zero, so pay nothing when no one is tailing the log.
+    // tailLock is taken whilst holding the main lock, so must not be held whilst taking it.
+    private final Lock tailLock = new ReentrantLock();
+    private final Condition tailAdvanced = tailLock.newCondition();
+    private final AtomicInteger tailers = new AtomicInteger(0);
+    private long tailVersion = 0;
 
     /**
      * Establishes an append-only log structure over a given range of mapped memory.
@@ -106,13 +222,18 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         lock.lock();
         try {
 
+            requestedCommitWords = config.isCommitWords();
+
             if(config.isBlockPadding()) {
                 requestedPaddingSize = BLOCK_SIZE; // Optane internal block alignment, for performance.
+            } else if(requestedCommitWords) {
+                requestedPaddingSize = LONG_SIZE; // long alignment, so the commit word write is atomic.
             } else {
                 requestedPaddingSize = INT_SIZE; // int alignment, the minimum for persistence safety.
             }
 
             requestedLinearOrdering = config.isLinearOrdering();
+            requestedLockFreeReservation = config.isLockFreeReservation();
 
             // force MUST be called on the original buffer, NOT a duplicate or slice,
             // so we need to keep a handle on it. However, we don't want to inadvertently
@@ -124,28 +245,58 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
                 effectiveLinearOrdering = requestedLinearOrdering;
             }
             this.authoritativeCheckpointOnReads = config.isAuthoritativeCheckpointOnReads();
+            this.groupCommit = config.isGroupCommit();
+            this.parallelRecovery = config.isParallelRecovery();
+            this.checkpointInterval = config.getCheckpointInterval();
 
             // we slice the origin buffer, so that we have a zero origin to make math easier
             // and our own position/limit/capacity so we can reason about concurrency better
             ByteBuffer tmp = byteBuffer.slice();
             tmp.position(offset);
-            tmp.limit(length);
+            tmp.limit(offset + length);
             buffer = tmp.slice();
 
             byte[] header = new byte[MAGIC_HEADER.length];
             buffer.get(header);
-            if(Arrays.equals(header, MAGIC_HEADER)) {
+            if(Arrays.equals(header, MAGIC_HEADER) || Arrays.equals(header, COMMIT_WORD_MAGIC_HEADER)
+                    || Arrays.equals(header, SEQUENCED_MAGIC_HEADER)) {
                 // pre-existing data in known format.
                 // persisted config takes priority, or we'll get inconsistencies
+                effectiveCommitWords = Arrays.equals(header, COMMIT_WORD_MAGIC_HEADER);
+                if(effectiveCommitWords) {
+                    generation = buffer.getInt(GENERATION_OFFSET);
+                }
+                sequencedHeader = !Arrays.equals(header, MAGIC_HEADER);
+                if(sequencedHeader) {
+                    baseSequence = buffer.getLong(BASE_SEQUENCE_OFFSET);
+                }
                 effectivePaddingSize = buffer.getInt(PADDING_SIZE_OFFSET);
-                effectiveLinearOrdering = buffer.getInt(LINEAR_ORDERING_OFFSET) == 1;
+                int orderingMode = buffer.getInt(LINEAR_ORDERING_OFFSET);
+                effectiveLinearOrdering = orderingMode == ORDERING_LINEAR;
+                effectiveLockFreeReservation = orderingMode == ORDERING_RELAXED_LOCK_FREE;
                 // re-read to seek to buffer's end position
                 recoverRecords();
             } else {
                 effectivePaddingSize = requestedPaddingSize;
                 effectiveLinearOrdering = requestedLinearOrdering;
+                effectiveLockFreeReservation = requestedLockFreeReservation;
+                effectiveCommitWords = requestedCommitWords;
+                if(Arrays.equals(header, CLEARING_MAGIC_HEADER)) {
+                    // we crashed whilst clearing the log, so finish the job, keeping the numbering.
+                    baseSequence = buffer.getLong(BASE_SEQUENCE_OFFSET);
+                }
                 // we don't know what's in the provided buffer, so zero it out for safety
-                clear();
+                clear(true);
+            }
+
+            if(groupCommit && !effectiveLinearOrdering) {
+                // the persisted ordering mode wins, so an existing relaxed log can't honour the requested group commit.
+                IllegalArgumentException illegalArgumentException =
+                        new IllegalArgumentException("groupCommit requires linear ordering, but the existing log uses relaxed ordering");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+                }
+                throw illegalArgumentException;
             }
 
         } finally {
@@ -189,6 +340,73 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         return requestedLinearOrdering;
     }
 
+    /**
+     * Reports the space reservation mode currently in use by this log.
+     *
+     * @return true if space for writes is claimed with an atomic update rather than under a lock, false otherwise.
+     */
+    public boolean isEffectiveLockFreeReservation() {
+        return effectiveLockFreeReservation;
+    }
+
+    /**
+     * Reports the space reservation mode requested, which may or may not be currently active.
+     * If the log is cleared, this mode will become effective.
+     *
+     * @return true if lock-free reservation was requested, false otherwise.
+     */
+    public boolean isRequestedLockFreeReservation() {
+        return requestedLockFreeReservation;
+    }
+
+    /**
+     * Reports the record format currently in use by this log.
+     *
+     * @return true if records are validated by commit words, false if by checksums.
+     */
+    public boolean isEffectiveCommitWords() {
+        return effectiveCommitWords;
+    }
+
+    /**
+     * Reports the record format requested, which may or may not be currently active.
+     * If the log is cleared, this format will become effective.
+     *
+     * @return true if commit words were requested, false otherwise.
+     */
+    public boolean isRequestedCommitWords() {
+        return requestedCommitWords;
+    }
+
+    /**
+     * Reports the group commit mode. This requires linear ordering, so an existing relaxed log can't be opened with it.
+     *
+     * @return true if concurrent writes are combined, sharing a single persist (and checkpoint), false otherwise.
+     */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Reports the recovery mode.
+     *
+     * @return true if records beyond the checkpoint are validated in parallel when opening an existing log, false otherwise.
+     * Logs in the commit word format have no checksums to validate, so are walked sequentially regardless.
+     */
+    public boolean isParallelRecovery() {
+        return parallelRecovery;
+    }
+
+    /**
+     * Reports the automatic checkpoint interval.
+     *
+     * @return the number of bytes of records after which writes cause the checkpoint to be updated, or 0 if they never do.
+     * The update is made in the background, so may lag the writes.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
     /**
      * Reports the auto-checkpointing mode.
      *
@@ -219,8 +437,12 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
 
         lock.lock();
         try {
-            buffer.putInt(CHECKPOINT_OFFSET, buffer.position());
-            persistenceHandle.persist(MAGIC_OFFSET, LOG_HEADER_BYTES);
+            int position = tailPosition();
+            buffer.putInt(CHECKPOINT_OFFSET, position);
+            persistenceHandle.persist(MAGIC_OFFSET, logHeaderBytes());
+            checkpointPosition = position;
+            // where the checkpoint is authoritative, records become readable only now.
+            signalTailers();
         } finally {
             lock.unlock();
         }
@@ -354,15 +576,22 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             return ERROR_LOCATION;
         }
 
-        // CSC32C impl should be faster than CSC32 as it is coded to use hardware support (SSE4.2) when available,
-        // whilst the CSC32 impl has not been retrofitted.
-        // CSC32C is Java9+ only, which is why much code still uses the older CRC32, but we need Java13+ for pmem anyhow.
-        // note that if still using CSC32, there is a faster impl in kafka/hadoop than the one in jdk's zip package.
-        CRC32C crc32c = new CRC32C();
-        crc32c.update(srcSlice);
-        int checksum = (int) crc32c.getValue();
-        // the checksum above consumed the content, but the put below needs to re-read it.
-        srcSlice.rewind();
+        if(effectiveLockFreeReservation || (groupCommit && effectiveLinearOrdering)) {
+            // group commit followers checksum their own records in parallel, leaving the leader only the copying.
+            int location = effectiveLockFreeReservation
+                    ? tryPutWithoutLock(srcSlice, payloadLength)
+                    : tryPutWithGroupCommit(srcSlice, payloadLength, effectiveCommitWords ? 0 : ChecksumUtil.checksum(srcSlice));
+            if(location != ERROR_LOCATION) {
+                // we've been operating on a slice, but need to reflect the read in the original
+                src.position(src.position() + payloadLength);
+                recordsWritten();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", location);
+            }
+            return location;
+        }
 
         int recordStartPosition = 0;
         int recordLength = 0;
@@ -371,6 +600,12 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
 
         int recordBytesFittingInFirstCacheLine;
         int deferredRecordBytesLength;
+        boolean commitWords;
+
+        // where the ordering is relaxed, the checksum is needed before the payload is written, so must be a separate pass.
+        // It's done outside the lock, then, and in linear mode is instead calculated in the same pass as the copy.
+        boolean precomputedChecksum = !effectiveLinearOrdering && !effectiveCommitWords;
+        int checksum = precomputedChecksum ? ChecksumUtil.checksum(srcSlice) : 0;
 
         lock.lock();
         try {
@@ -383,9 +618,40 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             }
 
             recordStartPosition = buffer.position();
+            commitWords = effectiveCommitWords;
+
+            if(effectiveLinearOrdering) {
+                writeRecord(recordStartPosition, srcSlice, payloadLength);
+                buffer.position(recordStartPosition + ENTRY_HEADER_SIZE + payloadLength);
+                padRecord();
 
-            buffer.putInt(payloadLength);
-            buffer.putInt(checksum);
+                // we've been operating on a slice, but need to reflect the read in the original
+                src.position(src.position() + payloadLength);
+
+                if(alwaysCheckpoint) {
+                    checkpoint();
+                } else {
+                    recordsWritten();
+                }
+
+                if(logger.isTraceEnabled()) {
+                    logger.tracev("exit returning {0}", recordStartPosition);
+                }
+                return recordStartPosition;
+            }
+
+            if(commitWords) {
+                // the length must be reachable, but the record not yet valid, until the payload is persisted.
+                buffer.putLong(commitWord(payloadLength, false));
+            } else {
+                if(!precomputedChecksum) {
+                    // the mode was changed by a clear since we last looked.
+                    checksum = ChecksumUtil.checksum(srcSlice);
+                }
+
+                buffer.putInt(payloadLength);
+                buffer.putInt(checksum);
+            }
             int payloadStartPosition = buffer.position();
 
             payloadBuffer = buffer.slice(buffer.position(), payloadLength);
@@ -426,15 +692,30 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
                 checkpoint();
             }
 
+            // the rest of the record is written after releasing the lock, so a clear or reset must wait for it.
+            writersInFlight.incrementAndGet();
+
         } finally {
             lock.unlock();
         }
 
-        if(deferredSlice != null) {
-            payloadBuffer.put(deferredSlice);
-            persistenceHandle.persist(recordStartPosition + recordBytesFittingInFirstCacheLine, deferredRecordBytesLength);
+        try {
+            if(deferredSlice != null) {
+                payloadBuffer.put(deferredSlice);
+                persistenceHandle.persist(recordStartPosition + recordBytesFittingInFirstCacheLine, deferredRecordBytesLength);
+            }
+
+            if(commitWords) {
+                // the payload is now persisted in its entirety, so it's safe to vouch for it.
+                buffer.putLong(recordStartPosition, commitWord(payloadLength, true));
+                persistenceHandle.persist(recordStartPosition, LONG_SIZE);
+            }
+        } finally {
+            writersInFlight.decrementAndGet();
         }
 
+        recordsWritten();
+
         if(logger.isTraceEnabled()) {
             logger.tracev("exit returning {0}", recordStartPosition);
         }
@@ -442,83 +723,295 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
     }
 
     /**
-     * {@inheritDoc}
+     * Claim space for a record by atomically advancing the tail, then write and persist it without holding the lock.
+     * <p>
+     * A failure between the reservation and the persist leaves a hole, which readers skip. See Itr.lookahead.
+     *
+     * @param srcSlice The payload, which is not consumed.
+     * @param payloadLength The size of the payload.
+     * @return The location of the record, or {@link #ERROR_LOCATION} if insufficient space remains.
      */
-    @Override
-    public void clear() {
-        if(logger.isTraceEnabled()) {
-            logger.tracev("entry for {0}", this);
-        }
+    private int tryPutWithoutLock(ByteBuffer srcSlice, int payloadLength) {
 
-        lock.lock();
+        beginWriteWithoutLock();
         try {
+            int recordStartPosition;
+            long recordEndPosition;
+            do {
+                recordStartPosition = tail.get();
+                recordEndPosition = recordEndPosition(recordStartPosition, payloadLength);
+                if(recordEndPosition > buffer.capacity()) {
+                    return ERROR_LOCATION;
+                }
+            } while(!tail.compareAndSet(recordStartPosition, (int) recordEndPosition));
 
-            // first overwrite the header to invalidate the file,
-            // in case we crash in inconsistent state whilst zeroing the rest
-            buffer.clear();
+            // the space is ours alone, so absolute (position independent) operations on the shared buffer are safe.
+            writeRecord(recordStartPosition, srcSlice, payloadLength);
+
+            return recordStartPosition;
+        } finally {
+            writersInFlight.decrementAndGet();
+        }
+    }
 
-            buffer.put(MAGIC_OFFSET, MAGIC_HEADER);
-            buffer.putInt(PADDING_SIZE_OFFSET, effectivePaddingSize);
-            buffer.putInt(LINEAR_ORDERING_OFFSET, effectiveLinearOrdering ? 1 : 0);
+    /**
+     * Register a writer that is about to claim space, or finish writing it, without holding the lock,
+     * first waiting out any clear or reset in progress. The writer must decrement writersInFlight when done.
+     */
+    private void beginWriteWithoutLock() {
+        writersInFlight.incrementAndGet();
+        while(draining) {
+            // a clear or reset is waiting for us, so stand aside until it's done, which is when it releases the lock.
+            writersInFlight.decrementAndGet();
+            lock.lock();
+            lock.unlock();
+            writersInFlight.incrementAndGet();
+        }
+    }
 
-            persistenceHandle.persist(MAGIC_OFFSET, LOG_HEADER_BYTES);
+    /**
+     * Wait for writers that have claimed space to finish writing it. Must be called with the lock held, which the other
+     * writers need in order to claim space, and draining cleared before releasing it.
+     */
+    private void drainWriters() {
+        draining = true;
+        while(writersInFlight.get() != 0) {
+            // writers outside the lock are only copying and persisting a record, so won't keep us long.
+            Thread.onSpinWait();
+        }
+    }
 
-            // sun.misc.Unsafe.setMemory may be faster, but would require linking against jdk.unsupported module
-            buffer.clear();
-            byte[] zeros = new byte[1024 * 1024];
-            while(buffer.remaining() > 0) {
-                buffer.put(zeros, 0, buffer.remaining() > zeros.length ? zeros.length : buffer.remaining());
+    /**
+     * Write and persist a complete record at the given location, without moving the buffer position.
+     * <p>
+     * The header is written last, so in lock-free reservation mode the space remains a hole until the record is complete.
+     *
+     * @param recordStartPosition The location of the record.
+     * @param srcSlice The payload, which is not consumed.
+     * @param payloadLength The size of the payload.
+     */
+    private void writeRecord(int recordStartPosition, ByteBuffer srcSlice, int payloadLength) {
+        if(effectiveCommitWords) {
+            buffer.put(recordStartPosition + ENTRY_HEADER_SIZE, srcSlice, 0, payloadLength);
+            publishRecord(recordStartPosition, payloadLength);
+        } else {
+            int checksum = ChecksumUtil.copyWithChecksum(srcSlice, buffer, recordStartPosition + ENTRY_HEADER_SIZE);
+            buffer.putInt(recordStartPosition + INT_SIZE, checksum);
+            buffer.putInt(recordStartPosition, payloadLength);
+
+            // header and payload go in a single persist, so a crash may tear them in any combination.
+            // A torn payload is caught by the checksum, a missing length by the hole skipping on read.
+            persistenceHandle.persist(recordStartPosition, ENTRY_HEADER_SIZE + payloadLength);
+        }
+    }
+
+    /**
+     * In the commit word format, persist a payload already written at the given location, then make the record
+     * valid by writing and persisting its commit word. The two persists can't be combined, since the commit word
+     * must not reach persistence before the payload it vouches for.
+     *
+     * @param recordStartPosition The location of the record.
+     * @param payloadLength The size of the payload.
+     */
+    private void publishRecord(int recordStartPosition, int payloadLength) {
+        persistenceHandle.persist(recordStartPosition + ENTRY_HEADER_SIZE, payloadLength);
+        buffer.putLong(recordStartPosition, commitWord(payloadLength, true));
+        persistenceHandle.persist(recordStartPosition, LONG_SIZE);
+    }
+
+    /**
+     * In the commit word format, publish several records whose payloads are already persisted.
+     * The commit words are persisted together, which may flush lines holding only payload,
+     * but that's still cheaper than a fence per record.
+     *
+     * @param locations The locations of the records, some of which may be {@link #ERROR_LOCATION} to be skipped.
+     * @param payloadLengths The size of each payload.
+     */
+    private void publishRecords(int[] locations, int[] payloadLengths) {
+        int firstLocation = ERROR_LOCATION;
+        int lastLocation = ERROR_LOCATION;
+        for(int i = 0; i < locations.length; i++) {
+            if(locations[i] == ERROR_LOCATION) {
+                continue;
             }
+            buffer.putLong(locations[i], commitWord(payloadLengths[i], true));
+            if(firstLocation == ERROR_LOCATION) {
+                firstLocation = locations[i];
+            }
+            lastLocation = locations[i];
+        }
+        if(firstLocation != ERROR_LOCATION) {
+            persistenceHandle.persist(firstLocation, lastLocation + LONG_SIZE - firstLocation);
+        }
+    }
 
-            // we could force every N lines whilst looping above, but assume the hardware cache management
-            // knows what it's doing and will elide flushes if they are for lines that have already been
-            // evicted by cache pressure.
-            persistenceHandle.persist(MAGIC_OFFSET, buffer.capacity());
+    /**
+     * Builds the entry header for the commit word format.
+     *
+     * @param payloadLength The size of the payload.
+     * @param committed true if the payload has been persisted, false if the space is only reserved.
+     * @return The commit word.
+     */
+    private long commitWord(int payloadLength, boolean committed) {
+        int flaggedLength = committed ? (payloadLength | COMMITTED_FLAG) : payloadLength;
+        return ((long) commitWordCheck(generation, flaggedLength) << 32) | (flaggedLength & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Determines if a value read from the log is a commit word written in the given generation.
+     *
+     * @param commitWord The value read from the entry header position.
+     * @param generation The generation of the log.
+     * @return true if the check value matches, false otherwise.
+     */
+    private static boolean isCommitWord(long commitWord, int generation) {
+        return (int) (commitWord >>> 32) == commitWordCheck(generation, (int) commitWord);
+    }
 
-            effectivePaddingSize = requestedPaddingSize;
-            effectiveLinearOrdering = requestedLinearOrdering;
+    /**
+     * Computes the check value for the high int of a commit word, by mixing the generation with the (flagged) length.
+     *
+     * @param generation The generation of the log.
+     * @param flaggedLength The low int of the commit word.
+     * @return The check value.
+     */
+    private static int commitWordCheck(int generation, int flaggedLength) {
+        // murmur3 finalizer over the combined inputs.
+        int h = generation * 0x9E3779B9 + flaggedLength;
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        h *= 0xC2B2AE35;
+        h ^= h >>> 16;
+        return h;
+    }
 
-            buffer.clear();
+    /**
+     * Queue a record for writing by whichever thread is leading the current group commit,
+     * or lead it ourselves if none is in progress, then wait for it to be persisted.
+     *
+     * @param srcSlice The payload, which will be consumed.
+     * @param payloadLength The size of the payload.
+     * @param checksum The checksum of the payload.
+     * @return The location of the record, or {@link #ERROR_LOCATION} if insufficient space remains.
+     */
+    private int tryPutWithGroupCommit(ByteBuffer srcSlice, int payloadLength, int checksum) {
 
-            buffer.put(MAGIC_OFFSET, MAGIC_HEADER);
-            buffer.putInt(PADDING_SIZE_OFFSET, effectivePaddingSize);
-            buffer.putInt(LINEAR_ORDERING_OFFSET, effectiveLinearOrdering ? 1 : 0);
+        GroupCommitEntry entry = new GroupCommitEntry(srcSlice, payloadLength, checksum);
 
-            persistenceHandle.persist(MAGIC_OFFSET, LOG_HEADER_BYTES);
+        groupCommitLock.lock();
+        try {
+            groupCommitQueue.add(entry);
 
-            buffer.position(FIRST_RECORD_OFFSET);
-            epoch++;
+            while(!entry.done) {
+                if(groupCommitInProgress) {
+                    // someone else is writing, we'll either be in their group, or lead the next one.
+                    groupCommitCompleted.awaitUninterruptibly();
+                    continue;
+                }
 
+                groupCommitInProgress = true;
+                List<GroupCommitEntry> group = groupCommitQueue;
+                groupCommitQueue = new ArrayList<>();
+
+                // release, so others can queue up for the next group whilst we write this one.
+                groupCommitLock.unlock();
+                RuntimeException failure = null;
+                try {
+                    writeGroup(group);
+                } catch(RuntimeException e) {
+                    failure = e;
+                } finally {
+                    groupCommitLock.lock();
+
+                    for(GroupCommitEntry groupEntry : group) {
+                        groupEntry.failure = failure;
+                        groupEntry.done = true;
+                    }
+                    groupCommitInProgress = false;
+                    groupCommitCompleted.signalAll();
+                }
+            }
         } finally {
-            lock.unlock();
+            groupCommitLock.unlock();
         }
 
-        if(logger.isTraceEnabled()) {
-            logger.tracev("exit");
+        if(entry.failure != null) {
+            throw entry.failure;
         }
+        return entry.location;
     }
 
     /**
-     * {@inheritDoc}
+     * Write a group of records contiguously, then persist them all (and the checkpoint, if required) at once.
+     *
+     * @param group The records, in the order they should appear in the log.
      */
-    @Override
-    public void reset() {
-        if(logger.isTraceEnabled()) {
-            logger.tracev("entry for {0}", this);
-        }
-
+    private void writeGroup(List<GroupCommitEntry> group) {
         lock.lock();
-
         try {
-            buffer.position(FIRST_RECORD_OFFSET);
-            epoch++;
-            checkpoint();
+
+            int groupStartPosition = buffer.position();
+
+            for(GroupCommitEntry entry : group) {
+                // linear ordering means no record may succeed after one that failed, so once a record doesn't fit
+                // the rest of the group fails with it, even if a smaller one would have fitted.
+                if(!canAcceptInternal(entry.payloadLength)) {
+                    break;
+                }
+                entry.location = buffer.position();
+                if(effectiveCommitWords) {
+                    buffer.position(buffer.position() + ENTRY_HEADER_SIZE);
+                } else {
+                    buffer.putInt(entry.payloadLength);
+                    buffer.putInt(entry.checksum);
+                }
+                buffer.put(entry.payload);
+                padRecord();
+            }
+
+            int groupLength = buffer.position() - groupStartPosition;
+            if(groupLength > 0) {
+                persistenceHandle.persist(groupStartPosition, groupLength);
+
+                if(effectiveCommitWords) {
+                    int[] locations = new int[group.size()];
+                    int[] payloadLengths = new int[group.size()];
+                    for(int i = 0; i < locations.length; i++) {
+                        locations[i] = group.get(i).location;
+                        payloadLengths[i] = group.get(i).payloadLength;
+                    }
+                    publishRecords(locations, payloadLengths);
+                }
+
+                if(alwaysCheckpoint) {
+                    checkpoint();
+                }
+            }
+
         } finally {
             lock.unlock();
         }
+    }
 
-        if(logger.isTraceEnabled()) {
-            logger.tracev("exit");
+    /**
+     * A record waiting to be written in group commit mode.
+     */
+    private static class GroupCommitEntry {
+
+        private final ByteBuffer payload;
+        private final int payloadLength;
+        private final int checksum;
+
+        // these are written by the group leader, published to the waiter via the groupCommitLock
+        private int location = ERROR_LOCATION;
+        private RuntimeException failure;
+        private boolean done;
+
+        private GroupCommitEntry(ByteBuffer payload, int payloadLength, int checksum) {
+            this.payload = payload;
+            this.payloadLength = payloadLength;
+            this.checksum = checksum;
         }
     }
 
@@ -526,75 +1019,851 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
      * {@inheritDoc}
      */
     @Override
-    public int remaining() {
+    public void putAll(ByteBuffer[] srcs) {
+        putAllWithLocation(srcs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] putAllWithLocation(ByteBuffer[] srcs) {
         if(logger.isTraceEnabled()) {
-            logger.tracev("entry for {0}", this);
+            logger.tracev("entry for {0} with srcs={1}", this, srcs);
         }
 
-        int result;
-
-        lock.lock();
-        try {
-            result = buffer.remaining();
-        } finally {
-            lock.unlock();
+        int[] locations = tryPutAllWithLocation(srcs);
+        if(locations == null) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
         }
 
         if(logger.isTraceEnabled()) {
-            logger.tracev("exit returning {0}", result);
+            logger.tracev("exit returning {0}", locations);
         }
-        return result;
+        return locations;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public boolean canAccept(int length) {
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        return tryPutAllWithLocation(srcs) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] tryPutAllWithLocation(ByteBuffer[] srcs) {
         if(logger.isTraceEnabled()) {
-            logger.tracev("entry for {0} with length={1}", this, length);
+            logger.tracev("entry for {0} with srcs={1}", this, srcs);
         }
 
-        boolean result;
+        ByteBuffer[] srcSlices = new ByteBuffer[srcs.length];
+        int[] payloadLengths = new int[srcs.length];
 
-        lock.lock();
-        try {
-            result = canAcceptInternal(length);
-        } finally {
-            lock.unlock();
-        }
+        for(int i = 0; i < srcs.length; i++) {
+            srcSlices[i] = srcs[i].slice();
+            payloadLengths[i] = srcSlices[i].remaining();
 
-        if(logger.isTraceEnabled()) {
-            logger.tracev("exit returning {0}", result);
+            if(payloadLengths[i] == 0) {
+                if(logger.isTraceEnabled()) {
+                    logger.tracev("exit returning null");
+                }
+                return null;
+            }
         }
-        return result;
-    }
 
-    private boolean canAcceptInternal(int length) {
-        boolean result;
+        int[] locations = effectiveLockFreeReservation
+                ? tryPutAllWithoutLock(srcSlices, payloadLengths)
+                : tryPutAllWithLock(srcSlices, payloadLengths);
 
-        int recordLength = length + PER_ENTRY_OVERHEAD;
-        int realignment = (length % effectivePaddingSize);
-        if(realignment != 0) {
-            recordLength += (effectivePaddingSize - realignment); // pad to int alignment
+        if(locations != null) {
+            // we've been operating on slices, but need to reflect the reads in the originals
+            for(int i = 0; i < srcs.length; i++) {
+                srcs[i].position(srcs[i].position() + payloadLengths[i]);
+            }
+            recordsWritten();
         }
 
-        result = buffer.remaining() - recordLength >= 0;
-        return result;
-    }
-
-    private void padRecord() {
-        int x = buffer.position() % effectivePaddingSize;
-        if(x != 0) {
-            buffer.position(buffer.position() + (effectivePaddingSize - x));
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", locations);
         }
+        return locations;
     }
 
     /**
-     * Scan the log, optionally from a known-good point, and set the position to a point just after the
-     * last valid record.
+     * Write a batch of records contiguously under the lock, then persist them (and the checkpoint, if required) at once.
+     * <p>
+     * Since the headers are persisted before the lock is released, this suits all ordering modes except lock-free reservation.
+     *
+     * @param srcSlices The payloads, which are not consumed.
+     * @param payloadLengths The size of each payload.
+     * @return The locations of the records, or null if insufficient space remains for all of them.
      */
-    private void recoverRecords() {
+    private int[] tryPutAllWithLock(ByteBuffer[] srcSlices, int[] payloadLengths) {
+
+        int[] locations = new int[srcSlices.length];
+
+        lock.lock();
+        try {
+
+            int batchStartPosition = buffer.position();
+
+            long batchEndPosition = batchStartPosition;
+            for(int payloadLength : payloadLengths) {
+                batchEndPosition = recordEndPosition(batchEndPosition, payloadLength);
+            }
+            if(batchEndPosition > buffer.capacity()) {
+                return null;
+            }
+
+            for(int i = 0; i < srcSlices.length; i++) {
+                int recordStartPosition = buffer.position();
+                locations[i] = recordStartPosition;
+                if(effectiveCommitWords) {
+                    buffer.put(recordStartPosition + ENTRY_HEADER_SIZE, srcSlices[i], 0, payloadLengths[i]);
+                    buffer.position(recordStartPosition + ENTRY_HEADER_SIZE);
+                } else {
+                    int checksum = ChecksumUtil.copyWithChecksum(srcSlices[i], buffer, recordStartPosition + ENTRY_HEADER_SIZE);
+                    buffer.putInt(payloadLengths[i]);
+                    buffer.putInt(checksum);
+                }
+                buffer.position(buffer.position() + payloadLengths[i]);
+                padRecord();
+            }
+
+            if(srcSlices.length > 0) {
+                persistenceHandle.persist(batchStartPosition, buffer.position() - batchStartPosition);
+
+                if(effectiveCommitWords) {
+                    publishRecords(locations, payloadLengths);
+                }
+
+                if(alwaysCheckpoint) {
+                    checkpoint();
+                }
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        return locations;
+    }
+
+    /**
+     * Claim space for a batch of records by atomically advancing the tail, then write and persist them without holding the lock.
+     *
+     * @param srcSlices The payloads, which are not consumed.
+     * @param payloadLengths The size of each payload.
+     * @return The locations of the records, or null if insufficient space remains for all of them.
+     */
+    private int[] tryPutAllWithoutLock(ByteBuffer[] srcSlices, int[] payloadLengths) {
+
+        int[] locations = new int[srcSlices.length];
+        if(srcSlices.length == 0) {
+            return locations;
+        }
+
+        beginWriteWithoutLock();
+        try {
+            int batchStartPosition;
+            long batchEndPosition;
+            do {
+                batchStartPosition = tail.get();
+                batchEndPosition = batchStartPosition;
+                for(int payloadLength : payloadLengths) {
+                    batchEndPosition = recordEndPosition(batchEndPosition, payloadLength);
+                }
+                if(batchEndPosition > buffer.capacity()) {
+                    return null;
+                }
+            } while(!tail.compareAndSet(batchStartPosition, (int) batchEndPosition));
+
+            int recordStartPosition = batchStartPosition;
+            for(int i = 0; i < srcSlices.length; i++) {
+                locations[i] = recordStartPosition;
+                if(effectiveCommitWords) {
+                    buffer.put(recordStartPosition + ENTRY_HEADER_SIZE, srcSlices[i], 0, payloadLengths[i]);
+                } else {
+                    int checksum = ChecksumUtil.copyWithChecksum(srcSlices[i], buffer, recordStartPosition + ENTRY_HEADER_SIZE);
+                    buffer.putInt(recordStartPosition + INT_SIZE, checksum);
+                    buffer.putInt(recordStartPosition, payloadLengths[i]);
+                }
+                recordStartPosition = (int) recordEndPosition(recordStartPosition, payloadLengths[i]);
+            }
+
+            // the padding after the last record was never written, so needn't be flushed.
+            int lastRecordEndPosition = locations[locations.length - 1] + ENTRY_HEADER_SIZE + payloadLengths[payloadLengths.length - 1];
+            persistenceHandle.persist(batchStartPosition, lastRecordEndPosition - batchStartPosition);
+
+            if(effectiveCommitWords) {
+                publishRecords(locations, payloadLengths);
+            }
+
+            return locations;
+        } finally {
+            writersInFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AppendOnlyLogReservation reserve(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        AppendOnlyLogReservation reservation = tryReserve(length);
+        if(reservation == null) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AppendOnlyLogReservation tryReserve(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        if(length <= 0) {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning null");
+            }
+            return null;
+        }
+
+        Reservation reservation;
+
+        if(effectiveLockFreeReservation) {
+
+            int recordStartPosition;
+            long recordEndPosition;
+            beginWriteWithoutLock();
+            try {
+                do {
+                    recordStartPosition = tail.get();
+                    recordEndPosition = recordEndPosition(recordStartPosition, length);
+                    if(recordEndPosition > buffer.capacity()) {
+                        if(logger.isTraceEnabled()) {
+                            logger.tracev("exit returning null");
+                        }
+                        return null;
+                    }
+                } while(!tail.compareAndSet(recordStartPosition, (int) recordEndPosition));
+
+                // until commit the length header remains zero, so readers treat the space as a hole.
+                // After a reset the space may still hold a record of the same length, which mustn't be mistaken for this one,
+                // so the header is cleared. Commit words carry the generation, so a stale one is never mistaken.
+                if(!effectiveCommitWords) {
+                    buffer.putInt(recordStartPosition + INT_SIZE, 0);
+                    buffer.putInt(recordStartPosition, 0);
+                    persistenceHandle.persist(recordStartPosition, ENTRY_HEADER_SIZE);
+                }
+
+                reservation = new Reservation(recordStartPosition, length, (int) recordEndPosition - recordStartPosition,
+                        false, true, effectiveCommitWords);
+            } finally {
+                writersInFlight.decrementAndGet();
+            }
+
+        } else {
+
+            boolean holdingLock = false;
+            lock.lock();
+            try {
+
+                if(effectiveLinearOrdering && lock.getHoldCount() > 1) {
+                    // the lock is reentrant, so without this check a second reservation would be granted,
+                    // then aborting the first would rewind over it.
+                    IllegalStateException illegalStateException = new IllegalStateException("reservation already in progress on this thread");
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                    }
+                    throw illegalStateException;
+                }
+
+                if(!canAcceptInternal(length)) {
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev("exit returning null");
+                    }
+                    return null;
+                }
+
+                int recordStartPosition = buffer.position();
+                buffer.position(recordStartPosition + ENTRY_HEADER_SIZE + length);
+                padRecord();
+                int recordLength = buffer.position() - recordStartPosition;
+
+                if(effectiveLinearOrdering) {
+                    // records must be persisted in order, so no other write may proceed until this one is complete.
+                    holdingLock = true;
+                } else {
+                    // as in tryPutWithLocation, the length header must be persisted before releasing the lock,
+                    // so that subsequent records remain reachable. The checksum is zeroed, lest a stale one left by a reset
+                    // match a stale payload, so readers skip the record until commit fills it in. That costs a second flush
+                    // of the header line, but the payload isn't available yet to share it.
+                    if(effectiveCommitWords) {
+                        buffer.putLong(recordStartPosition, commitWord(length, false));
+                        persistenceHandle.persist(recordStartPosition, LONG_SIZE);
+                    } else {
+                        buffer.putInt(recordStartPosition + INT_SIZE, 0);
+                        buffer.putInt(recordStartPosition, length);
+                        persistenceHandle.persist(recordStartPosition, ENTRY_HEADER_SIZE);
+                    }
+                }
+
+                reservation = new Reservation(recordStartPosition, length, recordLength, holdingLock, false, effectiveCommitWords);
+
+            } finally {
+                if(!holdingLock) {
+                    lock.unlock();
+                }
+            }
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * Space claimed for a record by tryReserve, pending commit or abort.
+     */
+    private class Reservation implements AppendOnlyLogReservation {
+
+        private final int recordStartPosition;
+        private final int payloadLength;
+        private final int recordLength;
+        private final boolean holdingLock;
+        private final boolean lockFree;
+        private final boolean commitWords;
+        private final ByteBuffer payloadBuffer;
+        // the space belongs to the log only until it's cleared or reset.
+        private final int reservationEpoch;
+
+        private boolean completed = false;
+
+        private Reservation(int recordStartPosition, int payloadLength, int recordLength,
+                            boolean holdingLock, boolean lockFree, boolean commitWords) {
+            this.recordStartPosition = recordStartPosition;
+            this.payloadLength = payloadLength;
+            this.recordLength = recordLength;
+            this.holdingLock = holdingLock;
+            this.lockFree = lockFree;
+            this.commitWords = commitWords;
+            payloadBuffer = buffer.slice(recordStartPosition + ENTRY_HEADER_SIZE, payloadLength);
+            reservationEpoch = epoch;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return payloadBuffer;
+        }
+
+        @Override
+        public int location() {
+            return recordStartPosition;
+        }
+
+        @Override
+        public void commit() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0}", this);
+            }
+
+            checkNotCompleted();
+            completed = true;
+
+            if(!holdingLock) {
+                beginWriteWithoutLock();
+            }
+            try {
+                if(reservationEpoch != epoch) {
+                    // the space may since have been reused, so the record mustn't be published over whatever is there now.
+                    IllegalStateException illegalStateException = new IllegalStateException("log cleared or reset since reservation");
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                    }
+                    throw illegalStateException;
+                }
+
+                if(commitWords) {
+                    publishRecord(recordStartPosition, payloadLength);
+                } else {
+                    int checksum = ChecksumUtil.checksum(payloadBuffer.duplicate().clear());
+
+                    // the length is written last, as in tryPutWithoutLock, since in lock-free mode it's what makes the record visible.
+                    buffer.putInt(recordStartPosition + INT_SIZE, checksum);
+                    buffer.putInt(recordStartPosition, payloadLength);
+
+                    if(lockFree) {
+                        // the padding after the record was never written, so needn't be flushed.
+                        persistenceHandle.persist(recordStartPosition, ENTRY_HEADER_SIZE + payloadLength);
+                    } else {
+                        persistenceHandle.persist(recordStartPosition, recordLength);
+                    }
+                }
+
+                if(holdingLock && alwaysCheckpoint) {
+                    checkpoint();
+                }
+            } finally {
+                if(holdingLock) {
+                    lock.unlock();
+                } else {
+                    writersInFlight.decrementAndGet();
+                }
+            }
+
+            recordsWritten();
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit");
+            }
+        }
+
+        @Override
+        public void abort() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0}", this);
+            }
+
+            checkNotCompleted();
+            completed = true;
+
+            if(holdingLock) {
+                // nothing was written to the log and nobody else has had the chance to, so the space can be reused,
+                // unless we cleared or reset the log ourselves in the meantime.
+                if(reservationEpoch == epoch) {
+                    buffer.position(recordStartPosition);
+                }
+                lock.unlock();
+            }
+            // otherwise the space becomes a gap, lacking either a length or a valid checksum or commit word, which readers skip.
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit");
+            }
+        }
+
+        private void checkNotCompleted() {
+            if(completed) {
+                IllegalStateException illegalStateException = new IllegalStateException("reservation already completed");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Reservation{" +
+                    "location=" + recordStartPosition +
+                    ", payloadLength=" + payloadLength +
+                    ", completed=" + completed +
+                    '}';
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Where the log both uses and is configured to use the commit word format, this is a constant time operation,
+     * since records from earlier generations are already recognised as stale. Otherwise the log is zeroed.
+     * <p>
+     * Records written after the clear are numbered on from those before it, though any not yet indexed must first be counted.
+     */
+    @Override
+    public void clear() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        sequenceIndexLock.lock();
+        lock.lock();
+        try {
+            drainWriters();
+            baseSequence += recordsInEpoch();
+            clear(!(effectiveCommitWords && requestedCommitWords));
+        } finally {
+            draining = false;
+            lock.unlock();
+            sequenceIndexLock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Clear the log, adopting the requested configuration. Must be called with the lock held.
+     *
+     * @param zeroFill true to overwrite the entire capacity, false to rely on a new generation to make existing records stale.
+     */
+    private void clear(boolean zeroFill) {
+
+        // only logs that number their records need the base sequence field.
+        // The rest keep the original layout, so an earlier version can still read them.
+        boolean sequenced = requestedLinearOrdering || requestedCommitWords;
+        if(!sequenced) {
+            baseSequence = 0;
+        }
+
+        if(zeroFill) {
+            // first overwrite the header to invalidate the file,
+            // in case we crash in inconsistent state whilst zeroing the rest.
+            // The marker magic keeps only the base sequence valid, which recovery will then clear the log with.
+            buffer.clear();
+
+            // sun.misc.Unsafe.setMemory may be faster, but would require linking against jdk.unsupported module
+            byte[] zeros = new byte[1024 * 1024];
+
+            if(sequenced) {
+                buffer.put(MAGIC_OFFSET, CLEARING_MAGIC_HEADER);
+                buffer.putLong(BASE_SEQUENCE_OFFSET, baseSequence);
+                persistenceHandle.persist(MAGIC_OFFSET, SEQUENCED_LOG_HEADER_BYTES);
+                buffer.put(PADDING_SIZE_OFFSET, zeros, 0, BASE_SEQUENCE_OFFSET - PADDING_SIZE_OFFSET);
+                buffer.position(SEQUENCED_FIRST_RECORD_OFFSET);
+            } else {
+                buffer.put(MAGIC_OFFSET, zeros, 0, MAGIC_HEADER.length);
+                persistenceHandle.persist(MAGIC_OFFSET, MAGIC_HEADER.length);
+            }
+
+            while(buffer.remaining() > 0) {
+                buffer.put(zeros, 0, buffer.remaining() > zeros.length ? zeros.length : buffer.remaining());
+            }
+
+            // we could force every N lines whilst looping above, but assume the hardware cache management
+            // knows what it's doing and will elide flushes if they are for lines that have already been
+            // evicted by cache pressure.
+            persistenceHandle.persist(MAGIC_OFFSET, buffer.capacity());
+        } else {
+            // the existing records become stale as soon as the new generation is persisted,
+            // so do that first, lest a crash leave it behind the other header changes.
+            // The base sequence must precede it, as a crash between the two is safe only that way round.
+            persistBaseSequence();
+            advanceGeneration();
+            persistenceHandle.persist(GENERATION_OFFSET, INT_SIZE);
+        }
+
+        effectivePaddingSize = requestedPaddingSize;
+        effectiveLinearOrdering = requestedLinearOrdering;
+        effectiveLockFreeReservation = requestedLockFreeReservation;
+        effectiveCommitWords = requestedCommitWords;
+        sequencedHeader = sequenced;
+
+        buffer.clear();
+
+        buffer.put(MAGIC_OFFSET, magicHeader());
+        buffer.putInt(PADDING_SIZE_OFFSET, effectivePaddingSize);
+        buffer.putInt(LINEAR_ORDERING_OFFSET, orderingMode());
+        if(sequencedHeader) {
+            buffer.putLong(BASE_SEQUENCE_OFFSET, baseSequence);
+        }
+        if(zeroFill && effectiveCommitWords) {
+            // the log is zeroed, so there are no stale records to invalidate, but advancing keeps the rule simple.
+            advanceGeneration();
+        }
+        // the checkpoint may be left over from the previous generation.
+        buffer.putInt(CHECKPOINT_OFFSET, 0);
+
+        persistenceHandle.persist(MAGIC_OFFSET, logHeaderBytes());
+
+        buffer.position(firstRecordOffset());
+        epoch++;
+        tail.set(firstRecordOffset());
+        checkpointPosition = firstRecordOffset();
+        resetPosition = 0;
+        signalTailers();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records written after the reset are numbered on from those before it, unless the log is in the original format,
+     * which has no header field to record the base sequence in, so numbers from zero until it's cleared.
+     */
+    @Override
+    public void reset() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        sequenceIndexLock.lock();
+        lock.lock();
+
+        try {
+            drainWriters();
+            if(sequencedHeader) {
+                // as for clear, this must be persisted before the generation changes.
+                baseSequence += recordsInEpoch();
+                persistBaseSequence();
+            }
+            resetPosition = Math.max(resetPosition, tailPosition());
+            buffer.position(firstRecordOffset());
+            tail.set(firstRecordOffset());
+            epoch++;
+            if(effectiveCommitWords) {
+                // the old records remain in place, so must be made stale, lest recovery or probing find them again.
+                // checkpoint persists the header, including the new generation.
+                advanceGeneration();
+            }
+            checkpoint();
+        } finally {
+            draining = false;
+            lock.unlock();
+            sequenceIndexLock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int remaining() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        int result;
+
+        lock.lock();
+        try {
+            result = buffer.capacity() - tailPosition();
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canAccept(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        boolean result;
+
+        lock.lock();
+        try {
+            result = canAcceptInternal(length);
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    private boolean canAcceptInternal(int length) {
+        boolean result;
+
+        int recordLength = length + PER_ENTRY_OVERHEAD;
+        int realignment = (length % effectivePaddingSize);
+        if(realignment != 0) {
+            recordLength += (effectivePaddingSize - realignment); // pad to int alignment
+        }
+
+        result = buffer.capacity() - tailPosition() - recordLength >= 0;
+        return result;
+    }
+
+    private int tailPosition() {
+        return effectiveLockFreeReservation ? tail.get() : buffer.position();
+    }
+
+    /**
+     * Housekeeping after records are written: wake any cursors waiting for them, then update the checkpoint
+     * if the records written since it was last updated span at least the checkpointInterval.
+     * This bounds the distance that recovery must walk when the log is reopened.
+     * <p>
+     * The checkpoint is updated by a task on the common fork-join pool, since the writer may be holding the lock,
+     * and shouldn't hold up the writers queued behind it whilst the header is persisted.
+     */
+    private void recordsWritten() {
+        signalTailers();
+
+        if(checkpointInterval == 0) {
+            return;
+        }
+
+        // the unlocked read of the tail is only a hint, so is checked again by the task, under the lock.
+        if(tailPosition() - checkpointPosition >= checkpointInterval && intervalCheckpointScheduled.compareAndSet(false, true)) {
+            ForkJoinPool.commonPool().execute(this::intervalCheckpoint);
+        }
+    }
+
+    /**
+     * Update the persistent checkpoint, if the records written since it was last updated still span at least the checkpointInterval.
+     * Run in the background on behalf of writers, by recordsWritten.
+     */
+    private void intervalCheckpoint() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        // cleared first, so that writes from here on can queue another task, rather than relying on this one to cover them.
+        intervalCheckpointScheduled.set(false);
+
+        lock.lock();
+        try {
+            if(tailPosition() - checkpointPosition >= checkpointInterval) {
+                checkpoint();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Wake cursors waiting for records, if there are any.
+     */
+    private void signalTailers() {
+        if(tailers.get() == 0) {
+            return;
+        }
+
+        tailLock.lock();
+        try {
+            tailVersion++;
+            tailAdvanced.signalAll();
+        } finally {
+            tailLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the end of the records on which readers tracking the tail of the log may rely. Must be called with the lock held.
+     * <p>
+     * Unlike that of an Iterator, this doesn't extend beyond the tail after a reset, since the records left there
+     * will be overwritten without the epoch changing.
+     *
+     * @return the position after the last published record.
+     */
+    private int publishedEnd() {
+        int end = tailPosition();
+        if(authoritativeCheckpointOnReads) {
+            end = Math.min(end, buffer.getInt(CHECKPOINT_OFFSET));
+        }
+        return end;
+    }
+
+    private byte[] magicHeader() {
+        if(effectiveCommitWords) {
+            return COMMIT_WORD_MAGIC_HEADER;
+        }
+        return sequencedHeader ? SEQUENCED_MAGIC_HEADER : MAGIC_HEADER;
+    }
+
+    private int firstRecordOffset() {
+        return sequencedHeader ? SEQUENCED_FIRST_RECORD_OFFSET : FIRST_RECORD_OFFSET;
+    }
+
+    private int logHeaderBytes() {
+        return sequencedHeader ? SEQUENCED_LOG_HEADER_BYTES : LOG_HEADER_BYTES;
+    }
+
+    /**
+     * Move to the next generation, invalidating all records written previously, and update the log header to match.
+     * The caller is responsible for persisting the header.
+     */
+    private void advanceGeneration() {
+        generation++;
+        if(generation == 0) {
+            // zero is what an unwritten commit word contains, so is never a valid generation.
+            generation++;
+        }
+        buffer.putInt(GENERATION_OFFSET, generation);
+    }
+
+    /**
+     * Persist the base sequence, ahead of the rest of the header. Must be called with the lock held.
+     * <p>
+     * Where a clear or reset is interrupted after this, the records from before it are numbered on from
+     * the new base, so are renumbered, but their numbers aren't reused for new records.
+     */
+    private void persistBaseSequence() {
+        buffer.putLong(BASE_SEQUENCE_OFFSET, baseSequence);
+        persistenceHandle.persist(BASE_SEQUENCE_OFFSET, LONG_SIZE);
+    }
+
+    private int orderingMode() {
+        if(effectiveLinearOrdering) {
+            return ORDERING_LINEAR;
+        }
+        return effectiveLockFreeReservation ? ORDERING_RELAXED_LOCK_FREE : ORDERING_RELAXED;
+    }
+
+    /**
+     * Calculates where a record starting at the given position would end, including its header and any padding.
+     * Computed as a long, so callers can test against the capacity without risk of overflow.
+     *
+     * @param recordStartPosition the position of the record header.
+     * @param payloadLength the size of the payload.
+     * @return the position immediately after the record.
+     */
+    private long recordEndPosition(long recordStartPosition, int payloadLength) {
+        long recordEndPosition = recordStartPosition + ENTRY_HEADER_SIZE + payloadLength;
+        long x = recordEndPosition % effectivePaddingSize;
+        if(x != 0) {
+            recordEndPosition += effectivePaddingSize - x;
+        }
+        return recordEndPosition;
+    }
+
+    private void padRecord() {
+        int x = buffer.position() % effectivePaddingSize;
+        if(x != 0) {
+            buffer.position(buffer.position() + (effectivePaddingSize - x));
+        }
+    }
+
+    /**
+     * Scan the log, optionally from a known-good point, and set the position to a point just after the
+     * last valid record.
+     */
+    private void recoverRecords() {
         if(logger.isTraceEnabled()) {
             logger.tracev("entry for {0}", this);
         }
@@ -606,13 +1875,29 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             buffer.position(checkpoint);
 
         } else {
-            Itr iter = new Itr(checkpoint != 0 ? checkpoint : FIRST_RECORD_OFFSET, false);
+            // until we know better, any of the space may have been claimed by lock-free writers,
+            // so allow the walk to skip holes all the way to the end.
+            tail.set(buffer.capacity());
+
+            int start = checkpoint != 0 ? checkpoint : firstRecordOffset();
+
+            if(parallelRecovery && !effectiveCommitWords) {
+                buffer.position(recoverRecordsInParallel(start));
+            } else {
+                Itr iter = new Itr(start, buffer.capacity(), false, false);
 
-            while(iter.hasNext()) {
-                iter.next();
+                while(iter.hasNext()) {
+                    iter.next();
+                }
+
+                buffer.position(iter.iterBuffer.position());
             }
+        }
+        tail.set(buffer.position());
+        checkpointPosition = checkpoint != 0 ? checkpoint : firstRecordOffset();
 
-            buffer.position(iter.iterBuffer.position());
+        if(effectiveLinearOrdering) {
+            indexRecoveredRecords();
         }
 
         if(logger.isTraceEnabled()) {
@@ -620,6 +1905,61 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         }
     }
 
+    /**
+     * Walk the records from the given position to find the end of the last valid one, as recoverRecords does,
+     * but validating their checksums in parallel.
+     * <p>
+     * The records must still be found one after another, since each is located by the length of the one before,
+     * but that needs only their headers. The checksums, which are the bulk of the work, are deferred to a batch
+     * validation on the common fork-join pool. The commit word format has no checksums, so gains nothing from this,
+     * and recoverRecords walks such logs sequentially instead.
+     *
+     * @param start the position of the first record to walk.
+     * @return the position just after the last valid record, or start if there is none.
+     */
+    private int recoverRecordsInParallel(int start) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with start={1}", this, start);
+        }
+
+        Itr iter = new Itr(start, buffer.capacity(), false, true);
+        int result = start;
+
+        ByteBuffer[] records = new ByteBuffer[RECOVERY_BATCH_SIZE];
+        int[] checksums = new int[RECOVERY_BATCH_SIZE];
+        int[] endPositions = new int[RECOVERY_BATCH_SIZE];
+        boolean[] valid = new boolean[RECOVERY_BATCH_SIZE];
+
+        int count;
+        do {
+            count = 0;
+            while(count < RECOVERY_BATCH_SIZE && iter.hasNext()) {
+                records[count] = iter.next();
+                checksums[count] = iter.lastChecksum;
+                endPositions[count] = iter.iterBuffer.position();
+                count++;
+            }
+
+            IntStream.range(0, count).parallel()
+                    .forEach(i -> valid[i] = ChecksumUtil.checksum(records[i]) == checksums[i]);
+
+            for(int i = 0; i < count; i++) {
+                if(valid[i]) {
+                    result = endPositions[i];
+                } else if(effectiveLinearOrdering) {
+                    // as with iteration, records after an invalid one don't count.
+                    count = 0;
+                    break;
+                }
+            }
+        } while(count == RECOVERY_BATCH_SIZE);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -638,12 +1978,10 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             throw illegalArgumentException;
         }
 
-        CRC32C crc32c = new CRC32C();
-
         ByteBuffer recordBuffer = buffer.duplicate();
         recordBuffer.position(location);
 
-        if(recordBuffer.remaining() < 4) {
+        if(recordBuffer.remaining() < ENTRY_HEADER_SIZE) {
             IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid record location " + location);
             if(logger.isTraceEnabled()) {
                 logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
@@ -651,6 +1989,26 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             throw illegalArgumentException;
         }
 
+        if(effectiveCommitWords) {
+            long commitWord = recordBuffer.getLong();
+            int length = (int) commitWord & ~COMMITTED_FLAG;
+            if(!isCommitWord(commitWord, generation) || ((int) commitWord & COMMITTED_FLAG) == 0 || length > recordBuffer.remaining()) {
+                IllegalStateException illegalStateException = new IllegalStateException("uncommitted record");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+
+            ByteBuffer dataBuffer = recordBuffer.slice();
+            dataBuffer.limit(length);
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", dataBuffer);
+            }
+            return dataBuffer;
+        }
+
         int length = recordBuffer.getInt();
 
         int expectedChecksum = recordBuffer.getInt();
@@ -658,23 +2016,332 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         dataBuffer.limit(length);
         recordBuffer.position(recordBuffer.position() + length);
 
-        crc32c.reset();
-        crc32c.update(dataBuffer); // this advances the src buffers position to its limit.
-        int actualChecksum = (int) crc32c.getValue();
-        dataBuffer.rewind();
+        int actualChecksum = ChecksumUtil.checksum(dataBuffer);
 
         if(actualChecksum != expectedChecksum) {
             IllegalStateException illegalStateException = new IllegalStateException("invalid checksum");
             if(logger.isTraceEnabled()) {
                 logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
             }
-            throw illegalStateException;
-        }
+            throw illegalStateException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", dataBuffer);
+        }
+        return dataBuffer;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sequence numbers are supported only in linear ordering mode, as otherwise records may become valid
+     * out of order, which would renumber those after them.
+     * Records left in place beyond the tail by a reset are not numbered.
+     * Where the log is in the original format, numbering instead restarts from zero on reset, until the log is cleared.
+     *
+     * @throws IllegalStateException if the log is not in linear ordering mode.
+     */
+    @Override
+    public ByteBuffer readRecord(long sequence) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with sequence={1}", this, sequence);
+        }
+
+        ByteBuffer result = null;
+        while(result == null) {
+            Itr itr = locateSequence(sequence, false);
+            try {
+                result = itr.next();
+            } catch (ConcurrentModificationException e) {
+                // the log was cleared or reset as we read it, so the index is stale. Start over.
+            }
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sequence numbers are supported only in linear ordering mode.
+     *
+     * @throws IllegalStateException if the log is not in linear ordering mode.
+     * @see #readRecord(long)
+     */
+    @Override
+    public Iterator<ByteBuffer> iteratorFrom(long sequence) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with sequence={1}", this, sequence);
+        }
+
+        Iterator<ByteBuffer> result = locateSequence(sequence, true);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Sequence numbers are supported only in linear ordering mode.
+     *
+     * @throws IllegalStateException if the log is not in linear ordering mode.
+     * @see #readRecord(long)
+     */
+    @Override
+    public long firstSequence() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        long result;
+
+        lock.lock();
+        try {
+            if(!effectiveLinearOrdering) {
+                IllegalStateException illegalStateException = new IllegalStateException("sequence numbers require linear ordering");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+            result = baseSequence;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Find the record with the given sequence number, via the nearest preceding index entry.
+     *
+     * @param sequence the sequence number of the record.
+     * @param allowEnd true if the sequence number may be that which the next record written will have.
+     * @return an Iterator positioned such that its next record is the one with the given sequence number.
+     */
+    private Itr locateSequence(long sequence, boolean allowEnd) {
+
+        while(true) {
+            Itr itr;
+            long skip;
+
+            sequenceIndexLock.lock();
+            try {
+                extendSequenceIndex(sequence);
+
+                long relativeSequence = sequence - sequenceIndexBase;
+                if(relativeSequence < 0 || relativeSequence > sequenceIndexRecords || (relativeSequence == sequenceIndexRecords && !allowEnd)) {
+                    IllegalArgumentException illegalArgumentException = new IllegalArgumentException
+                            ("invalid sequence number " + sequence + " for log containing " + sequenceIndexRecords
+                                    + " records from sequence number " + sequenceIndexBase);
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+                    }
+                    throw illegalArgumentException;
+                }
+
+                if(relativeSequence == sequenceIndexRecords) {
+                    itr = new Itr(sequenceIndexPosition, -1, false, false);
+                    skip = 0;
+                } else {
+                    itr = new Itr(sequenceIndexLocations[(int) (relativeSequence / SEQUENCE_INDEX_INTERVAL)], -1, false, false);
+                    skip = relativeSequence % SEQUENCE_INDEX_INTERVAL;
+                }
+            } finally {
+                sequenceIndexLock.unlock();
+            }
+
+            try {
+                // an Iterator from a later epoch than the index may not start at a record, so would read garbage.
+                itr.checkForReset(sequenceIndexEpoch);
+                for(long i = 0; i < skip; i++) {
+                    itr.next();
+                }
+                return itr;
+            } catch (ConcurrentModificationException e) {
+                // cleared or reset since the index was extended. Start over.
+            }
+        }
+    }
+
+    /**
+     * Walk the records not yet indexed, up to and including the one with the given sequence number if it exists.
+     * Must be called with the sequenceIndexLock held.
+     *
+     * @param sequence the sequence number to index up to.
+     */
+    private void extendSequenceIndex(long sequence) {
+
+        while(true) {
+            int end;
+            int currentEpoch;
+            long currentBaseSequence;
+            boolean linearOrdering;
+            lock.lock();
+            try {
+                end = publishedEnd();
+                currentEpoch = epoch;
+                currentBaseSequence = baseSequence;
+                linearOrdering = effectiveLinearOrdering;
+            } finally {
+                lock.unlock();
+            }
+
+            if(!linearOrdering) {
+                IllegalStateException illegalStateException = new IllegalStateException("sequence numbers require linear ordering");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+
+            if(currentEpoch != sequenceIndexEpoch) {
+                sequenceIndexBase = currentBaseSequence;
+                sequenceIndexRecords = 0;
+                sequenceIndexPosition = firstRecordOffset();
+                sequenceIndexEpoch = currentEpoch;
+            }
+
+            try {
+                Itr itr = new Itr(sequenceIndexPosition, Math.max(end, sequenceIndexPosition), false, false);
+                itr.checkForReset(sequenceIndexEpoch);
+                while(sequenceIndexBase + sequenceIndexRecords <= sequence && itr.hasNext()) {
+                    indexNextRecord(itr);
+                }
+                return;
+            } catch (ConcurrentModificationException e) {
+                // cleared or reset during the walk. The next pass will find the new epoch and start over.
+            }
+        }
+    }
+
+    /**
+     * Add the next record of the given Iterator to the sequence index.
+     * Must be called with the sequenceIndexLock held, or before the log is visible to other threads.
+     *
+     * @param itr an Iterator positioned at the sequenceIndexPosition.
+     */
+    private void indexNextRecord(Itr itr) {
+        // in linear ordering mode, the iterator doesn't skip invalid records, so the next one starts here.
+        int location = itr.iterBuffer.position();
+        itr.next();
+        if(sequenceIndexRecords % SEQUENCE_INDEX_INTERVAL == 0) {
+            int index = (int) (sequenceIndexRecords / SEQUENCE_INDEX_INTERVAL);
+            if(index == sequenceIndexLocations.length) {
+                sequenceIndexLocations = Arrays.copyOf(sequenceIndexLocations, index * 2);
+            }
+            sequenceIndexLocations[index] = location;
+        }
+        sequenceIndexRecords++;
+        sequenceIndexPosition = itr.iterBuffer.position();
+    }
+
+    /**
+     * Count the records numbered in the current epoch, extending the sequence index over any not yet walked.
+     * Must be called with both the sequenceIndexLock and the lock held, so neither can move on meanwhile.
+     *
+     * @return the number of records, or 0 if the log is not in linear ordering mode, which doesn't number them.
+     */
+    private long recordsInEpoch() {
+        if(!effectiveLinearOrdering) {
+            return 0;
+        }
+        extendSequenceIndex(Long.MAX_VALUE);
+        return sequenceIndexRecords;
+    }
+
+    /**
+     * Build the sequence index over the records found by recovery, so that the first lookup needn't walk the whole log.
+     * Recovery has already validated the records, or trusts the checkpoint for those before it, so only their headers are read.
+     * Called from the constructor, before the log is visible to other threads, so the sequenceIndexLock isn't needed.
+     */
+    private void indexRecoveredRecords() {
+        sequenceIndexBase = baseSequence;
+        sequenceIndexRecords = 0;
+        sequenceIndexPosition = firstRecordOffset();
+        sequenceIndexEpoch = epoch;
+
+        Itr itr = new Itr(sequenceIndexPosition, Math.max(publishedEnd(), sequenceIndexPosition), false, true);
+        while(itr.hasNext()) {
+            indexNextRecord(itr);
+        }
+    }
+
+    /**
+     * Returns a cursor positioned at the start of the log, which follows the tail as records are appended.
+     * <p>
+     * Cursors are supported only in linear ordering mode, as otherwise a record may become valid after the ones
+     * following it have been returned, so would be missed.
+     *
+     * @return a new cursor.
+     * @throws IllegalStateException if the log is not in linear ordering mode.
+     */
+    public AppendOnlyLogCursor cursor() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        AppendOnlyLogCursor result = new Cursor();
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a Publisher of the records in the log, from the start, followed by those appended later.
+     * <p>
+     * Each Subscriber reads via its own cursor, on a task run by the given Executor when it has outstanding demand.
+     * The task waits for records to be written, so should have a thread of its own rather than one shared with
+     * other work. Records are delivered as read-only views onto the log. The Publisher never completes,
+     * but fails with a ConcurrentModificationException if the log is cleared or reset.
+     *
+     * @param executor the Executor on which to read from the log and deliver records to Subscribers.
+     * @return a Publisher of the log's records.
+     * @see #cursor()
+     */
+    public Flow.Publisher<ByteBuffer> publisher(Executor executor) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with executor={1}", this, executor);
+        }
+
+        Flow.Publisher<ByteBuffer> result = subscriber -> {
+            Cursor cursor;
+            try {
+                cursor = new Cursor();
+            } catch (IllegalStateException e) {
+                // the rules require onSubscribe before onError, even where there's nothing to subscribe to.
+                subscriber.onSubscribe(new Flow.Subscription() {
+                    @Override
+                    public void request(long n) {
+                    }
+
+                    @Override
+                    public void cancel() {
+                    }
+                });
+                subscriber.onError(e);
+                return;
+            }
+            TailSubscription subscription = new TailSubscription(cursor, subscriber, executor);
+            subscriber.onSubscribe(subscription);
+        };
 
         if(logger.isTraceEnabled()) {
-            logger.tracev("exit returning {0}", dataBuffer);
+            logger.tracev("exit returning {0}", result);
         }
-        return dataBuffer;
+        return result;
     }
 
     /**
@@ -686,7 +2353,7 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             logger.tracev("entry for {0}", this);
         }
 
-        Iterator<ByteBuffer> result = new Itr(FIRST_RECORD_OFFSET, false);
+        Iterator<ByteBuffer> result = new Itr(false, false);
 
         if(logger.isTraceEnabled()) {
             logger.tracev("exit returning {0}", result);
@@ -703,7 +2370,31 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             logger.tracev("entry for {0}", this);
         }
 
-        Iterator<ByteBuffer> result = new Itr(FIRST_RECORD_OFFSET, true);
+        Iterator<ByteBuffer> result = new Itr(true, false);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The Spliterator covers the same records as {@link #iterator()}, returning the same read-only views onto the log.
+     * In relaxed ordering mode, when split, it walks just the record headers to find where records start, deferring checksum
+     * validation to the split off part, so that validation of a large log can proceed in parallel. Records failing it are skipped.
+     * In linear ordering mode, the log ends at the first record failing validation, as for iteration, so splitting validates
+     * the records as it walks them, lest a later part return records beyond that end. Only the processing of the records,
+     * not their validation, then proceeds in parallel.
+     */
+    @Override
+    public Spliterator<ByteBuffer> spliterator() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        Spliterator<ByteBuffer> result = new Spliter(new Itr(false, true));
 
         if(logger.isTraceEnabled()) {
             logger.tracev("exit returning {0}", result);
@@ -711,11 +2402,24 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         return result;
     }
 
+    /*
+     * Iterators take the lock only on creation, to snapshot the tail position and the record format.
+     * Thereafter they walk the records up to that tail without locking, so don't hold up concurrent writers.
+     * Records appended after the Iterator is created are not returned. A clear or reset is detected by
+     * checking the epoch both before and after reading each record, since the read may otherwise race with it.
+     */
     private class Itr implements Iterator<ByteBuffer> {
 
         private final ByteBuffer iterBuffer;
         private final int expectedEpoch;
 
+        // snapshots of the log's state, which may change only on clear or reset, i.e. with the epoch.
+        private final boolean commitWords;
+        private final int generation;
+        private final int paddingSize;
+        private final boolean linearOrdering;
+        private final boolean lockFreeReservation;
+
         private final CRC32C crc32c = new CRC32C();
 
         private ByteBuffer lookahead;
@@ -723,17 +2427,48 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
 
         private final boolean returnCopies;
 
-        private Itr(int offset, boolean returnCopies) {
+        // if true, checksums are left for the caller to validate, except where probing for a record.
+        private final boolean deferChecksums;
+        private int lookaheadChecksum;
+        private int lastChecksum;
+
+        private Itr(boolean returnCopies, boolean deferChecksums) {
+            this(-1, -1, returnCopies, deferChecksums);
+        }
+
+        /**
+         * @param offset the position of the first record, or -1 for the start of the log.
+         * @param end the position at which to stop, or -1 for the tail of the log.
+         * @param returnCopies true if records should be copied out of the log, false for views onto it.
+         * @param deferChecksums true if checksums should be left for the caller to validate, false otherwise.
+         */
+        private Itr(int offset, int end, boolean returnCopies, boolean deferChecksums) {
             if(logger.isTraceEnabled()) {
-                logger.tracev("entry with offset={0}, returnCopies={1}", offset, returnCopies);
+                logger.tracev("entry with offset={0}, end={1}, returnCopies={2}, deferChecksums={3}",
+                        offset, end, returnCopies, deferChecksums);
             }
 
             lock.lock();
             try {
+                if(end == -1) {
+                    end = tailPosition();
+                    if(authoritativeCheckpointOnReads) {
+                        end = Math.min(end, buffer.getInt(CHECKPOINT_OFFSET));
+                    } else {
+                        end = Math.max(end, resetPosition);
+                    }
+                }
                 this.iterBuffer = buffer.duplicate();
-                this.iterBuffer.position(offset);
+                this.iterBuffer.limit(Math.max(end, firstRecordOffset()));
+                this.iterBuffer.position(offset == -1 ? firstRecordOffset() : offset);
                 this.expectedEpoch = epoch;
+                this.commitWords = effectiveCommitWords;
+                this.generation = AppendOnlyLogImpl.this.generation;
+                this.paddingSize = effectivePaddingSize;
+                this.linearOrdering = effectiveLinearOrdering;
+                this.lockFreeReservation = effectiveLockFreeReservation;
                 this.returnCopies = returnCopies;
+                this.deferChecksums = deferChecksums;
             } finally {
                 lock.unlock();
             }
@@ -752,28 +2487,21 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
                 logger.tracev("entry for {0}", this);
             }
 
-            boolean result = false;
+            checkForReset();
 
-            lock.lock();
-            try {
+            // the only way to know for sure if there is another entry, is to attempt to read it
+            // we cache the result, so that a subsequent next() call doesn't need to repeat the work
+            // we don't cache failure, so repeatedly calling hasNext after it returns false is expensive,
+            // but should also be rare
 
+            if(lookahead == null) {
+                lookahead();
+                // the log may have been cleared whilst we were reading it, in which case the result is garbage.
                 checkForReset();
-
-                // the only way to know for sure if there is another entry, is to attempt to read it
-                // we cache the result, so that a subsequent next() call doesn't need to repeat the work
-                // we don't cache failure, so repeatedly calling hasNext after it returns false is expensive,
-                // but should also be rare
-
-                if(lookahead == null) {
-                    lookahead();
-                }
-
-                result = lookahead != null;
-
-            } finally {
-                lock.unlock();
             }
 
+            boolean result = lookahead != null;
+
             if(logger.isTraceEnabled()) {
                 logger.tracev("exit returning {0}", result);
             }
@@ -796,37 +2524,28 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
                 logger.tracev("entry for {0}", this);
             }
 
-            ByteBuffer result = null;
-
-            lock.lock();
-            try {
-
-                checkForReset();
-
-                if(!hasNext()) {
-                    NoSuchElementException noSuchElementException = new NoSuchElementException();
-                    if(logger.isTraceEnabled()) {
-                        logger.tracev(noSuchElementException, "throwing {0}", noSuchElementException.toString());
-                    }
-                    throw noSuchElementException;
-                }
-
-                // hasNext did the heavy lifting, but is idempotent, so we still need to update the iterator state
-                result = lookahead;
-                iterBuffer.position(lookaheadPos);
-                lookahead = null;
-                lookaheadPos = 0;
-
-                if(returnCopies) {
-                    ByteBuffer view = result;
-                    result = ByteBuffer.allocate(view.remaining());
-                    result.put(view);
-                    result.rewind();
+            if(!hasNext()) {
+                NoSuchElementException noSuchElementException = new NoSuchElementException();
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(noSuchElementException, "throwing {0}", noSuchElementException.toString());
                 }
+                throw noSuchElementException;
+            }
 
-
-            } finally {
-                lock.unlock();
+            // hasNext did the heavy lifting, but is idempotent, so we still need to update the iterator state
+            ByteBuffer result = lookahead;
+            iterBuffer.position(lookaheadPos);
+            lastChecksum = lookaheadChecksum;
+            lookahead = null;
+            lookaheadPos = 0;
+
+            if(returnCopies) {
+                ByteBuffer view = result;
+                result = ByteBuffer.allocate(view.remaining());
+                result.put(view);
+                result.rewind();
+                // as with the lookahead, the copy is good only if the log wasn't cleared whilst we were making it.
+                checkForReset();
             }
 
             if(logger.isTraceEnabled()) {
@@ -846,57 +2565,102 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             int originalPosition = iterBuffer.position();
             ByteBuffer byteBuffer = null;
 
-            if(authoritativeCheckpointOnReads && originalPosition >= buffer.getInt(CHECKPOINT_OFFSET)) {
-                return;
-            }
-
             try {
 
+                boolean valid = false;
+                boolean probing = false;
+
                 do {
 
-                    if(iterBuffer.remaining() < 4) {
+                    if(iterBuffer.remaining() < ENTRY_HEADER_SIZE) {
                         if(logger.isTraceEnabled()) {
                             logger.tracev("exit");
                         }
                         return;
                     }
 
-                    int length = iterBuffer.getInt();
-                    if(length == 0) {
+                    int recordStartPosition = iterBuffer.position();
+                    int length;
+                    int expectedChecksum = 0;
+                    boolean committed = false;
+                    if(commitWords) {
+                        long commitWord = iterBuffer.getLong();
+                        // an unwritten commit word, a stale one from before a reset, or payload bytes reached by probing,
+                        // won't (other than by a 1 in 2^32 chance) have a check value matching the generation.
+                        length = isCommitWord(commitWord, generation) ? ((int) commitWord & ~COMMITTED_FLAG) : 0;
+                        committed = ((int) commitWord & COMMITTED_FLAG) != 0;
+                    } else {
+                        length = iterBuffer.getInt();
+                        expectedChecksum = iterBuffer.getInt();
+                    }
+                    if(length <= 0 || length > iterBuffer.remaining()) {
+                        // either the end of the log, or in lock-free reservation mode possibly a hole left by
+                        // a writer that claimed space but did not (yet) fill it. Holes are skipped by probing each
+                        // following aligned position for a valid record, up to the furthest point claimed.
+                        if(lockFreeReservation && skipToNextCandidate(recordStartPosition)) {
+                            probing = true;
+                            continue;
+                        }
                         if(logger.isTraceEnabled()) {
                             logger.tracev("exit");
                         }
                         return;
                     }
-                    int expectedChecksum = iterBuffer.getInt();
                     byteBuffer = iterBuffer.slice();
                     byteBuffer.limit(length);
                     iterBuffer.position(iterBuffer.position() + length);
 
-                    crc32c.reset();
-                    crc32c.update(byteBuffer); // this advances the src buffers position to its limit.
-                    int actualChecksum = (int) crc32c.getValue();
-                    byteBuffer.rewind();
+                    boolean intact;
+                    if(commitWords) {
+                        // no hashing required, the commit word was persisted only after the payload was.
+                        intact = committed;
+                    } else if(deferChecksums && !probing) {
+                        // the header is known to be a real one, so its length can be trusted without the checksum.
+                        intact = true;
+                    } else {
+                        crc32c.reset();
+                        crc32c.update(byteBuffer); // this advances the src buffers position to its limit.
+                        int actualChecksum = (int) crc32c.getValue();
+                        byteBuffer.rewind();
+                        intact = actualChecksum == expectedChecksum;
+                    }
 
-                    int realignment = (iterBuffer.position() % effectivePaddingSize);
+                    int realignment = (iterBuffer.position() % paddingSize);
                     if(realignment != 0) {
-                        iterBuffer.position(iterBuffer.position() + (effectivePaddingSize - realignment));
+                        iterBuffer.position(Math.min(iterBuffer.position() + (paddingSize - realignment), iterBuffer.limit()));
                     }
 
-                    if(actualChecksum == expectedChecksum) {
+                    if(intact) {
+                        valid = true;
+                        lookaheadChecksum = expectedChecksum;
                         break; // found a valid entry, so we're done
                     }
 
-                    if(isEffectiveLinearOrdering()) {
+                    if(linearOrdering) {
                         if(logger.isTraceEnabled()) {
                             logger.tracev("exit");
                         }
                         return; // entry is invalid, but we're not configured to skip bad ones
                     }
 
+                    if(probing && !skipToNextCandidate(recordStartPosition)) {
+                        // the length we read was not from a real record header, so we can't trust it to skip by.
+                        if(logger.isTraceEnabled()) {
+                            logger.tracev("exit");
+                        }
+                        return;
+                    }
+
                     // keep looking, there may be good entries after the invalid one(s)...
                 } while(iterBuffer.hasRemaining());
 
+                if(!valid) {
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev("exit");
+                    }
+                    return;
+                }
+
 
                 lookahead = byteBuffer.asReadOnlyBuffer();
                 lookaheadPos = iterBuffer.position();
@@ -910,11 +2674,36 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
             }
         }
 
+        /**
+         * Position the iterBuffer at the next aligned location after the given one that may hold a record,
+         * provided it is within the space claimed by writers when the iterator was created.
+         *
+         * @param failedPosition the location that did not hold a valid record.
+         * @return true if a candidate location remains, false otherwise.
+         */
+        private boolean skipToNextCandidate(int failedPosition) {
+            int candidatePosition = failedPosition + paddingSize - (failedPosition % paddingSize);
+            if(candidatePosition >= iterBuffer.limit()) {
+                return false;
+            }
+            iterBuffer.position(candidatePosition);
+            return true;
+        }
+
         /**
          * Throw an Exception if the log has been cleared since the iterator was created
          */
         private void checkForReset() {
-            if(epoch != expectedEpoch) {
+            checkForReset(epoch);
+        }
+
+        /**
+         * Throw an Exception if the given epoch is not that in which the iterator was created
+         *
+         * @param currentEpoch the epoch to compare against.
+         */
+        private void checkForReset(int currentEpoch) {
+            if(currentEpoch != expectedEpoch) {
                 ConcurrentModificationException concurrentModificationException = new ConcurrentModificationException("Log cleared after iterator creation");
                 if(logger.isTraceEnabled()) {
                     logger.tracev(concurrentModificationException, "throwing {0}",
@@ -925,4 +2714,381 @@ public class AppendOnlyLogImpl implements AppendOnlyLogWithLocation {
         }
 
     }
+
+    /*
+     * Cursors read by creating an Itr from where they last stopped, up to the published end of the log.
+     * They wait for more records using the version protocol: the tailVersion is read before looking for records,
+     * and if none are found, the cursor waits until it changes. Since cursors register as waiting before reading it,
+     * a writer publishing a record the cursor didn't see will find it registered, so bump the version.
+     */
+    private class Cursor implements AppendOnlyLogCursor {
+
+        private final int expectedEpoch;
+        private int position;
+        private volatile boolean closed = false;
+
+        private Cursor() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry");
+            }
+
+            lock.lock();
+            try {
+                if(!effectiveLinearOrdering) {
+                    IllegalStateException illegalStateException = new IllegalStateException("cursors require linear ordering");
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                    }
+                    throw illegalStateException;
+                }
+                expectedEpoch = epoch;
+                position = firstRecordOffset();
+            } finally {
+                lock.unlock();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit {0}", this);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized List<ByteBuffer> poll(int maxRecords) {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0} with maxRecords={1}", this, maxRecords);
+            }
+
+            if(maxRecords <= 0) {
+                IllegalArgumentException illegalArgumentException = new IllegalArgumentException("maxRecords must be greater than zero");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+                }
+                throw illegalArgumentException;
+            }
+
+            List<ByteBuffer> result = new ArrayList<>();
+            if(!closed) {
+                int end;
+                lock.lock();
+                try {
+                    end = publishedEnd();
+                } finally {
+                    lock.unlock();
+                }
+
+                // an Itr from a later epoch is checked against ours, so the end and position are known to be from it.
+                Itr itr = new Itr(position, Math.max(end, position), false, false);
+                itr.checkForReset(expectedEpoch);
+                while(result.size() < maxRecords && itr.hasNext()) {
+                    result.add(itr.next());
+                }
+                position = itr.iterBuffer.position();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", result);
+            }
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public List<ByteBuffer> take(int maxRecords, long timeout, TimeUnit unit) throws InterruptedException {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0} with maxRecords={1}, timeout={2}, unit={3}", this, maxRecords, timeout, unit);
+            }
+
+            long remainingNanos = unit.toNanos(timeout);
+            List<ByteBuffer> result;
+
+            tailers.incrementAndGet();
+            try {
+                while(true) {
+                    long version;
+                    tailLock.lock();
+                    try {
+                        version = tailVersion;
+                    } finally {
+                        tailLock.unlock();
+                    }
+
+                    result = poll(maxRecords);
+                    if(!result.isEmpty() || closed) {
+                        break;
+                    }
+
+                    tailLock.lock();
+                    try {
+                        while(version == tailVersion && !closed && remainingNanos > 0) {
+                            remainingNanos = tailAdvanced.awaitNanos(remainingNanos);
+                        }
+                    } finally {
+                        tailLock.unlock();
+                    }
+
+                    if(remainingNanos <= 0) {
+                        // one last look, in case the wait timed out just as a record arrived.
+                        result = poll(maxRecords);
+                        break;
+                    }
+                }
+            } finally {
+                tailers.decrementAndGet();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", result);
+            }
+            return result;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void close() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0}", this);
+            }
+
+            closed = true;
+
+            tailLock.lock();
+            try {
+                tailAdvanced.signalAll();
+            } finally {
+                tailLock.unlock();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit");
+            }
+        }
+    }
+
+    /*
+     * Delivers records from a Cursor to a Flow.Subscriber, respecting its demand.
+     * At most one delivery task is scheduled at a time, and it runs until the demand is met or the subscription cancelled.
+     * Demand arriving as the task finishes is caught by its re-check after clearing the scheduled flag.
+     * Every signal to the subscriber comes from the task, so an invalid request is recorded and signalled from there too.
+     */
+    private static class TailSubscription implements Flow.Subscription, Runnable {
+
+        // the most records read from the log in one go, bounding the delay before the first is delivered.
+        private static final int BATCH_SIZE = 64;
+
+        private final Cursor cursor;
+        private final Flow.Subscriber<? super ByteBuffer> subscriber;
+        private final Executor executor;
+
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private volatile boolean cancelled = false;
+        private volatile Throwable pendingError = null;
+
+        private TailSubscription(Cursor cursor, Flow.Subscriber<? super ByteBuffer> subscriber, Executor executor) {
+            this.cursor = cursor;
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void request(long n) {
+            if(n <= 0) {
+                // the subscriber may be mid-onNext, so can't be signalled from here. Closing the cursor wakes a waiting task.
+                if(pendingError == null) {
+                    pendingError = new IllegalArgumentException("non-positive request " + n);
+                }
+                cursor.close();
+                schedule();
+                return;
+            }
+
+            // saturate rather than overflow, as a demand of Long.MAX_VALUE is effectively unbounded.
+            demand.getAndAccumulate(n, (current, increment) -> current + increment < 0 ? Long.MAX_VALUE : current + increment);
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            cursor.close();
+        }
+
+        private void schedule() {
+            if(!cancelled && (demand.get() > 0 || pendingError != null) && scheduled.compareAndSet(false, true)) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(!cancelled && pendingError == null && demand.get() > 0) {
+                    List<ByteBuffer> records = cursor.take((int) Math.min(demand.get(), BATCH_SIZE), Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+                    for(ByteBuffer record : records) {
+                        if(cancelled || pendingError != null) {
+                            break;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(record);
+                    }
+                }
+                if(!cancelled && pendingError != null) {
+                    cancel();
+                    subscriber.onError(pendingError);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                subscriber.onError(e);
+            } catch (ConcurrentModificationException e) {
+                cancel();
+                subscriber.onError(e);
+            } finally {
+                scheduled.set(false);
+            }
+
+            schedule();
+        }
+    }
+
+    /*
+     * A Spliterator driven by an Itr which defers checksum validation. The Itr's walk of the headers is cheap,
+     * so splitting walks the first half of the remaining range and hands off the records found for validation.
+     * In linear ordering mode, the walk instead validates each record, stopping at the first invalid one,
+     * so that, as for the Itr without deferral, nothing beyond it is returned.
+     */
+    private class Spliter implements Spliterator<ByteBuffer> {
+
+        private final Itr itr;
+
+        // set on reaching an invalid record in linear ordering mode, which ends the log.
+        private boolean ended = false;
+
+        private Spliter(Itr itr) {
+            this.itr = itr;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            while(!ended && itr.hasNext()) {
+                ByteBuffer record = itr.next();
+                if(itr.commitWords || ChecksumUtil.checksum(record) == itr.lastChecksum) {
+                    itr.checkForReset();
+                    action.accept(record);
+                    return true;
+                }
+                ended = itr.linearOrdering;
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            int position = itr.iterBuffer.position();
+            int remaining = itr.iterBuffer.limit() - position;
+            if(ended || remaining < 2 * MIN_SPLIT_BYTES) {
+                return null;
+            }
+
+            // commit words are validated by the Itr itself, so only checksums may be left to check.
+            boolean validateNow = itr.linearOrdering && !itr.commitWords;
+
+            int splitPosition = position + remaining / 2;
+            ByteBuffer[] records = new ByteBuffer[16];
+            int[] checksums = new int[records.length];
+            int count = 0;
+            // before hasNext, the position is that of the next record, or the point from which to look for one.
+            while(itr.iterBuffer.position() < splitPosition && itr.hasNext()) {
+                if(count == records.length) {
+                    records = Arrays.copyOf(records, count * 2);
+                    checksums = Arrays.copyOf(checksums, count * 2);
+                }
+                ByteBuffer record = itr.next();
+                if(validateNow && ChecksumUtil.checksum(record) != itr.lastChecksum) {
+                    ended = true;
+                    break;
+                }
+                records[count] = record;
+                checksums[count] = itr.lastChecksum;
+                count++;
+            }
+
+            if(count == 0) {
+                return null;
+            }
+            return new BatchSpliter(itr, records, validateNow ? null : checksums, 0, count);
+        }
+
+        @Override
+        public long estimateSize() {
+            return Long.MAX_VALUE;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
+
+    /*
+     * Records split off by a Spliter, along with their expected checksums, or null if they were validated already.
+     * Records found by probing were validated already, but are so rare that doing it again is harmless.
+     */
+    private static class BatchSpliter implements Spliterator<ByteBuffer> {
+
+        private final Itr itr;
+        private final ByteBuffer[] records;
+        private final int[] checksums;
+        private int index;
+        private final int end;
+
+        private BatchSpliter(Itr itr, ByteBuffer[] records, int[] checksums, int index, int end) {
+            this.itr = itr;
+            this.records = records;
+            this.checksums = checksums;
+            this.index = index;
+            this.end = end;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            while(index < end) {
+                int i = index++;
+                if(checksums == null || itr.commitWords || ChecksumUtil.checksum(records[i]) == checksums[i]) {
+                    itr.checkForReset();
+                    action.accept(records[i]);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            int mid = (index + end) >>> 1;
+            if(mid <= index) {
+                return null;
+            }
+            Spliterator<ByteBuffer> result = new BatchSpliter(itr, records, checksums, index, mid);
+            index = mid;
+            return result;
+        }
+
+        @Override
+        public long estimateSize() {
+            return end - index;
+        }
+
+        @Override
+        public int characteristics() {
+            return Spliterator.ORDERED | Spliterator.NONNULL;
+        }
+    }
 }
@@ -24,12 +24,18 @@ public class AppendOnlyLogImplConfig {
     private final boolean linearOrdering;
     private final boolean alwaysCheckpoint;
     private final boolean authoritativeCheckpointOnReads;
+    private final boolean lockFreeReservation;
+    private final boolean groupCommit;
+    private final boolean commitWords;
+    private final boolean parallelRecovery;
+    private final int checkpointInterval;
 
     /**
      * Creates a new configuration object for an AppendOnlyLog.
      *
      * <p>Note that setting alwaysCheckpoint=true requires also that linearOrdering=true.</p>
      * <p>Do not set authoritativeCheckpointOnReads=true when opening an existing log file, unless it was written with alwaysCheckpoint=true.</p>
+     * <p>For the other options, use a {@link Builder}.</p>
      *
      * @param blockPadding true if extra space should be used to increase performance, or false for a slower but more compact record format.
      * @param linearOrdering true if strict serial ordering of writes is required, false for more relaxed ordering guarantees.
@@ -41,15 +47,171 @@ public class AppendOnlyLogImplConfig {
      */
     public AppendOnlyLogImplConfig(boolean blockPadding, boolean linearOrdering,
                                    boolean alwaysCheckpointWrites, boolean authoritativeCheckpointOnReads) {
+        this(builder()
+                .blockPadding(blockPadding)
+                .linearOrdering(linearOrdering)
+                .alwaysCheckpoint(alwaysCheckpointWrites)
+                .authoritativeCheckpointOnReads(authoritativeCheckpointOnReads));
+    }
+
+    private AppendOnlyLogImplConfig(Builder builder) {
 
-        if(alwaysCheckpointWrites && !linearOrdering) {
+        if(builder.alwaysCheckpoint && !builder.linearOrdering) {
             throw new IllegalArgumentException("linearOrdering must be true when alwaysCheckpoint is enabled");
         }
 
-        this.blockPadding = blockPadding;
-        this.linearOrdering = linearOrdering;
-        this.alwaysCheckpoint = alwaysCheckpointWrites;
-        this.authoritativeCheckpointOnReads = authoritativeCheckpointOnReads;
+        if(builder.lockFreeReservation && builder.linearOrdering) {
+            throw new IllegalArgumentException("linearOrdering must be false when lockFreeReservation is enabled");
+        }
+
+        if(builder.groupCommit && !builder.linearOrdering) {
+            throw new IllegalArgumentException("linearOrdering must be true when groupCommit is enabled");
+        }
+
+        if(builder.checkpointInterval < 0) {
+            throw new IllegalArgumentException("checkpointInterval must not be negative");
+        }
+
+        this.blockPadding = builder.blockPadding;
+        this.linearOrdering = builder.linearOrdering;
+        this.alwaysCheckpoint = builder.alwaysCheckpoint;
+        this.authoritativeCheckpointOnReads = builder.authoritativeCheckpointOnReads;
+        this.lockFreeReservation = builder.lockFreeReservation;
+        this.groupCommit = builder.groupCommit;
+        this.commitWords = builder.commitWords;
+        this.parallelRecovery = builder.parallelRecovery;
+        this.checkpointInterval = builder.checkpointInterval;
+    }
+
+    /**
+     * Creates a builder for a configuration object, with every option initially false or 0.
+     *
+     * @return a new Builder.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Accumulates the options for a configuration object, which are validated together when it's built.
+     *
+     * <p>Note that setting alwaysCheckpoint=true or groupCommit=true requires also that linearOrdering=true.</p>
+     * <p>Note that setting lockFreeReservation=true requires that linearOrdering=false.</p>
+     * <p>Do not set authoritativeCheckpointOnReads=true when opening an existing log file, unless it was written with alwaysCheckpoint=true.</p>
+     */
+    public static class Builder {
+
+        private boolean blockPadding;
+        private boolean linearOrdering;
+        private boolean alwaysCheckpoint;
+        private boolean authoritativeCheckpointOnReads;
+        private boolean lockFreeReservation;
+        private boolean groupCommit;
+        private boolean commitWords;
+        private boolean parallelRecovery;
+        private int checkpointInterval;
+
+        private Builder() {
+        }
+
+        /**
+         * @param blockPadding true if extra space should be used to increase performance, or false for a slower but more compact record format.
+         * @return this Builder.
+         */
+        public Builder blockPadding(boolean blockPadding) {
+            this.blockPadding = blockPadding;
+            return this;
+        }
+
+        /**
+         * @param linearOrdering true if strict serial ordering of writes is required, false for more relaxed ordering guarantees.
+         * @return this Builder.
+         */
+        public Builder linearOrdering(boolean linearOrdering) {
+            this.linearOrdering = linearOrdering;
+            return this;
+        }
+
+        /**
+         * @param alwaysCheckpoint true if automatic checkpointing of writes is required, false otherwise.
+         * @return this Builder.
+         */
+        public Builder alwaysCheckpoint(boolean alwaysCheckpoint) {
+            this.alwaysCheckpoint = alwaysCheckpoint;
+            return this;
+        }
+
+        /**
+         * @param authoritativeCheckpointOnReads true if the persistent checkpoint (limit) in the file should be used when reading back the log,
+         *                                       false if the entries should be walked instead.
+         * @return this Builder.
+         */
+        public Builder authoritativeCheckpointOnReads(boolean authoritativeCheckpointOnReads) {
+            this.authoritativeCheckpointOnReads = authoritativeCheckpointOnReads;
+            return this;
+        }
+
+        /**
+         * @param lockFreeReservation true if space for writes should be claimed with an atomic update rather than under a lock,
+         *                            false to use the lock.
+         * @return this Builder.
+         */
+        public Builder lockFreeReservation(boolean lockFreeReservation) {
+            this.lockFreeReservation = lockFreeReservation;
+            return this;
+        }
+
+        /**
+         * @param groupCommit true if concurrent writes should be combined, sharing a single persist (and checkpoint),
+         *                    false if each write should be persisted individually.
+         * @return this Builder.
+         */
+        public Builder groupCommit(boolean groupCommit) {
+            this.groupCommit = groupCommit;
+            return this;
+        }
+
+        /**
+         * @param commitWords true if records should be validated by a commit word persisted after the payload,
+         *                    false if they should be validated by a checksum of the payload.
+         * @return this Builder.
+         */
+        public Builder commitWords(boolean commitWords) {
+            this.commitWords = commitWords;
+            return this;
+        }
+
+        /**
+         * @param parallelRecovery true if records beyond the checkpoint should be validated in parallel when opening an existing log,
+         *                         false to validate them one after another. Ignored for logs in the commit word format,
+         *                         which have no checksums to validate, so are always walked sequentially.
+         * @return this Builder.
+         */
+        public Builder parallelRecovery(boolean parallelRecovery) {
+            this.parallelRecovery = parallelRecovery;
+            return this;
+        }
+
+        /**
+         * @param checkpointInterval the number of bytes of records after which writes should automatically update the checkpoint,
+         *                           bounding the work of recovery, or 0 to leave checkpointing to the caller. Must not be negative.
+         *                           The update is made by a task on the common fork-join pool, so as not to delay the writer.
+         * @return this Builder.
+         */
+        public Builder checkpointInterval(int checkpointInterval) {
+            this.checkpointInterval = checkpointInterval;
+            return this;
+        }
+
+        /**
+         * Creates a configuration object from the options set so far.
+         *
+         * @return a new configuration object.
+         * @throws IllegalArgumentException if an unsupported combination of settings is used.
+         */
+        public AppendOnlyLogImplConfig build() {
+            return new AppendOnlyLogImplConfig(this);
+        }
     }
 
     /**
@@ -89,6 +251,56 @@ public class AppendOnlyLogImplConfig {
         return authoritativeCheckpointOnReads;
     }
 
+    /**
+     * Reports the space reservation mode.
+     *
+     * @return true if space for writes should be claimed with an atomic update rather than under a lock,
+     *          false to use the lock.
+     */
+    public boolean isLockFreeReservation() {
+        return lockFreeReservation;
+    }
+
+    /**
+     * Reports the group commit mode.
+     *
+     * @return true if concurrent writes should be combined, sharing a single persist (and checkpoint),
+     *          false if each write should be persisted individually.
+     */
+    public boolean isGroupCommit() {
+        return groupCommit;
+    }
+
+    /**
+     * Reports the record format.
+     *
+     * @return true if records should be validated by a commit word persisted after the payload,
+     *          false if they should be validated by a checksum of the payload.
+     */
+    public boolean isCommitWords() {
+        return commitWords;
+    }
+
+    /**
+     * Reports the recovery mode.
+     *
+     * @return true if records beyond the checkpoint should be validated in parallel when opening an existing log,
+     *          false to validate them one after another. Ignored for logs in the commit word format, which have no checksums.
+     */
+    public boolean isParallelRecovery() {
+        return parallelRecovery;
+    }
+
+    /**
+     * Reports the automatic checkpoint interval.
+     *
+     * @return the number of bytes of records after which writes should automatically update the checkpoint, in the background,
+     *          or 0 if checkpointing is left to the caller.
+     */
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
     @Override
     public String toString() {
         return "AppendOnlyLogImplConfig{" +
@@ -96,6 +308,11 @@ public class AppendOnlyLogImplConfig {
                 ", linearOrdering=" + linearOrdering +
                 ", alwaysCheckpoint=" + alwaysCheckpoint +
                 ", authoritativeCheckpointOnReads=" + authoritativeCheckpointOnReads +
+                ", lockFreeReservation=" + lockFreeReservation +
+                ", groupCommit=" + groupCommit +
+                ", commitWords=" + commitWords +
+                ", parallelRecovery=" + parallelRecovery +
+                ", checkpointInterval=" + checkpointInterval +
                 '}';
     }
 }
@@ -0,0 +1,66 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Space claimed in an {@link AppendOnlyLogWithLocation} for a single record, into which the payload
+ * is written directly, avoiding the need to build it in a separate buffer and copy it into the log.
+ * <p>
+ * The record does not become visible to readers until it is committed. A reservation must be completed
+ * by exactly one call to either {@link #commit()} or {@link #abort()}.
+ * <p>
+ * Instances are not thread-safe and, for logs using linear ordering, must be completed by the thread that created them,
+ * which may hold only one at a time.
+ *
+ * @see AppendOnlyLogWithLocation#reserve(int)
+ */
+public interface AppendOnlyLogReservation {
+
+    /**
+     * Returns the writable region of the log reserved for the payload.
+     * <p>
+     * The buffer has a capacity equal to the reserved length. Its content between zero and that capacity
+     * becomes the record payload on commit, regardless of the buffer's position and limit at that time.
+     *
+     * @return The payload buffer.
+     */
+    ByteBuffer buffer();
+
+    /**
+     * Returns the location the record will occupy within the log, for use with {@link AppendOnlyLogWithLocation#readRecordAt(int)}.
+     *
+     * @return The location of the record.
+     */
+    int location();
+
+    /**
+     * Checksums the payload in place and persists the record.
+     * <p>
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed).
+     *
+     * @throws IllegalStateException if the reservation has already been committed or aborted.
+     */
+    void commit();
+
+    /**
+     * Gives up the reservation without writing a record.
+     * <p>
+     * Depending on the ordering mode of the log, the space may be reused by the next write,
+     * or left as a gap which readers will skip.
+     *
+     * @throws IllegalStateException if the reservation has already been committed or aborted.
+     */
+    void abort();
+}
@@ -14,6 +14,7 @@ package io.mashona.logwriting;
 
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Iterator;
 
 public interface AppendOnlyLogWithLocation extends AppendOnlyLog {
 
@@ -131,6 +132,100 @@ public interface AppendOnlyLogWithLocation extends AppendOnlyLog {
      */
     int tryPutWithLocation(ByteBuffer src);
 
+    /**
+     * This method transfers the bytes remaining in each of the given source buffers into this log, as one record per buffer,
+     * and returns their locations, failing with an Exception if insufficient space exists for all of them.
+     * <p>
+     * Space for the whole batch is claimed at once and the records are persisted together,
+     * which is cheaper than writing them individually. Records are written in the order given.
+     * <p>
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed)
+     * and the position of each src has been advanced by the number of bytes it contained.
+     * <p>
+     * The default implementation puts each record in turn, as for {@link AppendOnlyLog#putAll(ByteBuffer[])}.
+     *
+     * @param srcs The source buffers from which bytes are to be read. Each must have at least one byte remaining.
+     * @return The locations of the records within the log, in the same order as the srcs.
+     * @throws BufferOverflowException If there is insufficient space in this log for the entire batch
+     * @see #tryPutAllWithLocation(ByteBuffer[])
+     */
+    default int[] putAllWithLocation(ByteBuffer[] srcs) {
+        int[] locations = new int[srcs.length];
+        for (int i = 0; i < srcs.length; i++) {
+            locations[i] = putWithLocation(srcs[i]);
+        }
+        return locations;
+    }
+
+    /**
+     * This method transfers the bytes remaining in each of the given source buffers into this log, as one record per buffer,
+     * and returns their locations, or null if the operation fails.
+     * <p>
+     * Space for the whole batch is claimed at once and the records are persisted together,
+     * which is cheaper than writing them individually. Records are written in the order given.
+     * <p>
+     * After this method returns non-null, the data is guaranteed persisted (i.e. flushed) and the srcs have been read.
+     * <p>
+     * After this method returns null, the log is unwritten and the srcs are unread.
+     * <p>
+     * The default implementation tries to put each record in turn, as for {@link AppendOnlyLog#tryPutAll(ByteBuffer[])}.
+     *
+     * @param srcs The source buffers from which bytes are to be read. Each must have at least one byte remaining.
+     * @return The locations of the records within the log, in the same order as the srcs, or null if an error occurs.
+     */
+    default int[] tryPutAllWithLocation(ByteBuffer[] srcs) {
+        int[] locations = new int[srcs.length];
+        for (int i = 0; i < srcs.length; i++) {
+            locations[i] = tryPutWithLocation(srcs[i]);
+            if (locations[i] == ERROR_LOCATION) {
+                return null;
+            }
+        }
+        return locations;
+    }
+
+    /**
+     * This method claims space in this log for a record of the given payload length, into which the caller
+     * then writes directly, failing with an Exception if insufficient space exists.
+     * <p>
+     * Note that this requires more than <i>length</i> bytes of space in the log.
+     * <p>
+     * The record is not persisted, or visible to readers, until {@link AppendOnlyLogReservation#commit()} is called.
+     * For logs using linear ordering, other writers are blocked until then, so the reservation should be completed promptly.
+     *
+     * @param length The size of the payload. Must be greater than zero.
+     * @return The reservation.
+     * @throws BufferOverflowException If there is insufficient space in this log
+     * @throws UnsupportedOperationException If this log does not support reservations
+     * @see #tryReserve(int)
+     */
+    default AppendOnlyLogReservation reserve(int length) {
+        // the default defers to tryReserve, so implementations supporting reservations need override only that.
+        AppendOnlyLogReservation reservation = tryReserve(length);
+        if (reservation == null) {
+            throw new BufferOverflowException();
+        }
+        return reservation;
+    }
+
+    /**
+     * This method claims space in this log for a record of the given payload length, into which the caller
+     * then writes directly, or returns null if the operation fails.
+     * <p>
+     * Note that this requires more than <i>length</i> bytes of space in the log.
+     * <p>
+     * The record is not persisted, or visible to readers, until {@link AppendOnlyLogReservation#commit()} is called.
+     * For logs using linear ordering, other writers are blocked until then, so the reservation should be completed promptly.
+     *
+     * @param length The size of the payload. Must be greater than zero.
+     * @return The reservation, or null if an error occurs.
+     * @throws UnsupportedOperationException If this log does not support reservations
+     * @see #reserve(int)
+     */
+    default AppendOnlyLogReservation tryReserve(int length) {
+        throw new UnsupportedOperationException("reservations are not supported by " + getClass().getName());
+    }
+
     /**
      * Read a log entry starting from a specific location.
      *
@@ -141,4 +236,48 @@ public interface AppendOnlyLogWithLocation extends AppendOnlyLog {
      * @return A ByteBuffer containing the record present at the specified location.
      */
     ByteBuffer readRecordAt(int location);
+
+    /**
+     * Read a log entry by its sequence number.
+     * <p>
+     * Records are numbered consecutively in the order in which iteration returns them, from that of the first record.
+     * Numbering continues across a clear or reset, so a sequence number is not reused for a different record.
+     * <p>
+     * This allows a reader to resume from a known point without retaining record locations.
+     *
+     * @param sequence The sequence number of the record. Must be at least that of the first record,
+     *                 and less than that which the next record written will have.
+     * @return A ByteBuffer containing the record with the specified sequence number.
+     * @throws UnsupportedOperationException if the implementation does not number records.
+     * @see #firstSequence()
+     */
+    default ByteBuffer readRecord(long sequence) {
+        throw new UnsupportedOperationException("sequence numbers are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Returns an iterator over the log entries, starting from the record with the given sequence number.
+     * <p>
+     * The iterator otherwise behaves as that returned by {@link #iterator()}.
+     *
+     * @param sequence The sequence number of the first record to return. May equal that which the next record written will have,
+     *                 in which case the iterator is empty.
+     * @return An iterator over the records from the specified sequence number onwards.
+     * @throws UnsupportedOperationException if the implementation does not number records.
+     * @see #readRecord(long)
+     */
+    default Iterator<ByteBuffer> iteratorFrom(long sequence) {
+        throw new UnsupportedOperationException("sequence numbers are not supported by " + getClass().getName());
+    }
+
+    /**
+     * Reports the sequence number of the first record in the log or, if the log is empty, that which the next record written will have.
+     *
+     * @return the sequence number of the first record.
+     * @throws UnsupportedOperationException if the implementation does not number records.
+     * @see #readRecord(long)
+     */
+    default long firstSequence() {
+        throw new UnsupportedOperationException("sequence numbers are not supported by " + getClass().getName());
+    }
 }
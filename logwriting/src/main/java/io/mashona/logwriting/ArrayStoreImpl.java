@@ -29,7 +29,6 @@ import java.nio.file.StandardOpenOption;
 import java.util.EnumSet;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.zip.CRC32C;
 
 /**
  * An array-like persistent storage structure with a fixed number of fixed size slots, accessible concurrently.
@@ -188,15 +187,11 @@ public class ArrayStoreImpl implements ArrayStore {
             ByteBuffer srcSlice = src.slice(src.position(), dataSize);
             ByteBuffer dst = dataBuffer.slice(position, slotSize);
 
-            CRC32C crc32c = new CRC32C();
-            crc32c.update(srcSlice);
-            int checksum = (int) crc32c.getValue();
-            // the checksum above consumed the content, but the put below needs to re-read it.
-            srcSlice.rewind();
+            // the payload goes in first, checksummed in the same pass, then the header it needs.
+            int checksum = ChecksumUtil.copyWithChecksum(srcSlice, dst, RECORD_METADATA_SIZE);
 
             dst.putInt(dataSize);
             dst.putInt(checksum);
-            dst.put(srcSlice);
 
             if (force) {
                 persistenceHandle.persist(position, dataSize + RECORD_METADATA_SIZE);
@@ -267,15 +262,11 @@ public class ArrayStoreImpl implements ArrayStore {
             payloadBuffer.limit(payloadLength);
             recordBuffer.position(recordBuffer.position() + payloadLength);
 
-            CRC32C crc32c = new CRC32C();
-            crc32c.reset();
-            crc32c.update(payloadBuffer); // this advances the src buffers position to its limit.
-            int actualChecksum = (int) crc32c.getValue();
-            payloadBuffer.rewind();
+            byte[] payload = new byte[payloadLength];
+            int actualChecksum = ChecksumUtil.copyWithChecksum(payloadBuffer, ByteBuffer.wrap(payload), 0);
 
             if (actualChecksum == expectedChecksum) {
-                result = new byte[payloadLength];
-                payloadBuffer.get(result);
+                result = payload;
             }
         } finally {
             lock.readLock().unlock();
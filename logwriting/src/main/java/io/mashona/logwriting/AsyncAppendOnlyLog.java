@@ -0,0 +1,340 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Asynchronous writing to an {@link AppendOnlyLogWithLocation}, for callers that shouldn't wait for each record to be persisted.
+ * <p>
+ * Records are queued and written by a dedicated flusher thread, which takes as many as are waiting, up to a limit,
+ * and writes them as a batch, so that they are persisted together. Each record's future is completed with its location
+ * once it is persisted, in the order in which the records were submitted.
+ * <p>
+ * The queue is bounded, so that producers faster than the log are held up rather than exhausting memory.
+ * <p>
+ * Futures are completed on the flusher thread, so dependent actions not given an Executor of their own
+ * run on it too, and should be brief.
+ * <p>
+ * If writing to the log throws an Error, the affected records and all those submitted afterwards complete exceptionally with it,
+ * as the log's state is then unknown.
+ */
+public class AsyncAppendOnlyLog implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(AsyncAppendOnlyLog.class);
+
+    // the most records written in a single batch, bounding the delay before the first is persisted.
+    private static final int MAX_BATCH_SIZE = 64;
+
+    // queued by close, to have the flusher stop once it has written all the records submitted before it.
+    private static final PendingRecord SHUTDOWN = new PendingRecord(null);
+
+    private final AppendOnlyLogWithLocation appendOnlyLog;
+    private final BlockingQueue<PendingRecord> queue;
+    private final Thread flusher;
+
+    // submitters hold the read lock whilst queueing, so none can slip in after close queues the SHUTDOWN marker.
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    // set by the flusher if the log throws an Error, after which it writes nothing more, but fails each record instead.
+    private volatile Error fatalError = null;
+
+    private final AtomicLong completedCount = new AtomicLong(0);
+    private final AtomicLong totalCompletionNanos = new AtomicLong(0);
+    private final AtomicLong maxCompletionNanos = new AtomicLong(0);
+
+    /**
+     * Starts writing asynchronously to the given log.
+     *
+     * @param appendOnlyLog The log to write to.
+     * @param maxPending    The most records that may be queued before submitters wait. Must be greater than zero.
+     */
+    public AsyncAppendOnlyLog(AppendOnlyLogWithLocation appendOnlyLog, int maxPending) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with appendOnlyLog={0}, maxPending={1}", appendOnlyLog, maxPending);
+        }
+
+        if(maxPending <= 0) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("maxPending must be greater than zero");
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        this.appendOnlyLog = appendOnlyLog;
+        this.queue = new ArrayBlockingQueue<>(maxPending);
+
+        flusher = new Thread(this::flush, "AsyncAppendOnlyLog-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    /**
+     * Queues the bytes remaining in the given source buffer to be written to the log as a record,
+     * waiting for space in the queue if necessary.
+     * <p>
+     * The position of the src is advanced immediately, but its content is read later, so must not be
+     * changed until the returned future is complete.
+     * <p>
+     * The future completes with the location of the record once it is persisted. If the record can't be written,
+     * it instead completes exceptionally, for example with a BufferOverflowException if the log is full.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return A future for the location of the record within the log.
+     * @throws InterruptedException if interrupted whilst waiting for space in the queue.
+     * @throws IllegalStateException if this has been closed.
+     */
+    public CompletableFuture<Integer> putAsync(ByteBuffer src) throws InterruptedException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        if(!src.hasRemaining()) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("empty record");
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        PendingRecord pendingRecord = new PendingRecord(src.slice());
+
+        closeLock.readLock().lock();
+        try {
+            if(closed) {
+                IllegalStateException illegalStateException = new IllegalStateException("closed");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+            queue.put(pendingRecord);
+        } finally {
+            closeLock.readLock().unlock();
+        }
+
+        src.position(src.limit());
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", pendingRecord.future);
+        }
+        return pendingRecord.future;
+    }
+
+    /**
+     * Reports the number of records queued and not yet taken for writing.
+     *
+     * @return the queue depth.
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Reports the number of records whose futures have completed, whether or not they were written.
+     *
+     * @return the count of completed records.
+     */
+    public long getCompletedCount() {
+        return completedCount.get();
+    }
+
+    /**
+     * Reports the mean time from a record's submission to the completion of its future.
+     *
+     * @return the mean completion latency in nanoseconds, or zero if none have completed.
+     */
+    public long getMeanCompletionNanos() {
+        long count = completedCount.get();
+        return count == 0 ? 0 : totalCompletionNanos.get() / count;
+    }
+
+    /**
+     * Reports the longest time from a record's submission to the completion of its future.
+     *
+     * @return the maximum completion latency in nanoseconds, or zero if none have completed.
+     */
+    public long getMaxCompletionNanos() {
+        return maxCompletionNanos.get();
+    }
+
+    /**
+     * Stops accepting records, and waits for those already submitted to be written.
+     * The underlying log is not closed.
+     */
+    @Override
+    public void close() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        closeLock.writeLock().lock();
+        try {
+            if(closed) {
+                return;
+            }
+            closed = true;
+        } finally {
+            closeLock.writeLock().unlock();
+        }
+
+        // queued exactly once, as the flusher would write any SHUTDOWN that isn't last in its batch as a record.
+        boolean interrupted = false;
+        while(true) {
+            try {
+                queue.put(SHUTDOWN);
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        while(true) {
+            try {
+                flusher.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * The flusher thread's work: take whatever records are waiting and write them as a batch, until shut down.
+     */
+    private void flush() {
+        List<PendingRecord> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        boolean shutdown = false;
+
+        while(!shutdown) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                // not expected, as the thread is private. Carry on until shut down, lest submitted records be lost.
+                continue;
+            }
+            queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+
+            if(batch.get(batch.size() - 1) == SHUTDOWN) {
+                // nothing follows it, as submitters are stopped before it's queued.
+                batch.remove(batch.size() - 1);
+                shutdown = true;
+            }
+
+            if(!batch.isEmpty()) {
+                write(batch);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Write a batch of records and complete their futures.
+     * <p>
+     * Once the log has thrown an Error, records are instead failed with it, so that the flusher stays
+     * to complete every future and to see the SHUTDOWN marker that close waits for.
+     *
+     * @param batch the records, in submission order.
+     */
+    private void write(List<PendingRecord> batch) {
+        ByteBuffer[] srcs = new ByteBuffer[batch.size()];
+        for(int i = 0; i < srcs.length; i++) {
+            srcs[i] = batch.get(i).payload;
+        }
+
+        int[] locations = null;
+        Throwable failure = fatalError;
+        if(failure == null) {
+            try {
+                locations = appendOnlyLog.tryPutAllWithLocation(srcs);
+            } catch (RuntimeException e) {
+                failure = e;
+            } catch (Error e) {
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(e, "failing all records after error from {0}", appendOnlyLog);
+                }
+                fatalError = e;
+                failure = e;
+            }
+        }
+
+        if(locations != null) {
+            for(int i = 0; i < locations.length; i++) {
+                complete(batch.get(i), locations[i], null);
+            }
+        } else if(failure == null && batch.size() > 1) {
+            // the batch as a whole doesn't fit, but some of it might, so fall back to writing the records one by one.
+            for(PendingRecord pendingRecord : batch) {
+                write(List.of(pendingRecord));
+            }
+        } else {
+            if(failure == null) {
+                failure = new BufferOverflowException();
+            }
+            for(PendingRecord pendingRecord : batch) {
+                complete(pendingRecord, AppendOnlyLogWithLocation.ERROR_LOCATION, failure);
+            }
+        }
+    }
+
+    private void complete(PendingRecord pendingRecord, int location, Throwable failure) {
+        long elapsedNanos = System.nanoTime() - pendingRecord.submitNanos;
+        totalCompletionNanos.addAndGet(elapsedNanos);
+        maxCompletionNanos.accumulateAndGet(elapsedNanos, Math::max);
+        completedCount.incrementAndGet();
+
+        if(failure == null) {
+            pendingRecord.future.complete(location);
+        } else {
+            if(logger.isTraceEnabled()) {
+                logger.tracev(failure, "failing {0}", pendingRecord.future);
+            }
+            pendingRecord.future.completeExceptionally(failure);
+        }
+    }
+
+    private static class PendingRecord {
+
+        private final ByteBuffer payload;
+        private final long submitNanos = System.nanoTime();
+        private final CompletableFuture<Integer> future = new CompletableFuture<>();
+
+        private PendingRecord(ByteBuffer payload) {
+            this.payload = payload;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+
+/**
+ * Utility functions for checksumming record payloads, shared by the log implementations.
+ * <p>
+ * CRC32C is used throughout, as its JDK implementation is coded to use hardware support (SSE4.2) when available,
+ * whilst the older CRC32 impl has not been retrofitted.
+ * Checksum state is reused per Thread, rather than allocated per record.
+ */
+public final class ChecksumUtil {
+
+    /**
+     * The size of the pieces in which copyWithChecksum works. Each piece is read once into the CPU cache to update
+     * the checksum and then copied whilst still resident. Much smaller and the per-call overhead of the CRC32C
+     * intrinsic dominates for large payloads, much larger and the piece will no longer fit in L1.
+     */
+    static final int COPY_CHUNK_SIZE = 4096;
+
+    private static final ThreadLocal<CRC32C> CRC32C_THREAD_LOCAL = ThreadLocal.withInitial(CRC32C::new);
+
+    private static final ThreadLocal<byte[]> CHUNK_THREAD_LOCAL = ThreadLocal.withInitial(() -> new byte[COPY_CHUNK_SIZE]);
+
+    private ChecksumUtil() {
+    }
+
+    /**
+     * Calculate the checksum of the bytes remaining in the given buffer.
+     *
+     * @param src The buffer to checksum. Its position is not changed.
+     * @return The CRC32C checksum, truncated to an int.
+     */
+    public static int checksum(ByteBuffer src) {
+        CRC32C crc32c = CRC32C_THREAD_LOCAL.get();
+        crc32c.reset();
+        return checksum(crc32c, src);
+    }
+
+    /**
+     * Calculate the checksum of the given salt followed by the bytes remaining in the given buffer.
+     * Records checksummed with one salt won't validate against another, so the salt can be used to tell apart
+     * records written at different times to the same place.
+     *
+     * @param salt The value to checksum ahead of the buffer contents.
+     * @param src The buffer to checksum. Its position is not changed.
+     * @return The CRC32C checksum, truncated to an int.
+     */
+    public static int checksum(int salt, ByteBuffer src) {
+        return checksum(saltedCrc32c(salt), src);
+    }
+
+    /**
+     * Calculate the checksum of the given salt followed by the bytes remaining in the given buffer,
+     * reading them through a heap array rather than in place. This is for buffers whose address is not available
+     * to the CRC32C intrinsic, such as those derived from shared memory segments, which otherwise fail.
+     *
+     * @param salt The value to checksum ahead of the buffer contents.
+     * @param src The buffer to checksum. Its position is not changed.
+     * @return The CRC32C checksum, truncated to an int.
+     * @see #checksum(int, ByteBuffer)
+     */
+    public static int checksumViaHeap(int salt, ByteBuffer src) {
+        return checksumViaHeap(salt, src, src.position(), src.remaining());
+    }
+
+    /**
+     * Calculate the checksum of the given salt followed by the given range of bytes in the given buffer,
+     * reading them through a heap array rather than in place, as {@link #checksumViaHeap(int, ByteBuffer)} does.
+     * The range is given explicitly, so a buffer shared between threads can be read without taking a view of it.
+     *
+     * @param salt The value to checksum ahead of the buffer contents.
+     * @param src The buffer to checksum. Its position is neither used nor changed.
+     * @param index The index in src of the first byte to checksum.
+     * @param length The number of bytes to checksum.
+     * @return The CRC32C checksum, truncated to an int.
+     */
+    public static int checksumViaHeap(int salt, ByteBuffer src, int index, int length) {
+        CRC32C crc32c = saltedCrc32c(salt);
+        byte[] chunk = CHUNK_THREAD_LOCAL.get();
+
+        for(int offset = 0; offset < length; offset += COPY_CHUNK_SIZE) {
+            int chunkLength = Math.min(COPY_CHUNK_SIZE, length - offset);
+            src.get(index + offset, chunk, 0, chunkLength);
+            crc32c.update(chunk, 0, chunkLength);
+        }
+
+        return (int) crc32c.getValue();
+    }
+
+    private static int checksum(CRC32C crc32c, ByteBuffer src) {
+        int position = src.position();
+        crc32c.update(src); // this advances the src buffers position to its limit.
+        src.position(position);
+        return (int) crc32c.getValue();
+    }
+
+    /**
+     * Copy the bytes remaining in the given source buffer to the given index of the destination buffer, calculating
+     * their checksum on the way. This reads the source once, rather than once to checksum and once again to copy.
+     *
+     * @param src The buffer from which bytes are to be read. Its position is not changed.
+     * @param dst The buffer into which bytes are to be written. Its position is not changed.
+     * @param dstIndex The index in dst at which the first byte will be written.
+     * @return The CRC32C checksum of the copied bytes, truncated to an int.
+     * @throws IndexOutOfBoundsException if dst has insufficient space from dstIndex.
+     */
+    public static int copyWithChecksum(ByteBuffer src, ByteBuffer dst, int dstIndex) {
+        CRC32C crc32c = CRC32C_THREAD_LOCAL.get();
+        crc32c.reset();
+        return copyWithChecksum(crc32c, src, dst, dstIndex);
+    }
+
+    /**
+     * Copy the bytes remaining in the given source buffer to the given index of the destination buffer, calculating
+     * the checksum of the given salt followed by those bytes on the way.
+     *
+     * @param salt The value to checksum ahead of the copied bytes.
+     * @param src The buffer from which bytes are to be read. Its position is not changed.
+     * @param dst The buffer into which bytes are to be written. Its position is not changed.
+     * @param dstIndex The index in dst at which the first byte will be written.
+     * @return The CRC32C checksum, truncated to an int.
+     * @throws IndexOutOfBoundsException if dst has insufficient space from dstIndex.
+     * @see #checksum(int, ByteBuffer)
+     */
+    public static int copyWithChecksum(int salt, ByteBuffer src, ByteBuffer dst, int dstIndex) {
+        return copyWithChecksum(saltedCrc32c(salt), src, dst, dstIndex);
+    }
+
+    private static CRC32C saltedCrc32c(int salt) {
+        CRC32C crc32c = CRC32C_THREAD_LOCAL.get();
+        crc32c.reset();
+        crc32c.update(salt >>> 24);
+        crc32c.update(salt >>> 16);
+        crc32c.update(salt >>> 8);
+        crc32c.update(salt);
+        return crc32c;
+    }
+
+    private static int copyWithChecksum(CRC32C crc32c, ByteBuffer src, ByteBuffer dst, int dstIndex) {
+        int srcPosition = src.position();
+        int length = src.remaining();
+
+        if(length <= COPY_CHUNK_SIZE) {
+            // a single piece, so skip the bookkeeping. This matters for small records, where it's a noticeable fraction of the cost.
+            crc32c.update(src);
+            src.position(srcPosition);
+            dst.put(dstIndex, src, srcPosition, length);
+            return (int) crc32c.getValue();
+        }
+
+        ByteBuffer chunk = src.duplicate();
+
+        for(int offset = 0; offset < length; offset += COPY_CHUNK_SIZE) {
+            int chunkLength = Math.min(COPY_CHUNK_SIZE, length - offset);
+            chunk.limit(srcPosition + offset + chunkLength);
+            chunk.position(srcPosition + offset);
+            crc32c.update(chunk);
+            dst.put(dstIndex + offset, src, srcPosition + offset, chunkLength);
+        }
+
+        return (int) crc32c.getValue();
+    }
+}
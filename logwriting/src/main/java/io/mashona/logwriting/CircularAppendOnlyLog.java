@@ -0,0 +1,1178 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.jboss.logging.Logger;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A circular append-only log structure over a given range of mapped memory.
+ * <p>
+ * Records are appended at the tail as for AppendOnlyLogImpl, with strict serial ordering, but may also be released
+ * from the head with {@link #truncateBefore(int)}, after which the space they occupied is reused as appends wrap around.
+ * This suits uses where records are deleted soon after they are written, such as a transaction log.
+ * <p>
+ * Each record is preceded by its length and a CRC32C checksum, as in the AppendOnlyLogImpl checksum format.
+ * The checksum additionally covers the number of times the log has wrapped (the lap) when the record was written,
+ * so that records from earlier laps are not mistaken for current ones when the log is recovered.
+ * A record that would not fit before the end of the log is instead written at the start, after a wrap marker.
+ * <p>
+ * The head position is persisted in the log header, next to the checkpoint. Both hold the lap as well as the position.
+ * <p>
+ * Since writes are linearly ordered, a reservation holds the lock, blocking other writers, until it is committed or aborted.
+ */
+public class CircularAppendOnlyLog implements AppendOnlyLogWithLocation {
+
+    private static final Logger logger = Logger.getLogger(CircularAppendOnlyLog.class);
+
+    // change this if changing the data layout!
+    private static final byte[] MAGIC_HEADER = new String("TRBCAL01").getBytes(StandardCharsets.UTF_8);
+
+    private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
+    private static final int BLOCK_SIZE = 256;
+
+    // these offsets are relative to 'buffer'. The marks are longs, so are 8 byte aligned for persistence atomicity.
+    private static final int MAGIC_OFFSET = 0;
+    private static final int PADDING_SIZE_OFFSET = MAGIC_OFFSET + MAGIC_HEADER.length;
+    private static final int CHECKPOINT_OFFSET = PADDING_SIZE_OFFSET + INT_SIZE + INT_SIZE;
+    private static final int HEAD_OFFSET = CHECKPOINT_OFFSET + LONG_SIZE;
+    private static final int FIRST_RECORD_OFFSET = HEAD_OFFSET + LONG_SIZE;
+
+    private static final int LOG_HEADER_BYTES = FIRST_RECORD_OFFSET;
+
+    private static final int ENTRY_HEADER_SIZE = 8; // int payload length + int checksum
+
+    // the length field value that marks the end of a lap. Its checksum is that of the lap alone.
+    private static final int WRAP_MARKER = -1;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final PersistenceHandle persistenceHandle;
+
+    private final ByteBuffer buffer;
+
+    private int effectivePaddingSize;
+    private final int requestedPaddingSize;
+
+    // positions in the log are held as marks, with the lap in the high int and the position in the low,
+    // so that comparing marks compares positions in the order they were written.
+    // Both are written only with the lock held, but may be read without it.
+    private volatile long headMark;
+    private volatile long tailMark;
+
+    private long checkpointMark;
+
+    // changes on clear or reset, so that iterators can detect it.
+    private volatile int epoch = 0;
+
+    /**
+     * Establishes a circular append-only log structure over a given range of mapped memory,
+     * recovering any existing log structure found there.
+     *
+     * @param byteBuffer   The mapped memory to use.  It MUST NOT be a slice or duplicate.
+     * @param offset       The offset within the allocatedMemory, from which to start the log structure. This MUST be cache line aligned and SHOULD be 256-byte block aligned.
+     * @param length       The size of the region within the buffer which is available for the log.
+     * @param blockPadding true if extra space should be used to increase performance, or false for a slower but more compact record format.
+     */
+    public CircularAppendOnlyLog(MappedByteBuffer byteBuffer, int offset, int length, boolean blockPadding) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with byteBuffer={0}, offset={1}, length={2}, blockPadding={3}",
+                    byteBuffer, offset, length, blockPadding);
+        }
+
+        lock.lock();
+        try {
+
+            requestedPaddingSize = blockPadding ? BLOCK_SIZE : INT_SIZE;
+
+            // force MUST be called on the original buffer, NOT a duplicate or slice,
+            // so we need to keep a handle on it. However, we don't want to inadvertently
+            // rely on or change its state, so we wrap it in a restrictive API.
+            persistenceHandle = new PersistenceHandle(byteBuffer, offset, length);
+
+            // we slice the origin buffer, so that we have a zero origin to make math easier
+            ByteBuffer tmp = byteBuffer.slice();
+            tmp.position(offset);
+            tmp.limit(offset + length);
+            buffer = tmp.slice();
+
+            byte[] header = new byte[MAGIC_HEADER.length];
+            buffer.get(0, header);
+            if(Arrays.equals(header, MAGIC_HEADER)) {
+                // pre-existing data in known format.
+                // persisted config takes priority, or we'll get inconsistencies
+                effectivePaddingSize = buffer.getInt(PADDING_SIZE_OFFSET);
+                recoverRecords();
+            } else {
+                effectivePaddingSize = requestedPaddingSize;
+
+                // we don't know what's in the provided buffer, so zero it out for safety.
+                // Thereafter, records from earlier laps are told apart by their checksums instead.
+                byte[] zeros = new byte[1024 * 1024];
+                for(int position = 0; position < buffer.capacity(); position += zeros.length) {
+                    buffer.put(position, zeros, 0, Math.min(zeros.length, buffer.capacity() - position));
+                }
+                persistenceHandle.persist(MAGIC_OFFSET, buffer.capacity());
+
+                long mark = mark(1, FIRST_RECORD_OFFSET);
+                buffer.putLong(CHECKPOINT_OFFSET, mark);
+                buffer.putLong(HEAD_OFFSET, mark);
+                buffer.putInt(PADDING_SIZE_OFFSET, effectivePaddingSize);
+                persistenceHandle.persist(PADDING_SIZE_OFFSET, LOG_HEADER_BYTES - PADDING_SIZE_OFFSET);
+                // the magic header goes last, so the log is recognised only once the rest of the header is valid.
+                buffer.put(MAGIC_OFFSET, MAGIC_HEADER);
+                persistenceHandle.persist(MAGIC_OFFSET, MAGIC_HEADER.length);
+                headMark = mark;
+                tailMark = mark;
+                checkpointMark = mark;
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    private static long mark(int lap, int position) {
+        return ((long) lap << 32) | position;
+    }
+
+    private static int lap(long mark) {
+        return (int) (mark >>> 32);
+    }
+
+    private static int position(long mark) {
+        return (int) mark;
+    }
+
+    /**
+     * Walk forward from the checkpoint to find the tail.
+     */
+    private void recoverRecords() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        headMark = buffer.getLong(HEAD_OFFSET);
+        checkpointMark = buffer.getLong(CHECKPOINT_OFFSET);
+
+        long mark = checkpointMark;
+        while(true) {
+            long nextMark = nextRecordMark(mark, true);
+            if(nextMark == mark) {
+                break;
+            }
+            mark = nextMark;
+        }
+        // releasing all the records persists the head before the checkpoint, so the walk may end short of it.
+        tailMark = Math.max(mark, headMark);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Find where the record after the one at the given mark starts, stepping over the wrap marker if there is one.
+     *
+     * @param mark The mark of a record, or of the end of the lap.
+     * @param validate true to verify the record's checksum, false if it's known to be intact.
+     * @return the mark of the next record, or the given mark if there is no valid record there.
+     */
+    private long nextRecordMark(long mark, boolean validate) {
+        int lap = lap(mark);
+        int position = position(mark);
+
+        if(buffer.capacity() - position < ENTRY_HEADER_SIZE) {
+            // no room for a wrap marker, so the lap ends implicitly. That's known only if there's a record after it.
+            long wrappedMark = mark(lap + 1, FIRST_RECORD_OFFSET);
+            return nextRecordMark(wrappedMark, validate) == wrappedMark ? mark : wrappedMark;
+        }
+
+        int length = buffer.getInt(position);
+        int checksum = buffer.getInt(position + INT_SIZE);
+
+        if(length == WRAP_MARKER) {
+            if(!validate || checksum == ChecksumUtil.checksum(lap, EMPTY)) {
+                return mark(lap + 1, FIRST_RECORD_OFFSET);
+            }
+            return mark;
+        }
+
+        if(length <= 0 || length > buffer.capacity() - position - ENTRY_HEADER_SIZE) {
+            return mark;
+        }
+
+        if(validate && checksum != ChecksumUtil.checksum(lap, buffer.slice(position + ENTRY_HEADER_SIZE, length))) {
+            return mark;
+        }
+
+        return mark(lap, endOfRecord(position, length));
+    }
+
+    /**
+     * Find the end of the written part of the lap, i.e. including the wrap marker if there is room for one.
+     */
+    private int endOfLap(int position) {
+        return buffer.capacity() - position >= ENTRY_HEADER_SIZE ? position + ENTRY_HEADER_SIZE : position;
+    }
+
+    private int endOfRecord(int position, int payloadLength) {
+        int end = position + ENTRY_HEADER_SIZE + payloadLength;
+        int realignment = end % effectivePaddingSize;
+        if(realignment != 0) {
+            end += effectivePaddingSize - realignment;
+        }
+        return Math.min(end, buffer.capacity());
+    }
+
+    /**
+     * Find where a record of the given size would be written after the given mark,
+     * provided it would not overwrite any record from the head onwards.
+     *
+     * @param mark The mark of the current tail.
+     * @param payloadLength The size of the record.
+     * @return the mark at which to write the record, or -1 if it won't fit.
+     */
+    private long allocate(long mark, int payloadLength) {
+        int lap = lap(mark);
+        int position = position(mark);
+
+        if(payloadLength <= 0 || payloadLength > buffer.capacity() - FIRST_RECORD_OFFSET - ENTRY_HEADER_SIZE) {
+            return -1;
+        }
+
+        if(payloadLength > buffer.capacity() - position - ENTRY_HEADER_SIZE) {
+            lap++;
+            position = FIRST_RECORD_OFFSET;
+        }
+
+        int headLap = lap(headMark);
+        if(lap == headLap || (lap == headLap + 1 && endOfRecord(position, payloadLength) <= position(headMark))) {
+            return mark(lap, position);
+        }
+        return -1;
+    }
+
+    /**
+     * Write the given record at the given mark, which must have come from allocate.
+     * If the mark is on a new lap, the previous lap is ended first. The caller is responsible for persisting both.
+     *
+     * @param fromMark The mark of the current tail.
+     * @param recordMark The mark at which to write the record.
+     * @param src The payload, which is not consumed.
+     * @return The mark following the record.
+     */
+    private long write(long fromMark, long recordMark, ByteBuffer src) {
+        endLapIfWrapping(fromMark, recordMark);
+
+        int lap = lap(recordMark);
+        int position = position(recordMark);
+        int length = src.remaining();
+
+        int checksum = ChecksumUtil.copyWithChecksum(lap, src, buffer, position + ENTRY_HEADER_SIZE);
+        buffer.putInt(position, length);
+        buffer.putInt(position + INT_SIZE, checksum);
+
+        return mark(lap, endOfRecord(position, length));
+    }
+
+    /**
+     * Write the wrap marker ending the lap of fromMark, if recordMark is on the next lap and there is room for one.
+     */
+    private void endLapIfWrapping(long fromMark, long recordMark) {
+        if(lap(recordMark) != lap(fromMark)) {
+            int position = position(fromMark);
+            if(buffer.capacity() - position >= ENTRY_HEADER_SIZE) {
+                buffer.putInt(position, WRAP_MARKER);
+                buffer.putInt(position + INT_SIZE, ChecksumUtil.checksum(lap(fromMark), EMPTY));
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectivelyPadded() {
+        return effectivePaddingSize == BLOCK_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPaddingRequested() {
+        return requestedPaddingSize == BLOCK_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes to a circular log are always linearly ordered.
+     */
+    @Override
+    public boolean isEffectiveLinearOrdering() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes to a circular log are always linearly ordered.
+     */
+    @Override
+    public boolean isRequestedLinearOrdering() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAlwaysCheckpoint() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAuthoritativeCheckpointOnReads() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkpoint() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            checkpointMark = tailMark;
+            buffer.putLong(CHECKPOINT_OFFSET, checkpointMark);
+            persistenceHandle.persist(CHECKPOINT_OFFSET, LONG_SIZE);
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Release the records before the given location, so that their space may be reused by later writes.
+     * The record at the location becomes the first in the log.
+     * <p>
+     * After this method returns, the released records are guaranteed not to be recovered.
+     *
+     * @param location A location returned by a write to this log, for a record that has not already been released.
+     * @throws IllegalArgumentException if the location is not that of a record in the log.
+     */
+    public void truncateBefore(int location) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with location={1}", this, location);
+        }
+
+        lock.lock();
+        try {
+            long mark = markOf(location);
+            if(mark == -1 || buffer.getInt(location) == WRAP_MARKER || nextRecordMark(mark, true) == mark) {
+                IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid record location " + location);
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+                }
+                throw illegalArgumentException;
+            }
+
+            if(mark > checkpointMark) {
+                // recovery walks from the checkpoint, so it must not be left behind in space that may be overwritten.
+                checkpointMark = mark;
+                buffer.putLong(CHECKPOINT_OFFSET, checkpointMark);
+                persistenceHandle.persist(CHECKPOINT_OFFSET, LONG_SIZE);
+            }
+
+            buffer.putLong(HEAD_OFFSET, mark);
+            persistenceHandle.persist(HEAD_OFFSET, LONG_SIZE);
+            headMark = mark;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Determine the mark of the given location, provided it's between the head and tail.
+     *
+     * @return the mark, or -1 if the location is not in use.
+     */
+    private long markOf(int location) {
+        if(location < FIRST_RECORD_OFFSET || buffer.capacity() - location < ENTRY_HEADER_SIZE) {
+            return -1;
+        }
+
+        long head = headMark;
+        long tail = tailMark;
+
+        long mark = mark(lap(head), location);
+        if(location < position(head)) {
+            mark = mark(lap(head) + 1, location);
+        }
+        return mark >= head && mark < tail ? mark : -1;
+    }
+
+    /**
+     * Read the record at the given location.
+     *
+     * @param location A location returned by a write to this log, for a record that has not been released.
+     * @return A read-only view of the record.
+     * @throws IllegalArgumentException if the location is not that of a record in the log.
+     * @throws IllegalStateException if the record at the location is invalid.
+     */
+    @Override
+    public ByteBuffer readRecordAt(int location) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with location={1}", this, location);
+        }
+
+        long mark = markOf(location);
+        if(mark == -1) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid record location " + location);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        int length = buffer.getInt(location);
+        int checksum = buffer.getInt(location + INT_SIZE);
+        ByteBuffer result = null;
+        if(length > 0 && length <= buffer.capacity() - location - ENTRY_HEADER_SIZE) {
+            result = buffer.slice(location + ENTRY_HEADER_SIZE, length);
+            if(checksum != ChecksumUtil.checksum(lap(mark), result)) {
+                result = null;
+            }
+        }
+
+        // the record may have been released and overwritten whilst we were reading it.
+        if(result == null || headMark > mark) {
+            IllegalStateException illegalStateException = new IllegalStateException("invalid record at location " + location);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+            }
+            throw illegalStateException;
+        }
+
+        result = result.asReadOnlyBuffer();
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src) {
+        putWithLocation(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src) {
+        return tryPutWithLocation(ByteBuffer.wrap(src)) != ERROR_LOCATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        putWithLocation(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src, int offset, int length) {
+        return tryPutWithLocation(ByteBuffer.wrap(src, offset, length)) != ERROR_LOCATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(ByteBuffer src) {
+        putWithLocation(src);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(ByteBuffer src) {
+        return tryPutWithLocation(src) != ERROR_LOCATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int putWithLocation(byte[] src) {
+        return putWithLocation(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryPutWithLocation(byte[] src) {
+        return tryPutWithLocation(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int putWithLocation(byte[] src, int offset, int length) {
+        return putWithLocation(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int tryPutWithLocation(byte[] src, int offset, int length) {
+        return tryPutWithLocation(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * failing with an Exception if insufficient space is free.
+     * <p>
+     * After this method returns, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log.
+     * @throws BufferOverflowException If there is insufficient space free in this log.
+     */
+    @Override
+    public int putWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        int location = tryPutWithLocation(src);
+        if(location == ERROR_LOCATION) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", location);
+        }
+        return location;
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * returning {@link AppendOnlyLogWithLocation#ERROR_LOCATION} if insufficient space is free.
+     * <p>
+     * After this method returns a location, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     * <p>
+     * After this method returns {@link AppendOnlyLogWithLocation#ERROR_LOCATION}, the log is unwritten and the src is unread.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log on success, {@link AppendOnlyLogWithLocation#ERROR_LOCATION} otherwise.
+     */
+    @Override
+    public int tryPutWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        int result = ERROR_LOCATION;
+
+        lock.lock();
+        try {
+            long fromMark = tailMark;
+            long recordMark = allocate(fromMark, src.remaining());
+            if(recordMark != -1) {
+                long nextMark = write(fromMark, recordMark, src);
+                if(lap(recordMark) != lap(fromMark)) {
+                    persistenceHandle.persist(position(fromMark), endOfLap(position(fromMark)) - position(fromMark));
+                }
+                persistenceHandle.persist(position(recordMark), position(nextMark) - position(recordMark));
+                src.position(src.limit());
+                tailMark = nextMark;
+                result = position(recordMark);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(ByteBuffer[] srcs) {
+        putAllWithLocation(srcs);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        return tryPutAllWithLocation(srcs) != null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] putAllWithLocation(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        int[] result = tryPutAllWithLocation(srcs);
+        if(result == null) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int[] tryPutAllWithLocation(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        int[] result = null;
+
+        lock.lock();
+        try {
+            // claim space for the whole batch before writing any of it.
+            long[] recordMarks = new long[srcs.length];
+            long mark = tailMark;
+            boolean allocated = true;
+            for(int i = 0; i < srcs.length && allocated; i++) {
+                recordMarks[i] = allocate(mark, srcs[i].remaining());
+                allocated = recordMarks[i] != -1;
+                mark = mark(lap(recordMarks[i]), endOfRecord(position(recordMarks[i]), srcs[i].remaining()));
+            }
+
+            if(allocated) {
+                // the batch wraps at most once, so is persisted in at most two pieces.
+                long fromMark = tailMark;
+                int persistFrom = position(fromMark);
+                for(int i = 0; i < srcs.length; i++) {
+                    long nextMark = write(fromMark, recordMarks[i], srcs[i]);
+                    if(lap(recordMarks[i]) != lap(fromMark)) {
+                        // the wrap marker is written along with the record, so the end of the old lap is persisted after both.
+                        persistenceHandle.persist(persistFrom, endOfLap(position(fromMark)) - persistFrom);
+                        persistFrom = FIRST_RECORD_OFFSET;
+                    }
+                    fromMark = nextMark;
+                }
+                persistenceHandle.persist(persistFrom, position(fromMark) - persistFrom);
+
+                result = new int[srcs.length];
+                for(int i = 0; i < srcs.length; i++) {
+                    srcs[i].position(srcs[i].limit());
+                    result[i] = position(recordMarks[i]);
+                }
+                tailMark = fromMark;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public AppendOnlyLogReservation reserve(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        AppendOnlyLogReservation reservation = tryReserve(length);
+        if(reservation == null) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records are written strictly in order, so other writers are blocked until the reservation is completed.
+     */
+    @Override
+    public AppendOnlyLogReservation tryReserve(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        Reservation reservation = null;
+
+        lock.lock();
+        try {
+            if(lock.getHoldCount() > 1) {
+                // the lock is reentrant, so without this check a second reservation would be granted over the same space.
+                IllegalStateException illegalStateException = new IllegalStateException("reservation already in progress on this thread");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+
+            long recordMark = allocate(tailMark, length);
+            if(recordMark != -1) {
+                reservation = new Reservation(tailMark, recordMark, length);
+            }
+        } finally {
+            if(reservation == null) {
+                lock.unlock();
+            }
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", reservation);
+        }
+        return reservation;
+    }
+
+    /**
+     * Space claimed for a record by tryReserve, pending commit or abort. The lock is held throughout.
+     */
+    private class Reservation implements AppendOnlyLogReservation {
+
+        private final long fromMark;
+        private final long recordMark;
+        private final int payloadLength;
+        private final ByteBuffer payloadBuffer;
+        // the space belongs to the log only until it's cleared or reset.
+        private final int reservationEpoch;
+
+        private boolean completed = false;
+
+        private Reservation(long fromMark, long recordMark, int payloadLength) {
+            this.fromMark = fromMark;
+            this.recordMark = recordMark;
+            this.payloadLength = payloadLength;
+            payloadBuffer = buffer.slice(position(recordMark) + ENTRY_HEADER_SIZE, payloadLength);
+            reservationEpoch = epoch;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return payloadBuffer;
+        }
+
+        @Override
+        public int location() {
+            return position(recordMark);
+        }
+
+        @Override
+        public void commit() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0}", this);
+            }
+
+            checkNotCompleted();
+            completed = true;
+
+            try {
+                if(reservationEpoch != epoch) {
+                    // we cleared or reset the log ourselves in the meantime, so the tail has moved and the record doesn't belong there.
+                    IllegalStateException illegalStateException = new IllegalStateException("log cleared or reset since reservation");
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                    }
+                    throw illegalStateException;
+                }
+
+                // as in write, but the payload is already in place.
+                endLapIfWrapping(fromMark, recordMark);
+                int position = position(recordMark);
+                buffer.putInt(position, payloadLength);
+                buffer.putInt(position + INT_SIZE, ChecksumUtil.checksum(lap(recordMark), payloadBuffer.duplicate().clear()));
+                long nextMark = mark(lap(recordMark), endOfRecord(position, payloadLength));
+
+                if(lap(recordMark) != lap(fromMark)) {
+                    persistenceHandle.persist(position(fromMark), endOfLap(position(fromMark)) - position(fromMark));
+                }
+                persistenceHandle.persist(position, position(nextMark) - position);
+                tailMark = nextMark;
+            } finally {
+                lock.unlock();
+            }
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit");
+            }
+        }
+
+        @Override
+        public void abort() {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("entry for {0}", this);
+            }
+
+            checkNotCompleted();
+            completed = true;
+
+            // nothing has been written in the log's own terms, since the tail never moved.
+            lock.unlock();
+
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit");
+            }
+        }
+
+        private void checkNotCompleted() {
+            if(completed) {
+                IllegalStateException illegalStateException = new IllegalStateException("reservation already completed");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Reservation{" +
+                    "location=" + position(recordMark) +
+                    ", payloadLength=" + payloadLength +
+                    ", completed=" + completed +
+                    '}';
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This releases all the records, without overwriting them, and adopts the requested padding.
+     */
+    @Override
+    public void clear() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            releaseAll();
+
+            if(effectivePaddingSize != requestedPaddingSize) {
+                // the log is empty, so the record layout can change, but only once the new head is persisted.
+                effectivePaddingSize = requestedPaddingSize;
+                buffer.putInt(PADDING_SIZE_OFFSET, effectivePaddingSize);
+                persistenceHandle.persist(PADDING_SIZE_OFFSET, INT_SIZE);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This releases all the records, without overwriting them. Since a circular log has no fixed start,
+     * the checkpoint and head are moved to the tail instead.
+     */
+    @Override
+    public void reset() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            releaseAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Move the head and checkpoint to the start of the next lap, releasing all the records.
+     * Starting a new lap, rather than remaining at the tail, means records written before can't be recovered
+     * even if a write fails partway, and the whole capacity is free for the next writes. Must be called with the lock held.
+     */
+    private void releaseAll() {
+        long mark = mark(lap(tailMark) + 1, FIRST_RECORD_OFFSET);
+
+        // the head goes first, since recovery can't walk from a checkpoint that's ahead of the head.
+        buffer.putLong(HEAD_OFFSET, mark);
+        persistenceHandle.persist(HEAD_OFFSET, LONG_SIZE);
+        checkpointMark = mark;
+        buffer.putLong(CHECKPOINT_OFFSET, mark);
+        persistenceHandle.persist(CHECKPOINT_OFFSET, LONG_SIZE);
+
+        epoch++;
+        headMark = mark;
+        tailMark = mark;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the total free space, which may be split between the end and the start of the log.
+     */
+    @Override
+    public int remaining() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        int result;
+
+        lock.lock();
+        try {
+            if(lap(tailMark) == lap(headMark)) {
+                result = (buffer.capacity() - position(tailMark)) + (position(headMark) - FIRST_RECORD_OFFSET);
+            } else {
+                result = position(headMark) - position(tailMark);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canAccept(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        boolean result;
+
+        lock.lock();
+        try {
+            result = allocate(tailMark, length) != -1;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the records are released by truncation during the lifetime of the iterator, methods may also throw ConcurrentModificationException.
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new Itr(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the records are released by truncation during the lifetime of the iterator, methods may also throw ConcurrentModificationException.
+     */
+    @Override
+    public Iterator<ByteBuffer> copyingIterator() {
+        return new Itr(true);
+    }
+
+    /**
+     * An Iterator over the records from the head to the tail at the time of its creation.
+     * Since writes are completed and persisted under the lock, the records in that range are known to be intact
+     * and are read without locking. The space they occupy may however be reused once they are released,
+     * which is detected by checking the head after reading each record.
+     */
+    private class Itr implements Iterator<ByteBuffer> {
+
+        private final boolean returnCopies;
+        private final long endMark;
+        private final int expectedEpoch;
+
+        private long nextMark;
+
+        private Itr(boolean returnCopies) {
+            this.returnCopies = returnCopies;
+
+            lock.lock();
+            try {
+                nextMark = headMark;
+                endMark = tailMark;
+                expectedEpoch = epoch;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Move on to the next lap if the current one has ended, so that nextMark is always that of a record,
+         * or the end. The end of the lap is known to have been written if the end of the iteration is beyond it.
+         */
+        private void skipWrap() {
+            int position = position(nextMark);
+            if(nextMark < endMark && (buffer.capacity() - position < ENTRY_HEADER_SIZE || buffer.getInt(position) == WRAP_MARKER)) {
+                nextMark = mark(lap(nextMark) + 1, FIRST_RECORD_OFFSET);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            checkForRelease();
+            return nextMark < endMark;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int position = position(nextMark);
+            int length = buffer.getInt(position);
+            if(length <= 0 || length > buffer.capacity() - position - ENTRY_HEADER_SIZE) {
+                // a record released and overwritten since hasNext checked may have any length, so report that as for any release.
+                // Records that haven't been released are intact, so a bad length is otherwise corruption.
+                checkForRelease();
+                IllegalStateException illegalStateException = new IllegalStateException("invalid record at location " + position);
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+                }
+                throw illegalStateException;
+            }
+            ByteBuffer result = buffer.slice(position + ENTRY_HEADER_SIZE, length).asReadOnlyBuffer();
+
+            if(returnCopies) {
+                ByteBuffer view = result;
+                result = ByteBuffer.allocate(view.remaining());
+                result.put(view);
+                result.rewind();
+            }
+
+            // the record is good only if it wasn't released (and possibly overwritten) whilst we were reading it.
+            checkForRelease();
+
+            nextMark = mark(lap(nextMark), endOfRecord(position, length));
+            skipWrap();
+            return result;
+        }
+
+        /**
+         * Throw an Exception if the log has been cleared, or the next record released, since the iterator was created.
+         */
+        private void checkForRelease() {
+            if(epoch != expectedEpoch || headMark > nextMark) {
+                ConcurrentModificationException concurrentModificationException = new ConcurrentModificationException("Log truncated after iterator creation");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(concurrentModificationException, "throwing {0}", concurrentModificationException.toString());
+                }
+                throw concurrentModificationException;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CircularAppendOnlyLog{" +
+                "head=" + lap(headMark) + ":" + position(headMark) +
+                ", tail=" + lap(tailMark) + ":" + position(tailMark) +
+                ", effectivePaddingSize=" + effectivePaddingSize +
+                '}';
+    }
+}
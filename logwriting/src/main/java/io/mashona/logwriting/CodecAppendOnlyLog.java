@@ -0,0 +1,478 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.jboss.logging.Logger;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * An append-only log which transparently encodes, typically compresses, the payloads of records
+ * above a given size as they are written to an underlying log, and decodes them as they are read back.
+ * <p>
+ * Each record written to the underlying log gains a leading flag byte, marking whether the rest of it is encoded.
+ * A payload is stored encoded only if that makes it smaller, so incompressible payloads cost just the flag byte.
+ * All records in the underlying log must be written via this class, or they will be misread.
+ * <p>
+ * Records are written via reservations, so the flag and payload are assembled directly in the log, without an extra copy.
+ * Payloads read back unencoded are views onto the log, as for the underlying log's iterators, whilst those decoded are copies.
+ *
+ * @see RecordCodec
+ */
+public class CodecAppendOnlyLog implements AppendOnlyLog {
+
+    private static final Logger logger = Logger.getLogger(CodecAppendOnlyLog.class);
+
+    // values for the leading flag byte of each record.
+    private static final byte RAW = 0;
+    private static final byte ENCODED = 1;
+
+    private static final int FLAG_SIZE = 1;
+
+    private final AppendOnlyLogWithLocation appendOnlyLog;
+    private final RecordCodec codec;
+    private final int encodingThreshold;
+
+    /**
+     * Establishes encoding over the given log.
+     *
+     * @param appendOnlyLog     The underlying log, to which the encoded records are written.
+     * @param codec             The codec with which to encode and decode payloads.
+     * @param encodingThreshold The size in bytes from which payloads are encoded. Smaller ones are stored as they are,
+     *                          as they're unlikely to benefit enough to be worth the cost.
+     */
+    public CodecAppendOnlyLog(AppendOnlyLogWithLocation appendOnlyLog, RecordCodec codec, int encodingThreshold) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with appendOnlyLog={0}, codec={1}, encodingThreshold={2}", appendOnlyLog, codec, encodingThreshold);
+        }
+
+        this.appendOnlyLog = appendOnlyLog;
+        this.codec = codec;
+        this.encodingThreshold = encodingThreshold;
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    /**
+     * Reports the size from which payloads are encoded.
+     *
+     * @return the threshold in bytes.
+     */
+    public int getEncodingThreshold() {
+        return encodingThreshold;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectivelyPadded() {
+        return appendOnlyLog.isEffectivelyPadded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPaddingRequested() {
+        return appendOnlyLog.isPaddingRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectiveLinearOrdering() {
+        return appendOnlyLog.isEffectiveLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRequestedLinearOrdering() {
+        return appendOnlyLog.isRequestedLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAlwaysCheckpoint() {
+        return appendOnlyLog.isAlwaysCheckpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAuthoritativeCheckpointOnReads() {
+        return appendOnlyLog.isAuthoritativeCheckpointOnReads();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkpoint() {
+        appendOnlyLog.checkpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src) {
+        put(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src) {
+        return tryPut(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        put(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src, int offset, int length) {
+        return tryPut(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(ByteBuffer src) {
+        putWithLocation(src);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(ByteBuffer src) {
+        return tryPutWithLocation(src) != AppendOnlyLogWithLocation.ERROR_LOCATION;
+    }
+
+    /**
+     * As {@link #put(ByteBuffer)}, but returns the location of the record within the underlying log,
+     * for use with {@link #readRecordAt(int)}.
+     *
+     * @param src The source buffer from which bytes are to be read
+     * @return The location of the record within the underlying log
+     * @throws BufferOverflowException If there is insufficient space in the underlying log
+     */
+    public int putWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        int location = tryPutWithLocation(src);
+        if(location == AppendOnlyLogWithLocation.ERROR_LOCATION) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", location);
+        }
+        return location;
+    }
+
+    /**
+     * As {@link #tryPut(ByteBuffer)}, but returns the location of the record within the underlying log,
+     * for use with {@link #readRecordAt(int)}.
+     *
+     * @param src The source buffer from which bytes are to be read
+     * @return The location of the record within the underlying log, or {@link AppendOnlyLogWithLocation#ERROR_LOCATION} on failure.
+     */
+    public int tryPutWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        if(!src.hasRemaining()) {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", AppendOnlyLogWithLocation.ERROR_LOCATION);
+            }
+            return AppendOnlyLogWithLocation.ERROR_LOCATION;
+        }
+
+        // encode before reserving, as in linear ordering mode the reservation blocks other writers.
+        ByteBuffer encoded = encode(src);
+        ByteBuffer body = encoded == null ? src.duplicate() : encoded;
+
+        AppendOnlyLogReservation reservation = appendOnlyLog.tryReserve(FLAG_SIZE + body.remaining());
+        if(reservation == null) {
+            if(logger.isTraceEnabled()) {
+                logger.tracev("exit returning {0}", AppendOnlyLogWithLocation.ERROR_LOCATION);
+            }
+            return AppendOnlyLogWithLocation.ERROR_LOCATION;
+        }
+        try {
+            reservation.buffer().put(encoded == null ? RAW : ENCODED).put(body);
+        } catch (RuntimeException e) {
+            reservation.abort();
+            throw e;
+        }
+        reservation.commit();
+
+        src.position(src.limit());
+
+        int location = reservation.location();
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", location);
+        }
+        return location;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        if(!tryPutAll(srcs)) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Unlike single records, those in a batch are assembled with their flags in separate buffers before being written.
+     */
+    @Override
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        ByteBuffer[] records = new ByteBuffer[srcs.length];
+        for(int i = 0; i < srcs.length; i++) {
+            ByteBuffer encoded = encode(srcs[i]);
+            ByteBuffer body = encoded == null ? srcs[i].duplicate() : encoded;
+            records[i] = ByteBuffer.allocate(FLAG_SIZE + body.remaining());
+            records[i].put(encoded == null ? RAW : ENCODED).put(body).flip();
+        }
+
+        boolean result = appendOnlyLog.tryPutAll(records);
+        if(result) {
+            for(ByteBuffer src : srcs) {
+                src.position(src.limit());
+            }
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Read and decode the record at a location previously returned by a putWithLocation method.
+     *
+     * @param location The location of the record within the underlying log.
+     * @return A ByteBuffer containing the decoded payload.
+     * @see AppendOnlyLogWithLocation#readRecordAt(int)
+     */
+    public ByteBuffer readRecordAt(int location) {
+        return decode(appendOnlyLog.readRecordAt(location));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        appendOnlyLog.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void reset() {
+        appendOnlyLog.reset();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Records which compress well may take less space than this implies.
+     */
+    @Override
+    public int remaining() {
+        return Math.max(0, appendOnlyLog.remaining() - FLAG_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The payload is assumed not to compress, so a record reported as not fitting may yet fit if it does.
+     */
+    @Override
+    public boolean canAccept(int length) {
+        return appendOnlyLog.canAccept(length + FLAG_SIZE);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new DecodingItr(appendOnlyLog.iterator());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<ByteBuffer> copyingIterator() {
+        return new DecodingItr(appendOnlyLog.copyingIterator());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This wraps the underlying log's Spliterator, so decoding is parallelized along with its validation of the records.
+     */
+    @Override
+    public Spliterator<ByteBuffer> spliterator() {
+        return new DecodingSpliter(appendOnlyLog.spliterator());
+    }
+
+    /**
+     * Encode the payload, if it's large enough to be worth trying and the result is smaller.
+     *
+     * @param src the payload, which is not consumed.
+     * @return the encoded payload, or null if it should be stored as it is.
+     */
+    private ByteBuffer encode(ByteBuffer src) {
+        if(src.remaining() < encodingThreshold) {
+            return null;
+        }
+        ByteBuffer encoded = codec.encode(src);
+        return encoded == null || encoded.remaining() >= src.remaining() ? null : encoded;
+    }
+
+    private ByteBuffer decode(ByteBuffer record) {
+        byte flag = record.get(record.position());
+        ByteBuffer body = record.duplicate();
+        body.position(body.position() + FLAG_SIZE);
+        body = body.slice();
+
+        if(flag == RAW) {
+            return body;
+        }
+        if(flag == ENCODED) {
+            return codec.decode(body);
+        }
+
+        IllegalStateException illegalStateException = new IllegalStateException("unknown record encoding " + flag);
+        if(logger.isTraceEnabled()) {
+            logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+        }
+        throw illegalStateException;
+    }
+
+    private class DecodingItr implements Iterator<ByteBuffer> {
+
+        private final Iterator<ByteBuffer> iterator;
+
+        private DecodingItr(Iterator<ByteBuffer> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public ByteBuffer next() {
+            return decode(iterator.next());
+        }
+    }
+
+    private class DecodingSpliter implements Spliterator<ByteBuffer> {
+
+        private final Spliterator<ByteBuffer> spliterator;
+
+        private DecodingSpliter(Spliterator<ByteBuffer> spliterator) {
+            this.spliterator = spliterator;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super ByteBuffer> action) {
+            return spliterator.tryAdvance(record -> action.accept(decode(record)));
+        }
+
+        @Override
+        public Spliterator<ByteBuffer> trySplit() {
+            Spliterator<ByteBuffer> split = spliterator.trySplit();
+            return split == null ? null : new DecodingSpliter(split);
+        }
+
+        @Override
+        public long estimateSize() {
+            return spliterator.estimateSize();
+        }
+
+        @Override
+        public int characteristics() {
+            return spliterator.characteristics();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CodecAppendOnlyLog{" +
+                "appendOnlyLog=" + appendOnlyLog +
+                ", codec=" + codec +
+                ", encodingThreshold=" + encodingThreshold +
+                '}';
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.jboss.logging.Logger;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * A fast, pure Java, LZ77 family compression codec, in the style of LZ4.
+ * <p>
+ * It trades compression ratio for speed, finding matches via a small hash table of recently seen 4 byte sequences
+ * and taking the first one found, so is suited to payloads with repetitive content such as text or repeated identifiers.
+ * <p>
+ * The encoded form is the original length as an int, followed by a series of sequences. Each sequence is a token byte,
+ * with the literal count in the high nibble and the match length (less the minimum) in the low, then the literals,
+ * then the match as a two byte little-endian offset back into the output. A nibble of 15 is extended by following bytes,
+ * summed until one is less than 255. The last sequence has literals only.
+ */
+public class LzRecordCodec implements RecordCodec {
+
+    private static final Logger logger = Logger.getLogger(LzRecordCodec.class);
+
+    private static final int MIN_MATCH = 4;
+    private static final int MAX_OFFSET = 65535;
+
+    private static final int HASH_BITS = 12;
+
+    // after this many consecutive positions without a match, the search starts skipping ahead, so that
+    // incompressible data is passed over quickly.
+    private static final int SKIP_TRIGGER_BITS = 6;
+
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer encode(ByteBuffer src) {
+        int length = src.remaining();
+        if(length <= MIN_MATCH + LENGTH_SIZE) {
+            return null;
+        }
+
+        byte[] in = new byte[length];
+        src.get(src.position(), in);
+
+        // beyond the worst case for incompressible input, but anything longer than the input is given up on anyway.
+        byte[] out = new byte[length];
+        int outPos = LENGTH_SIZE;
+
+        // positions are stored plus one, so that zero means empty.
+        int[] table = new int[1 << HASH_BITS];
+
+        int anchor = 0;
+        int pos = 0;
+        int misses = 0;
+        int matchLimit = length - MIN_MATCH;
+        while(pos <= matchLimit) {
+            int sequence = readInt(in, pos);
+            int hash = hash(sequence);
+            int candidate = table[hash] - 1;
+            table[hash] = pos + 1;
+
+            if(candidate < 0 || pos - candidate > MAX_OFFSET || readInt(in, candidate) != sequence) {
+                pos += 1 + (misses++ >>> SKIP_TRIGGER_BITS);
+                continue;
+            }
+            misses = 0;
+
+            int matchLength = MIN_MATCH;
+            while(pos + matchLength < length && in[candidate + matchLength] == in[pos + matchLength]) {
+                matchLength++;
+            }
+
+            outPos = writeSequence(out, outPos, in, anchor, pos - anchor, pos - candidate, matchLength);
+            if(outPos < 0) {
+                return null;
+            }
+            pos += matchLength;
+            anchor = pos;
+        }
+
+        outPos = writeSequence(out, outPos, in, anchor, length - anchor, 0, 0);
+        if(outPos < 0 || outPos >= length) {
+            return null;
+        }
+
+        ByteBuffer result = ByteBuffer.wrap(out, 0, outPos);
+        result.putInt(0, length);
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ByteBuffer decode(ByteBuffer src) {
+        ByteBuffer in = src.duplicate();
+        if(in.remaining() < LENGTH_SIZE) {
+            throw invalidEncoding();
+        }
+        int length = in.getInt();
+        if(length < 0) {
+            throw invalidEncoding();
+        }
+        byte[] out = new byte[length];
+        int outPos = 0;
+
+        try {
+            while(true) {
+                int token = in.get() & 0xFF;
+
+                int literalCount = readLength(in, token >>> 4);
+                in.get(out, outPos, literalCount);
+                outPos += literalCount;
+
+                if(!in.hasRemaining()) {
+                    break;
+                }
+
+                int offset = (in.get() & 0xFF) | ((in.get() & 0xFF) << 8);
+                int matchLength = readLength(in, token & 0x0F) + MIN_MATCH;
+                if(offset == 0 || offset > outPos || matchLength > length - outPos) {
+                    throw invalidEncoding();
+                }
+                // the match may overlap the bytes it produces, so must be copied a byte at a time.
+                for(int i = 0; i < matchLength; i++) {
+                    out[outPos] = out[outPos - offset];
+                    outPos++;
+                }
+            }
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw invalidEncoding();
+        }
+
+        if(outPos != length) {
+            throw invalidEncoding();
+        }
+
+        return ByteBuffer.wrap(out);
+    }
+
+    /**
+     * Write a sequence of literals and, unless the matchLength is zero, a match.
+     *
+     * @return the new output position, or -1 if the output is full.
+     */
+    private static int writeSequence(byte[] out, int outPos, byte[] in, int literalStart, int literalCount, int offset, int matchLength) {
+        // the most the token, length extensions and offset can take, in addition to the literals.
+        int overhead = 1 + literalCount / 255 + 1 + 2 + (matchLength / 255) + 1;
+        if(outPos + overhead + literalCount > out.length) {
+            return -1;
+        }
+
+        int matchNibble = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+        int tokenPos = outPos++;
+        out[tokenPos] = (byte) ((Math.min(literalCount, 15) << 4) | Math.min(matchNibble, 15));
+
+        outPos = writeLength(out, outPos, literalCount);
+        System.arraycopy(in, literalStart, out, outPos, literalCount);
+        outPos += literalCount;
+
+        if(matchLength != 0) {
+            out[outPos++] = (byte) offset;
+            out[outPos++] = (byte) (offset >>> 8);
+            outPos = writeLength(out, outPos, matchNibble);
+        }
+
+        return outPos;
+    }
+
+    private static int writeLength(byte[] out, int outPos, int value) {
+        if(value >= 15) {
+            value -= 15;
+            while(value >= 255) {
+                out[outPos++] = (byte) 255;
+                value -= 255;
+            }
+            out[outPos++] = (byte) value;
+        }
+        return outPos;
+    }
+
+    private static int readLength(ByteBuffer in, int nibble) {
+        int value = nibble;
+        if(nibble == 15) {
+            int next;
+            do {
+                next = in.get() & 0xFF;
+                value += next;
+            } while(next == 255);
+        }
+        return value;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16) | ((bytes[pos + 3] & 0xFF) << 24);
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_BITS);
+    }
+
+    private static IllegalArgumentException invalidEncoding() {
+        IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid encoding");
+        if(logger.isTraceEnabled()) {
+            logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+        }
+        return illegalArgumentException;
+    }
+}
@@ -26,11 +26,19 @@ import java.nio.channels.*;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An append-only log structure built over memory-mapped pmem, pretending to be a FileChannel for easy integration.
+ * <p>
+ * By default each write is persisted before it returns, along with the persisted size metadata.
+ * In deferred durability mode, writes instead only record the ranges they dirtied, and {@link #force(boolean)}
+ * persists all of those followed by a single metadata update, as a FileChannel would sync them.
+ * That suits applications which make many small writes followed by one force, as it costs one fence per force
+ * rather than two per write.
  *
  * @author Jonathan Halliday (jonathan.halliday@redhat.com)
  * @since 2019-04
@@ -39,6 +47,14 @@ public class MappedFileChannel extends FileChannel {
 
     private static final Logger logger = Logger.getLogger(MappedFileChannel.class);
 
+    // the most transferTo writes to, or transferFrom reads from, another kind of channel in one call.
+    // As for the JDK's FileChannel when transferring via a mapping, this bounds the work done per call
+    // without making the per-call overhead noticeable.
+    private static final int TRANSFER_CHUNK_SIZE = 8 * 1024 * 1024;
+
+    // source for zeroing gaps, which are usually small.
+    private static final byte[] ZEROS = new byte[4096];
+
     private static Unsafe unsafe;
 
     static {
@@ -71,9 +87,32 @@ public class MappedFileChannel extends FileChannel {
     private final FileChannel fileChannel;
     private final ByteBuffer rawBuffer;
     private final ByteBuffer dataBuffer;
+    // a view of the dataBuffer for lock-free access, whose state is never changed, so it's safe to slice concurrently.
+    private final ByteBuffer sliceableBuffer;
 
     private final MappedFileChannelMetadata metadata;
 
+    // positional reads and writes don't hold the lock whilst accessing the mapping,
+    // so instead closing waits for those in progress before unmapping.
+    private final AtomicInteger lockFreeAccesses = new AtomicInteger();
+    private volatile boolean closing = false;
+
+    // writes in progress, or completed but not yet covered by the persisted size, keyed by their start position. Guarded by the lock.
+    // Positional writes to disjoint ranges may run concurrently and complete out of order, so the persisted size advances
+    // only over the completed writes that precede any still in progress, and never covers a write that may not have finished.
+    private final TreeMap<Integer, PendingWrite> pendingWrites = new TreeMap<>();
+    // signalled as writes complete, for clear to wait on.
+    private final Condition pendingWritesChanged = lock.newCondition();
+
+    // in deferred durability mode, the handle which records the ranges to persist on force, otherwise null.
+    private final PersistenceHandle deferredPersistenceHandle;
+    // in deferred durability mode, the persistence index which the next force will record.
+    // Written only with the lock held, but may be read without it.
+    private volatile int unforcedIndex;
+
+    // true once views of the mapping have been handed out by map, after which it's no longer safe to unmap or truncate on close.
+    private boolean viewsMapped = false;
+
     /**
      * Initializes a new MappedFileChannel over the provided File, with a fixed length.
      *
@@ -83,8 +122,22 @@ public class MappedFileChannel extends FileChannel {
      * @throws IOException if the mapping cannot be created, such as when the File is on a filesystem that does not support DAX.
      */
     public MappedFileChannel(File file, int length, boolean readSharedMetadata) throws IOException {
+        this(file, length, readSharedMetadata, false);
+    }
+
+    /**
+     * Initializes a new MappedFileChannel over the provided File, with a fixed length.
+     *
+     * @param file               The file over which to map.
+     * @param length             The required raw capacity.
+     * @param readSharedMetadata The sharing mode for the persistence metadata.
+     * @param deferredDurability true if writes should be persisted only on force, false if they should be persisted immediately.
+     * @throws IOException if the mapping cannot be created, such as when the File is on a filesystem that does not support DAX.
+     */
+    public MappedFileChannel(File file, int length, boolean readSharedMetadata, boolean deferredDurability) throws IOException {
         if(logger.isTraceEnabled()) {
-            logger.tracev("entry with file={0}, length={1}, readSharedMetadata={2}", file, length, readSharedMetadata);
+            logger.tracev("entry with file={0}, length={1}, readSharedMetadata={2}, deferredDurability={3}",
+                    file, length, readSharedMetadata, deferredDurability);
         }
 
         this.file = file;
@@ -115,10 +168,14 @@ public class MappedFileChannel extends FileChannel {
         tmp.position(0);
         tmp.limit(length);
         dataBuffer = tmp.slice();
+        sliceableBuffer = dataBuffer.duplicate();
 
         metadata = new MappedFileChannelMetadata(getMetadataFile(file), readSharedMetadata);
         dataBuffer.position(0);
 
+        deferredPersistenceHandle = deferredDurability ? persistenceHandle.deferring() : null;
+        unforcedIndex = metadata.getPersistenceIndex();
+
         if(logger.isTraceEnabled()) {
             logger.tracev("exit {0}", this);
         }
@@ -214,11 +271,15 @@ public class MappedFileChannel extends FileChannel {
      * method does not modify this channel's position.  If the given position
      * is greater than the file's current size then no bytes are read.  </p>
      *
+     * <p> This method takes no lock, so concurrent reads proceed in parallel with each other and with writes.
+     * The data read is that covered by the persisted size, or in deferred durability mode, the written data,
+     * when the read begins. A read concurrent with clear may however return data from either side of it. </p>
+     *
      * @param dst      The buffer into which bytes are to be transferred.
      * @param position The file position at which the transfer is to begin.
      * @return The number of bytes read, possibly zero, or {@code -1} if the
      * given position is greater than or equal to the file's current
-     * persisted size
+     * persisted size, or in deferred durability mode, the end of the written data.
      */
     @Override
     public int read(ByteBuffer dst, long position) throws IOException {
@@ -226,21 +287,20 @@ public class MappedFileChannel extends FileChannel {
             logger.tracev("entry for {0} with dst={1} and position={2}", this, dst, position);
         }
 
-        lock.lock();
         int result = 0;
 
+        beginLockFreeAccess();
         try {
-            validateIsOpen();
             validatePosition(position);
 
-            int length = metadata.getPersistenceIndex() - (int) position;
+            int length = getPublishedIndex() - (int) position;
             if (length <= 0) {
                 length = -1;
             }
             length = Math.min(length, dst.remaining());
 
             if (length > 0) {
-                ByteBuffer srcSlice = dataBuffer.slice((int) position, length);
+                ByteBuffer srcSlice = sliceableBuffer.slice((int) position, length);
                 dst.put(srcSlice);
                 result = srcSlice.position();
             } else {
@@ -248,7 +308,7 @@ public class MappedFileChannel extends FileChannel {
             }
 
         } finally {
-            lock.unlock();
+            endLockFreeAccess();
         }
 
         if(logger.isTraceEnabled()) {
@@ -260,9 +320,13 @@ public class MappedFileChannel extends FileChannel {
     /**
      * Writes a sequence of bytes to this channel from the given buffer.
      * <p>
-     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed).
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed),
+     * or in deferred durability mode, will be on the next force.
      * This channel's position will be advanced by the returned number of bytes.
      *
+     * <p> As for {@link #write(ByteBuffer, long)}, writes may be made concurrently. Each is allocated its position
+     * when it reserves its range, so the writes are ordered as they start, though they may complete in any order. </p>
+     *
      * @param src The buffer from which bytes are to be transferred.
      *            Its position will be advanced by the returned number of bytes.
      * @return The number of bytes written, possibly zero.
@@ -273,18 +337,44 @@ public class MappedFileChannel extends FileChannel {
             logger.tracev("entry for {0} with src={1}", this, src);
         }
 
-        lock.lock();
         int result = 0;
 
-        try {
-            validateIsOpen();
+        if (deferredPersistenceHandle != null) {
+            // the deferring handle isn't thread safe, so hold the lock throughout.
+            lock.lock();
+            try {
+                validateIsOpen();
 
-            result = writeInternal(src, dataBuffer.position());
+                result = writeInternal(src, dataBuffer.position());
 
-            dataBuffer.position(dataBuffer.position() + result);
+                dataBuffer.position(dataBuffer.position() + result);
 
-        } finally {
-            lock.unlock();
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            beginLockFreeAccess();
+            try {
+                // the position is allocated along with the reservation, so concurrent writes reserve in order,
+                // then copy and persist their data in parallel.
+                int position;
+                int length;
+                PendingWrite pendingWrite;
+                lock.lock();
+                try {
+                    position = dataBuffer.position();
+                    length = Math.min(dataBuffer.limit() - position, src.remaining());
+                    pendingWrite = reserve(position, length);
+                    dataBuffer.position(position + length);
+                } finally {
+                    lock.unlock();
+                }
+
+                result = writeReserved(pendingWrite, src, position, length);
+
+            } finally {
+                endLockFreeAccess();
+            }
         }
 
         if(logger.isTraceEnabled()) {
@@ -297,16 +387,26 @@ public class MappedFileChannel extends FileChannel {
      * Writes a sequence of bytes to this channel from the given buffer,
      * starting at the given file position.
      * <p>
-     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed).
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed),
+     * or in deferred durability mode, will be on the next force.
      *
      * <p> This method works in the same manner as the {@link
      * #write(ByteBuffer)} method, except that bytes are written starting at
      * the given file position rather than at the channel's current position.
      * This method does not modify this channel's position.
      *
+     * <p> Writes to disjoint ranges may be made concurrently, as the lock is held only to reserve the range
+     * and then to record its completion, not whilst copying and persisting the data. The persisted size advances
+     * over a completed write once no write reserved before it in the file remains in progress, so it never covers
+     * a write that may not have finished. As for a single writer, a write beyond the persisted size leaves a gap,
+     * which it then covers. Thus a write that reserves its range after a later one in the file has completed fails,
+     * so concurrent writers choosing their own positions must start their writes in order of position.
+     * A write overlapping one in progress also fails. In deferred durability mode, writes are instead serialized. </p>
+     *
      * @param src      The buffer from which bytes are to be transferred.
      * @param position The file position at which the transfer is to begin.
      * @return The number of bytes written, possibly zero.
+     * @throws IllegalArgumentException if the range is before the persisted size, or overlaps a write in progress.
      */
     @Override
     public int write(ByteBuffer src, long position) throws IOException {
@@ -314,14 +414,344 @@ public class MappedFileChannel extends FileChannel {
             logger.tracev ("entry for {0} with src={1}, position={2}", this, src, position);
         }
 
-        lock.lock();
         int result = 0;
 
+        if (deferredPersistenceHandle != null) {
+            // the deferring handle isn't thread safe, so hold the lock throughout.
+            lock.lock();
+            try {
+                validateIsOpen();
+                validatePosition(position);
+
+                result = writeInternal(src, (int) position);
+
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            beginLockFreeAccess();
+            try {
+                validatePosition(position);
+
+                result = writeInternal(src, (int) position);
+
+            } finally {
+                endLockFreeAccess();
+            }
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a sequence of bytes from this channel into a subsequence of the given buffers.
+     *
+     * <p> Bytes are read starting at this channel's current file position, filling each buffer in turn
+     * directly from the mapping, and then the file position is updated with the number of bytes actually read.
+     * Otherwise this method behaves exactly as specified in the {@link
+     * java.nio.channels.ScatteringByteChannel} interface. </p>
+     *
+     * @param dsts   The buffers into which bytes are to be transferred.
+     * @param offset The offset within the buffer array of the first buffer into which bytes are to be transferred.
+     * @param length The maximum number of buffers to be accessed.
+     * @return The number of bytes read, possibly zero, or {@code -1} if the
+     * position is greater than or equal to the file's current persisted size,
+     * or in deferred durability mode, the end of the written data.
+     */
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with dsts.length={1}, offset={2}, length={3}", this, dsts.length, offset, length);
+        }
+
+        Objects.checkFromIndexSize(offset, length, dsts.length);
+
+        lock.lock();
+        long result = 0;
+
+        try {
+            validateIsOpen();
+
+            int position = dataBuffer.position();
+            int available = getWrittenIndex() - position;
+
+            if (available <= 0) {
+                result = -1;
+            } else {
+                int total = 0;
+                for (int i = offset; i < offset + length && total < available; i++) {
+                    ByteBuffer dst = dsts[i];
+                    int transferLength = Math.min(available - total, dst.remaining());
+                    dst.put(dst.position(), dataBuffer, position + total, transferLength);
+                    dst.position(dst.position() + transferLength);
+                    total += transferLength;
+                }
+                dataBuffer.position(position + total);
+                result = total;
+            }
+
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a sequence of bytes to this channel from a subsequence of the given buffers.
+     * <p>
+     * The buffers are copied back to back into the mapping, then persisted together with a single metadata update,
+     * so a gathering write costs no more to persist than a write of one buffer of the same total size.
+     * After this method returns successfully, the data is guaranteed persisted (i.e. flushed),
+     * or in deferred durability mode, will be on the next force.
+     * This channel's position will be advanced by the returned number of bytes.
+     *
+     * @param srcs   The buffers from which bytes are to be transferred.
+     *               Their positions will be advanced by the number of bytes transferred from each.
+     * @param offset The offset within the buffer array of the first buffer from which bytes are to be transferred.
+     * @param length The maximum number of buffers to be accessed.
+     * @return The number of bytes written, possibly zero.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}, offset={2}, length={3}", this, srcs.length, offset, length);
+        }
+
+        Objects.checkFromIndexSize(offset, length, srcs.length);
+
+        lock.lock();
+        long result = 0;
+
         try {
             validateIsOpen();
+
+            int position = dataBuffer.position();
+
+            int total = 0;
+            for (int i = offset; i < offset + length; i++) {
+                total += Math.min(dataBuffer.remaining() - total, srcs[i].remaining());
+            }
+
+            PendingWrite pendingWrite = reserve(position, total);
+            if (pendingWrite != null) {
+                int persisted = 0;
+                try {
+                    int written = 0;
+                    for (int i = offset; i < offset + length && written < total; i++) {
+                        ByteBuffer src = srcs[i];
+                        int transferLength = Math.min(total - written, src.remaining());
+                        dataBuffer.put(position + written, src, src.position(), transferLength);
+                        src.position(src.position() + transferLength);
+                        written += transferLength;
+                    }
+                    zeroGap(pendingWrite);
+                    persistData(pendingWrite.start, position + total - pendingWrite.start);
+                    persisted = total;
+                } finally {
+                    finish(pendingWrite, persisted);
+                }
+                dataBuffer.position(position + total);
+            }
+            result = total;
+
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Transfers bytes from this channel's file to the given writable byte channel.
+     *
+     * <p> Bytes are written to the target straight from the mapping, in chunks, rather than through an intermediate buffer.
+     * If the target is another MappedFileChannel, the bytes are instead copied in one go, and so persisted together.
+     * Bytes beyond the persisted size, or in deferred durability mode, the end of the written data, are not transferred.
+     * This method does not modify this channel's position. </p>
+     *
+     * @param position The position within the file at which the transfer is to begin.
+     * @param count    The maximum number of bytes to be transferred.
+     * @param target   The target channel.
+     * @return The number of bytes, possibly zero, that were actually transferred.
+     */
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with position={1}, count={2}, target={3}", this, position, count, target);
+        }
+
+        validateTransfer(position, count);
+
+        long result = 0;
+
+        // as for read(dst, position), the lock isn't needed, so isn't held whilst the target is written.
+        // Were it held, the target taking its own lock, e.g. as another MappedFileChannel transferring back to this one, could deadlock.
+        beginLockFreeAccess();
+        try {
+            validatePosition(position);
+
+            int length = (int) Math.min(count, Math.max(0, getPublishedIndex() - position));
+            int chunkSize = target instanceof MappedFileChannel ? length : TRANSFER_CHUNK_SIZE;
+
+            int total = 0;
+            while (total < length) {
+                ByteBuffer chunk = sliceableBuffer.slice((int) position + total, Math.min(chunkSize, length - total));
+                total += target.write(chunk);
+                if (chunk.hasRemaining()) {
+                    // the target can't take any more for now, e.g. a non-blocking socket.
+                    break;
+                }
+            }
+            result = total;
+
+        } finally {
+            endLockFreeAccess();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Transfers bytes into this channel's file from the given readable byte channel.
+     *
+     * <p> Bytes are read from the source straight into the mapping, and persisted once per chunk
+     * rather than per read. If the source is another MappedFileChannel, the bytes are instead copied in one go,
+     * and so persisted together. The transfer is limited by the capacity of this channel.
+     * This method does not modify this channel's position. </p>
+     *
+     * <p> After this method returns successfully, the data is guaranteed persisted (i.e. flushed),
+     * or in deferred durability mode, will be on the next force. </p>
+     *
+     * @param src      The source channel.
+     * @param position The position within the file at which the transfer is to begin.
+     * @param count    The maximum number of bytes to be transferred.
+     * @return The number of bytes, possibly zero, that were actually transferred.
+     */
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}, position={2}, count={3}", this, src, position, count);
+        }
+
+        validateTransfer(position, count);
+
+        long result = 0;
+
+        // as for write(src, position), the lock is held only to reserve the range and record its completion,
+        // not whilst the source is read. Were it held, the source taking its own lock could deadlock.
+        beginLockFreeAccess();
+        try {
             validatePosition(position);
 
-            result = writeInternal(src, (int) position);
+            int length = (int) Math.min(count, dataBuffer.limit() - position);
+            int chunkSize = src instanceof MappedFileChannel ? length : TRANSFER_CHUNK_SIZE;
+
+            // the source may run dry before the end, in which case the unused part of the reservation is released.
+            PendingWrite pendingWrite = reserve((int) position, length);
+            int total = 0;
+            try {
+                int persistFrom = (int) position;
+                if (pendingWrite != null) {
+                    zeroGap(pendingWrite);
+                    persistFrom = pendingWrite.start;
+                }
+                boolean endOfInput = false;
+                while (total < length && !endOfInput) {
+                    int chunkStart = (int) position + total;
+                    ByteBuffer chunk = sliceableBuffer.slice(chunkStart, Math.min(chunkSize, length - total));
+                    while (chunk.hasRemaining() && !endOfInput) {
+                        endOfInput = src.read(chunk) <= 0;
+                    }
+                    if (chunk.position() > 0) {
+                        persistData(persistFrom, chunkStart + chunk.position() - persistFrom);
+                        total += chunk.position();
+                        persistFrom = chunkStart + chunk.position();
+                    }
+                }
+            } finally {
+                if (pendingWrite != null) {
+                    finish(pendingWrite, total);
+                }
+            }
+            result = total;
+
+        } finally {
+            endLockFreeAccess();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns a read-only view of a region of the persisted data.
+     *
+     * <p> Unlike FileChannel.map, this does not create a new mapping, but returns a view of the one already held by the channel,
+     * so records may be parsed in place without copying. Only the persisted prefix of the file, i.e. up to {@link #getPersistedSize()},
+     * may be mapped, and only in {@link java.nio.channels.FileChannel.MapMode#READ_ONLY READ_ONLY} mode.
+     * Since persisted data can't be overwritten, the view's contents are fixed unless the channel is cleared and then rewritten. </p>
+     *
+     * <p> A ByteBuffer can't be invalidated, so once a view has been returned, closing the channel neither unmaps nor truncates the file,
+     * either of which would crash the JVM on the view's next access. Instead, the mapping is released by the garbage collector once the views
+     * are unreachable, and the file keeps its full length. Meanwhile the views remain usable, showing the file's current contents. </p>
+     *
+     * @param mode     The mapping mode, which must be READ_ONLY.
+     * @param position The position within the file at which the view is to start.
+     * @param size     The size of the view.
+     * @return A read-only view of the given region.
+     * @throws UnsupportedOperationException if the mode is other than READ_ONLY.
+     * @throws IndexOutOfBoundsException if the region extends beyond the persisted size.
+     * @throws ClosedChannelException if the channel is not open.
+     */
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with mode={1}, position={2}, size={3}", this, mode, position, size);
+        }
+
+        if (mode != MapMode.READ_ONLY) {
+            UnsupportedOperationException unsupportedOperationException =
+                    new UnsupportedOperationException("Map mode " + mode + " is not supported, only READ_ONLY");
+            if(logger.isTraceEnabled()) {
+                logger.tracev(unsupportedOperationException, "throwing {0}", unsupportedOperationException.toString());
+            }
+            throw unsupportedOperationException;
+        }
+
+        lock.lock();
+        MappedByteBuffer result = null;
+
+        try {
+            validateIsOpen();
+
+            int persistenceIndex = metadata.getPersistenceIndex();
+            if (position < 0 || size < 0 || position + size > persistenceIndex) {
+                IndexOutOfBoundsException indexOutOfBoundsException = new IndexOutOfBoundsException(
+                        "Region of size " + size + " at position " + position + " exceeds persisted size " + persistenceIndex);
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(indexOutOfBoundsException, "throwing {0}", indexOutOfBoundsException.toString());
+                }
+                throw indexOutOfBoundsException;
+            }
+
+            // slices of a mapped buffer are themselves MappedByteBuffers, sharing its mapping.
+            result = (MappedByteBuffer) dataBuffer.slice((int) position, (int) size).asReadOnlyBuffer();
+            viewsMapped = true;
 
         } finally {
             lock.unlock();
@@ -333,8 +763,178 @@ public class MappedFileChannel extends FileChannel {
         return result;
     }
 
+    private void validateTransfer(long position, long count) throws IllegalArgumentException {
+        if (position < 0 || count < 0) {
+            IllegalArgumentException illegalArgumentException =
+                    new IllegalArgumentException("Invalid position " + position + " or count " + count);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+    }
+
+    /**
+     * Write the src at the given position. This may be called with or without the lock held,
+     * but in the latter case the caller must have registered a lock-free access.
+     */
     private int writeInternal(ByteBuffer src, int position) throws ClosedChannelException {
 
+        int length = Math.min(dataBuffer.limit() - position, src.remaining());
+
+        PendingWrite pendingWrite = reserve(position, length);
+
+        return writeReserved(pendingWrite, src, position, length);
+    }
+
+    /**
+     * Write the src into a range already reserved for it, then record its completion.
+     */
+    private int writeReserved(PendingWrite pendingWrite, ByteBuffer src, int position, int length) throws ClosedChannelException {
+
+        if (pendingWrite == null) {
+            return 0;
+        }
+
+        int persisted = 0;
+        try {
+            ByteBuffer srcSlice = src.slice(src.position(), length);
+            ByteBuffer dst = sliceableBuffer.slice(position, length);
+
+            zeroGap(pendingWrite);
+            dst.put(srcSlice);
+            persistData(pendingWrite.start, position + length - pendingWrite.start);
+            persisted = length;
+        } finally {
+            finish(pendingWrite, persisted);
+        }
+
+        src.position(src.position() + length);
+
+        return length;
+    }
+
+    /**
+     * Reserve the given range for a write, along with any gap before it, so that no other write may overlap them.
+     *
+     * @return the reservation, or null if the length is zero, in which case there's nothing to reserve.
+     * @throws IllegalArgumentException if the range is before the persisted size, or overlaps a write in progress.
+     */
+    private PendingWrite reserve(int position, int length) throws ClosedChannelException {
+        PendingWrite pendingWrite = null;
+
+        lock.lock();
+        try {
+            validateWrite(position);
+
+            if (length > 0) {
+                Map.Entry<Integer, PendingWrite> before = pendingWrites.floorEntry(position);
+                Map.Entry<Integer, PendingWrite> after = pendingWrites.ceilingEntry(position);
+                if ((before != null && before.getValue().end > position) || (after != null && after.getKey() < position + length)) {
+                    IllegalArgumentException illegalArgumentException = new IllegalArgumentException(
+                            "Write range of length " + length + " at position " + position + " overlaps a write in progress");
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+                    }
+                    throw illegalArgumentException;
+                }
+
+                // a write beyond the end of those before it leaves a gap, which may hold stale data from before a clear.
+                // The write reserves the gap too, and zeroes it, before the persisted size can cover it.
+                int gapStart = before != null ? before.getValue().end : getWrittenIndex();
+                pendingWrite = new PendingWrite(gapStart, position, position + length);
+                pendingWrites.put(gapStart, pendingWrite);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return pendingWrite;
+    }
+
+    /**
+     * Record the completion of a reserved write, whose data has been persisted (or in deferred durability mode, recorded for force),
+     * then advance the persisted size over the completed writes which are no longer preceded by any in progress.
+     *
+     * @param pendingWrite the reservation.
+     * @param length the number of bytes actually written, which may be less than reserved, in which case the rest is released,
+     *               unless a later write relies on it to cover the gap before that, in which case the rest is zeroed.
+     */
+    private void finish(PendingWrite pendingWrite, int length) throws ClosedChannelException {
+        lock.lock();
+        try {
+            int writtenEnd = pendingWrite.dataStart + length;
+            if (writtenEnd < pendingWrite.end && pendingWrites.higherKey(pendingWrite.start) != null) {
+                int zeroFrom = length == 0 ? pendingWrite.start : writtenEnd;
+                zeroData(zeroFrom, pendingWrite.end - zeroFrom);
+                persistData(zeroFrom, pendingWrite.end - zeroFrom);
+                pendingWrite.completed = true;
+            } else if (length == 0) {
+                pendingWrites.remove(pendingWrite.start);
+            } else {
+                pendingWrite.end = writtenEnd;
+                pendingWrite.completed = true;
+            }
+
+            int watermark = -1;
+            while (!pendingWrites.isEmpty() && pendingWrites.firstEntry().getValue().completed) {
+                watermark = pendingWrites.pollFirstEntry().getValue().end;
+            }
+
+            if (watermark != -1) {
+                if (deferredPersistenceHandle != null) {
+                    unforcedIndex = watermark;
+                } else {
+                    metadata.persist(watermark, 0);
+                }
+            }
+
+            pendingWritesChanged.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Zero the gap reserved before a write's data, which is persisted along with the data.
+     */
+    private void zeroGap(PendingWrite pendingWrite) {
+        if (pendingWrite.start < pendingWrite.dataStart) {
+            zeroData(pendingWrite.start, pendingWrite.dataStart - pendingWrite.start);
+        }
+    }
+
+    /**
+     * Zero a range of the data, using absolute puts, so that it's safe alongside lock-free access to the same buffer.
+     */
+    private void zeroData(int position, int length) {
+        int end = position + length;
+        while (position < end) {
+            int chunk = Math.min(ZEROS.length, end - position);
+            sliceableBuffer.put(position, ZEROS, 0, chunk);
+            position += chunk;
+        }
+    }
+
+    /**
+     * A range reserved for a write, which starts with any gap left before its data.
+     */
+    private static class PendingWrite {
+
+        private final int start;
+        private final int dataStart;
+        private int end;
+        private boolean completed = false;
+
+        private PendingWrite(int start, int dataStart, int end) {
+            this.start = start;
+            this.dataStart = dataStart;
+            this.end = end;
+        }
+    }
+
+    private void validateWrite(int position) throws ClosedChannelException {
+
         if(metadata.isReadShared()) {
             IllegalStateException illegalStateException = new IllegalStateException("ReadShared views can not be used for writes");
             if(logger.isTraceEnabled()) {
@@ -343,31 +943,59 @@ public class MappedFileChannel extends FileChannel {
             throw illegalStateException;
         }
 
-        if (position < metadata.getPersistenceIndex()) {
+        int writtenIndex = getWrittenIndex();
+        if (position < writtenIndex) {
             IllegalArgumentException illegalArgumentException = new IllegalArgumentException(
-                    "Write position "+position+" is before tail position "+metadata.getPersistenceIndex()+" - can not overwrite existing data");
+                    "Write position "+position+" is before tail position "+writtenIndex+" - can not overwrite existing data");
             if(logger.isTraceEnabled()) {
                 logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
             }
             throw illegalArgumentException;
         }
+    }
 
-        int length = Math.min(dataBuffer.remaining(), src.remaining());
-
-        ByteBuffer srcSlice = src.slice(src.position(), length);
-        ByteBuffer dst = dataBuffer.slice(position, length);
-
-        dst.put(srcSlice);
-        src.position(src.position() + length);
+    /**
+     * Persist the given range of data, or in deferred durability mode, record it for the next force.
+     * The persisted size is updated separately, once the write is complete.
+     */
+    private void persistData(int startIndex, int length) {
+        if(deferredPersistenceHandle != null) {
+            // the deferring handle isn't thread safe. Writes hold the lock throughout in this mode, but transfers don't.
+            lock.lock();
+            try {
+                deferredPersistenceHandle.persist(startIndex, length);
+            } finally {
+                lock.unlock();
+            }
+        } else {
+            persistenceHandle.persist(startIndex, length);
+        }
+    }
 
-        persist(position, length);
+    /**
+     * Returns the end of the written data, which in deferred durability mode may be beyond the persisted size.
+     */
+    private int getWrittenIndex() throws ClosedChannelException {
+        return deferredPersistenceHandle != null ? unforcedIndex : metadata.getPersistenceIndex();
+    }
 
-        return length;
+    /**
+     * As getWrittenIndex, but without locking, for the lock-free read path.
+     * The data is always written before the index that covers it is published.
+     */
+    private int getPublishedIndex() {
+        return deferredPersistenceHandle != null ? unforcedIndex : metadata.getPublishedPersistenceIndex();
     }
 
-    private void persist(int startIndex, int length) throws ClosedChannelException {
-        persistenceHandle.persist(startIndex, length);
-        metadata.persist(startIndex, length);
+    /**
+     * In deferred durability mode, persist the ranges written since the last force, then the persisted size.
+     * The data goes first, so that the persisted size never covers data that isn't yet persistent.
+     */
+    private void forceInternal() throws ClosedChannelException {
+        if(deferredPersistenceHandle != null && unforcedIndex != metadata.getPersistenceIndex()) {
+            deferredPersistenceHandle.drain();
+            metadata.persist(unforcedIndex, 0);
+        }
     }
 
     /**
@@ -522,19 +1150,49 @@ public class MappedFileChannel extends FileChannel {
     }
 
     /**
-     * A null-op, since the write methods are immediately persistent.
+     * Returns the durability mode.
      *
-     * @param metaData ignored.
-     * @throws IOException never.
+     * @return true if writes are persisted only on force, false if they are persisted immediately.
+     */
+    public boolean isDeferredDurability() {
+        return deferredPersistenceHandle != null;
+    }
+
+    /**
+     * In deferred durability mode, persists the writes made since the last force, then advances the persisted size to cover them.
+     * Otherwise, a null-op, since the write methods are immediately persistent.
+     *
+     * @param metaData ignored, as the persisted size is the only metadata, and is always updated.
+     * @throws ClosedChannelException if the channel is not open.
      */
     @Override
     public void force(boolean metaData) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with metaData={1}", this, metaData);
+        }
+
+        lock.lock();
+        try {
+            validateIsOpen();
+
+            forceInternal();
+
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
     }
 
     /**
      * Clears the file contents.
      * <p>
-     * This operation overwrites the entire capacity, so may be slow on large files.
+     * This operation resets only the persistence metadata, so takes constant time.
+     * The previous contents remain in place, but are beyond the persisted size so can't be read.
+     * A later write beyond the persisted size zeroes the gap before it, so they can't become readable that way either.
+     * Writes in progress are waited for, lest they land in the cleared file.
      *
      * @throws ClosedChannelException if the channel is not open.
      */
@@ -546,11 +1204,17 @@ public class MappedFileChannel extends FileChannel {
         lock.lock();
         try {
 
-            // first overwrite the metadata to invalidate the file,
-            // in case we crash in inconsistent state whilst zeroing the rest
+            // writes in progress need the lock to complete, which waiting releases.
+            // Completed writes are removed once none before them are in progress, so this ends with none left.
+            while (!pendingWrites.isEmpty()) {
+                pendingWritesChanged.awaitUninterruptibly();
+            }
+
+            // reads don't go beyond the persistence index, so there is no need to zero the data.
             metadata.clear();
-            clearDataFromOffset(0);
             dataBuffer.position(0);
+            // any ranges still awaiting force are persisted by the next one, which is harmless.
+            unforcedIndex = 0;
 
         } finally {
             lock.unlock();
@@ -561,20 +1225,6 @@ public class MappedFileChannel extends FileChannel {
         }
     }
 
-    private void clearDataFromOffset(int offset) {
-        // sun.misc.Unsafe.setMemory may be faster, but would require linking against jdk.unsupported module
-        dataBuffer.clear();
-        dataBuffer.position(offset);
-        byte[] zeros = new byte[1024 * 1024];
-        while (dataBuffer.remaining() > 0) {
-            dataBuffer.put(zeros, 0, dataBuffer.remaining() > zeros.length ? zeros.length : dataBuffer.remaining());
-        }
-        // we could force every N lines whilst looping above, but assume the hardware cache management
-        // knows what it's doing and will elide flushes if they are for lines that have already been
-        // evicted by cache pressure.
-        persistenceHandle.persist(0, dataBuffer.capacity() - offset);
-    }
-
     /**
      * Closes this channel.
      */
@@ -584,13 +1234,27 @@ public class MappedFileChannel extends FileChannel {
             logger.tracev("entry for {0}", this);
         }
 
+        // wait out any lock-free accesses, which would crash the JVM if they touched the mappings after they're released.
+        // This is done before taking the lock, since writes take it to complete.
+        closing = true;
+        while (lockFreeAccesses.get() != 0) {
+            Thread.onSpinWait();
+        }
+
         lock.lock();
 
         try {
+            // unlike a FileChannel's dirty pages, unforced writes won't reach the file later, so persist them now.
+            forceInternal();
+
             // https://bugs.openjdk.java.net/browse/JDK-4724038
-            unsafe.invokeCleaner(rawBuffer);
+            // views returned by map would crash the JVM if used after unmapping, or once the pages they cover are truncated away,
+            // so if there may be any, leave unmapping to the GC and the file at its mapped length.
+            if(!viewsMapped) {
+                unsafe.invokeCleaner(rawBuffer);
+            }
 
-            if(!metadata.isReadShared()) {
+            if(!viewsMapped && !metadata.isReadShared()) {
                 int persistenceIndex = metadata.getPersistenceIndex();
                 if(logger.isDebugEnabled()) {
                     logger.debugv("truncating file={0} to length={1}", file.getAbsolutePath(), persistenceIndex);
@@ -611,6 +1275,26 @@ public class MappedFileChannel extends FileChannel {
         }
     }
 
+    /**
+     * Register an access to the mapping made without the lock, unless the channel is closing.
+     * Registering before checking the closing flag means close can't miss it, as that sets the flag before checking for accesses.
+     */
+    private void beginLockFreeAccess() throws ClosedChannelException {
+        lockFreeAccesses.incrementAndGet();
+        if (closing) {
+            lockFreeAccesses.decrementAndGet();
+            ClosedChannelException closedChannelException = new ClosedChannelException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(closedChannelException, "throwing {0}", closedChannelException.toString());
+            }
+            throw closedChannelException;
+        }
+    }
+
+    private void endLockFreeAccess() {
+        lockFreeAccesses.decrementAndGet();
+    }
+
     private void validateIsOpen() throws ClosedChannelException {
         if (!fileChannel.isOpen()) {
             ClosedChannelException closedChannelException = new ClosedChannelException();
@@ -636,22 +1320,6 @@ public class MappedFileChannel extends FileChannel {
 
     private static String NOT_IMPLEMENTED = "Method not implemented";
 
-    /**
-     * This method is not supported by this implementation.
-     */
-    @Override
-    public long read(ByteBuffer[] byteBuffers, int offset, int length) throws IOException {
-        throw new IOException(NOT_IMPLEMENTED);
-    }
-
-    /**
-     * This method is not supported by this implementation.
-     */
-    @Override
-    public long write(ByteBuffer[] byteBuffers, int offset, int length) throws IOException {
-        throw new IOException(NOT_IMPLEMENTED);
-    }
-
     /**
      * This method is not supported by this implementation.
      */
@@ -660,30 +1328,6 @@ public class MappedFileChannel extends FileChannel {
         throw new IOException(NOT_IMPLEMENTED);
     }
 
-    /**
-     * This method is not supported by this implementation.
-     */
-    @Override
-    public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
-        throw new IOException(NOT_IMPLEMENTED);
-    }
-
-    /**
-     * This method is not supported by this implementation.
-     */
-    @Override
-    public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
-        throw new IOException(NOT_IMPLEMENTED);
-    }
-
-    /**
-     * This method is not supported by this implementation.
-     */
-    @Override
-    public MappedByteBuffer map(MapMode mapMode, long position, long size) throws IOException {
-        throw new IOException(NOT_IMPLEMENTED);
-    }
-
     /**
      * This method is not supported by this implementation.
      */
@@ -20,8 +20,11 @@ import sun.misc.Unsafe;
 import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 import java.lang.reflect.Field;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
@@ -48,6 +51,9 @@ public class MappedFileChannelMetadata implements Closeable {
 
     private static final int FILE_SIZE = 256;
 
+    // for reading the persistence index in read shared mode without the lock, as another process may be writing it.
+    private static final VarHandle INT_HANDLE = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.BIG_ENDIAN);
+
     private static Unsafe unsafe;
 
     static {
@@ -68,7 +74,8 @@ public class MappedFileChannelMetadata implements Closeable {
     private final PersistenceHandle persistenceHandle;
     private final boolean readShared;
 
-    private int persistenceIndex;
+    // written only with the lock held, but may be read without it by getPublishedPersistenceIndex.
+    private volatile int persistenceIndex;
 
 
     /**
@@ -178,6 +185,23 @@ public class MappedFileChannelMetadata implements Closeable {
         return value;
     }
 
+    /**
+     * Returns the current persistent index value without locking, so that readers don't contend with each other or with writers.
+     * <p>
+     * In read shared mode the value is read from the underlying persistent state with acquire semantics,
+     * so data persisted by another process before it updated the index is visible once the index is.
+     * Unlike getPersistenceIndex, this does not check the instance is open, so the caller
+     * MUST ensure it is not closed during the call, as reading the unmapped state would crash the JVM.
+     *
+     * @return the persistence index.
+     */
+    public int getPublishedPersistenceIndex() {
+        if (readShared) {
+            return (int) INT_HANDLE.getAcquire(buffer, MAGIC_HEADER.length);
+        }
+        return persistenceIndex;
+    }
+
     /**
      * Persistently record the given range as in use, advancing the persistence index accordingly.
      *
@@ -0,0 +1,893 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.incubator.foreign.MemoryHandles;
+import jdk.incubator.foreign.MemorySegment;
+import jdk.incubator.foreign.ResourceScope;
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.jboss.logging.Logger;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An append-only log structure over a memory mapped file, addressed with long offsets.
+ * <p>
+ * Unlike the MappedByteBuffer based structures, which are limited to int addressing and so to 2GB,
+ * this uses the (incubating) foreign memory API, so a single log may span a multi-hundred-GB pmem namespace.
+ * Record locations are therefore longs. The log header and record headers are accessed through VarHandles,
+ * and records are written, validated and persisted through MappedByteBuffer views of the mapping created up front,
+ * so none of those allocate per record. The mapping is released deterministically by {@link #close()} rather than
+ * when the garbage collector gets round to it. Record views obtained from the log, including those from its iterators,
+ * throw IllegalStateException if used after it is closed, rather than risking a crash.
+ * <p>
+ * As they derive from a shared memory segment, record views can be used for channel I/O, but are rejected by the
+ * java.util.zip classes, such as CRC32C, which require a fixed address. Use {@link #copyingIterator()} for those,
+ * or {@link ChecksumUtil#checksumViaHeap(int, ByteBuffer)}, which is also how the log validates records itself.
+ * <p>
+ * Records have the same layout as in the AppendOnlyLogImpl checksum format, with strict serial ordering.
+ * The checksum additionally covers the generation of the log, which changes on clear and reset,
+ * so that those need not overwrite the existing records to prevent their recovery. Records from old generations
+ * are zeroed only when the generation number wraps, which happens once every 65535 clears or resets.
+ * <p>
+ * The checkpoint holds the generation as well as the position, so that both are changed in a single atomic write.
+ * <p>
+ * Requires the jdk.incubator.foreign module to be added at compile and run time.
+ */
+public class MemorySegmentAppendOnlyLog implements AppendOnlyLog, Closeable {
+
+    private static final Logger logger = Logger.getLogger(MemorySegmentAppendOnlyLog.class);
+
+    /**
+     * The location value returned by tryPutWithLocation on failure.
+     */
+    public static final long ERROR_LOCATION = -1;
+
+    // change this if changing the data layout!
+    private static final byte[] MAGIC_HEADER = new String("TRBMSL01").getBytes(StandardCharsets.UTF_8);
+
+    // the header fields are little-endian, since that's the native order of the platforms with pmem support.
+    private static final VarHandle INT_HANDLE = MemoryHandles.varHandle(int.class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG_HANDLE = MemoryHandles.varHandle(long.class, ByteOrder.LITTLE_ENDIAN);
+
+    private static final int INT_SIZE = 4;
+    private static final int LONG_SIZE = 8;
+    private static final int BLOCK_SIZE = 256;
+
+    // these offsets are from the start of the file. The checkpoint is a long, so is 8 byte aligned for persistence atomicity.
+    private static final long MAGIC_OFFSET = 0;
+    private static final long PADDING_SIZE_OFFSET = MAGIC_OFFSET + MAGIC_HEADER.length;
+    private static final long CHECKPOINT_OFFSET = PADDING_SIZE_OFFSET + INT_SIZE + INT_SIZE;
+    private static final long FIRST_RECORD_OFFSET = CHECKPOINT_OFFSET + LONG_SIZE;
+
+    private static final int ENTRY_HEADER_SIZE = 8; // int payload length + int checksum
+
+    // the checkpoint holds the generation in the high bits and the position in the low ones.
+    private static final int POSITION_BITS = 48;
+    private static final long POSITION_MASK = (1L << POSITION_BITS) - 1;
+    private static final int GENERATION_MASK = 0xFFFF;
+
+    /**
+     * The largest log supported, limited by the bits available for the position in the checkpoint.
+     */
+    public static final long MAX_LENGTH = POSITION_MASK;
+
+    // the windows through which records are accessed start a stride apart, but each extends as far as a ByteBuffer can,
+    // i.e. to nearly twice the stride, so any range shorter than the stride lies within the window in which it starts.
+    private static final int WINDOW_SHIFT = 30;
+    private static final long WINDOW_STRIDE = 1L << WINDOW_SHIFT;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final ResourceScope scope;
+    private final MemorySegment segment;
+    private final long capacity;
+
+    // views of the segment, accessed only with absolute indexes, so they can be shared. Being derived from the segment,
+    // they share its scope, so are invalidated, rather than keeping the mapping alive, when the log is closed.
+    private final MappedByteBuffer[] windows;
+    private final ByteBuffer[] readOnlyWindows;
+
+    private int effectivePaddingSize;
+    private final int requestedPaddingSize;
+
+    // written only with the lock held, but may be read without it.
+    private volatile long tail;
+    private volatile int generation;
+
+    private long checkpoint;
+
+    /**
+     * Maps the given file, creating it if necessary, and establishes an append-only log structure over it,
+     * recovering any existing log structure found there.
+     *
+     * @param file         The file to map. It SHOULD be on a DAX mounted pmem filesystem.
+     * @param length       The size of the mapping, from the start of the file. The file is extended if it's shorter.
+     * @param blockPadding true if extra space should be used to increase performance, or false for a slower but more compact record format.
+     * @throws IOException if the file can't be mapped.
+     * @throws IllegalArgumentException if the length is too small to hold a record, or larger than {@link #MAX_LENGTH}.
+     */
+    public MemorySegmentAppendOnlyLog(File file, long length, boolean blockPadding) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with file={0}, length={1}, blockPadding={2}", file.getAbsolutePath(), length, blockPadding);
+        }
+
+        if(length <= FIRST_RECORD_OFFSET + ENTRY_HEADER_SIZE || length > MAX_LENGTH) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid length " + length);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        requestedPaddingSize = blockPadding ? BLOCK_SIZE : INT_SIZE;
+
+        file.createNewFile();
+        // a shared scope, as the log may be used from many threads. Closing it unmaps the file.
+        scope = ResourceScope.newSharedScope();
+        try {
+            segment = MemorySegment.mapFile(file.toPath(), 0, length, ExtendedMapMode.READ_WRITE_SYNC, scope);
+        } catch (IOException | RuntimeException e) {
+            scope.close();
+            throw e;
+        }
+        capacity = segment.byteSize();
+
+        int windowCount = (int) ((capacity + WINDOW_STRIDE - 1) >>> WINDOW_SHIFT);
+        windows = new MappedByteBuffer[windowCount];
+        readOnlyWindows = new ByteBuffer[windowCount];
+        for(int i = 0; i < windowCount; i++) {
+            long windowStart = (long) i << WINDOW_SHIFT;
+            windows[i] = (MappedByteBuffer) segment.asSlice(windowStart, Math.min(capacity - windowStart, Integer.MAX_VALUE)).asByteBuffer();
+            readOnlyWindows[i] = windows[i].asReadOnlyBuffer();
+        }
+
+        lock.lock();
+        try {
+            if(Arrays.equals(segment.asSlice(MAGIC_OFFSET, MAGIC_HEADER.length).toByteArray(), MAGIC_HEADER)) {
+                // pre-existing data in known format.
+                // persisted config takes priority, or we'll get inconsistencies
+                effectivePaddingSize = (int) INT_HANDLE.get(segment, PADDING_SIZE_OFFSET);
+                recoverRecords();
+            } else {
+                effectivePaddingSize = requestedPaddingSize;
+
+                // we don't know what's in the provided file, so zero it out for safety.
+                // Thereafter, records from earlier generations are told apart by their checksums instead.
+                segment.fill((byte) 0);
+                segment.force();
+
+                generation = 1;
+                tail = FIRST_RECORD_OFFSET;
+                checkpoint = FIRST_RECORD_OFFSET;
+                LONG_HANDLE.set(segment, CHECKPOINT_OFFSET, checkpointValue());
+                INT_HANDLE.set(segment, PADDING_SIZE_OFFSET, effectivePaddingSize);
+                persist(PADDING_SIZE_OFFSET, FIRST_RECORD_OFFSET - PADDING_SIZE_OFFSET);
+                // the magic header goes last, so the log is recognised only once the rest of the header is valid.
+                segment.asSlice(MAGIC_OFFSET, MAGIC_HEADER.length).copyFrom(MemorySegment.ofArray(MAGIC_HEADER));
+                persist(MAGIC_OFFSET, MAGIC_HEADER.length);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    /**
+     * Walk forward from the checkpoint to find the tail.
+     */
+    private void recoverRecords() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        long value = (long) LONG_HANDLE.get(segment, CHECKPOINT_OFFSET);
+        generation = (int) (value >>> POSITION_BITS);
+        checkpoint = value & POSITION_MASK;
+
+        long position = checkpoint;
+        while(true) {
+            long nextPosition = nextRecordPosition(position);
+            if(nextPosition == position) {
+                break;
+            }
+            position = nextPosition;
+        }
+        tail = position;
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Find where the record after the one at the given position starts, validating the record on the way.
+     *
+     * @return the position of the next record, or the given position if there is no valid record there.
+     */
+    private long nextRecordPosition(long position) {
+        if(capacity - position < ENTRY_HEADER_SIZE) {
+            return position;
+        }
+
+        int length = (int) INT_HANDLE.get(segment, position);
+        int checksum = (int) INT_HANDLE.get(segment, position + INT_SIZE);
+
+        if(length <= 0 || length > capacity - position - ENTRY_HEADER_SIZE) {
+            return position;
+        }
+
+        if(checksum != payloadChecksum(position, length)) {
+            return position;
+        }
+
+        return endOfRecord(position, length);
+    }
+
+    private long endOfRecord(long position, int payloadLength) {
+        long end = position + ENTRY_HEADER_SIZE + payloadLength;
+        long realignment = end % effectivePaddingSize;
+        if(realignment != 0) {
+            end += effectivePaddingSize - realignment;
+        }
+        return Math.min(end, capacity);
+    }
+
+    /**
+     * Determine if the given range lies within the window in which it starts, so can be accessed through that.
+     * This is so for all but records larger than the stride, which must be accessed through views made for the purpose.
+     */
+    private static boolean inOneWindow(long position, long length) {
+        return windowIndex(position) + length <= Integer.MAX_VALUE;
+    }
+
+    private MappedByteBuffer window(long position) {
+        return windows[(int) (position >>> WINDOW_SHIFT)];
+    }
+
+    private static int windowIndex(long position) {
+        return (int) (position & (WINDOW_STRIDE - 1));
+    }
+
+    /**
+     * A read-only view of the payload of the record at the given position. The view is invalidated when the log is closed.
+     */
+    private ByteBuffer payload(long position, int length) {
+        long payloadPosition = position + ENTRY_HEADER_SIZE;
+        if(inOneWindow(payloadPosition, length)) {
+            return readOnlyWindows[(int) (payloadPosition >>> WINDOW_SHIFT)].slice(windowIndex(payloadPosition), length);
+        }
+        return segment.asSlice(payloadPosition, length).asByteBuffer().asReadOnlyBuffer();
+    }
+
+    /**
+     * Calculate the checksum of the payload of the record at the given position, salted with the current generation.
+     * Views of a shared segment can't be checksummed in place, so the payload is read through a heap array.
+     */
+    private int payloadChecksum(long position, int length) {
+        long payloadPosition = position + ENTRY_HEADER_SIZE;
+        if(inOneWindow(payloadPosition, length)) {
+            return ChecksumUtil.checksumViaHeap(generation, window(payloadPosition), windowIndex(payloadPosition), length);
+        }
+        return ChecksumUtil.checksumViaHeap(generation, payload(position, length));
+    }
+
+    private long checkpointValue() {
+        return ((long) generation << POSITION_BITS) | checkpoint;
+    }
+
+    private void persist(long offset, long length) {
+        // each piece is at most the stride, so lies within the window in which it starts.
+        while(length > 0) {
+            int pieceLength = (int) Math.min(length, WINDOW_STRIDE);
+            window(offset).force(windowIndex(offset), pieceLength);
+            offset += pieceLength;
+            length -= pieceLength;
+        }
+    }
+
+    /**
+     * Determine if a record of the given size would fit at the given position.
+     */
+    private boolean fits(long position, int payloadLength) {
+        return payloadLength > 0 && payloadLength <= capacity - position - ENTRY_HEADER_SIZE;
+    }
+
+    /**
+     * Write the given record at the given position, which the caller must have checked it fits.
+     * The caller is responsible for persisting it.
+     *
+     * @param position The position at which to write the record.
+     * @param src The payload, which is not consumed.
+     * @return The position following the record.
+     */
+    private long write(long position, ByteBuffer src) {
+        int length = src.remaining();
+
+        int checksum;
+        if(inOneWindow(position, ENTRY_HEADER_SIZE + length)) {
+            checksum = ChecksumUtil.copyWithChecksum(generation, src, window(position), windowIndex(position) + ENTRY_HEADER_SIZE);
+        } else {
+            ByteBuffer entry = segment.asSlice(position, ENTRY_HEADER_SIZE + length).asByteBuffer();
+            checksum = ChecksumUtil.copyWithChecksum(generation, src, entry, ENTRY_HEADER_SIZE);
+        }
+        INT_HANDLE.set(segment, position, length);
+        INT_HANDLE.set(segment, position + INT_SIZE, checksum);
+
+        return endOfRecord(position, length);
+    }
+
+    /**
+     * Returns the size of the log, including the space taken by its header.
+     *
+     * @return the size in bytes.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectivelyPadded() {
+        return effectivePaddingSize == BLOCK_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPaddingRequested() {
+        return requestedPaddingSize == BLOCK_SIZE;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes to this log are always linearly ordered.
+     */
+    @Override
+    public boolean isEffectiveLinearOrdering() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Writes to this log are always linearly ordered.
+     */
+    @Override
+    public boolean isRequestedLinearOrdering() {
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAlwaysCheckpoint() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAuthoritativeCheckpointOnReads() {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void checkpoint() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            checkpoint = tail;
+            LONG_HANDLE.set(segment, CHECKPOINT_OFFSET, checkpointValue());
+            persist(CHECKPOINT_OFFSET, LONG_SIZE);
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Read the record at the given location.
+     *
+     * @param location A location returned by a write to this log, since it was last cleared or reset.
+     * @return A read-only view of the record, which is invalidated when the log is closed.
+     * @throws IllegalArgumentException if the location is not that of a record in the log.
+     */
+    public ByteBuffer readRecordAt(long location) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with location={1}", this, location);
+        }
+
+        ByteBuffer result = null;
+        if(location >= FIRST_RECORD_OFFSET && location < tail && location % INT_SIZE == 0) {
+            int length = (int) INT_HANDLE.get(segment, location);
+            int checksum = (int) INT_HANDLE.get(segment, location + INT_SIZE);
+            if(length > 0 && length <= capacity - location - ENTRY_HEADER_SIZE) {
+                if(checksum == payloadChecksum(location, length)) {
+                    result = payload(location, length);
+                }
+            }
+        }
+
+        if(result == null) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid record location " + location);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src) {
+        putWithLocation(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src) {
+        return tryPutWithLocation(ByteBuffer.wrap(src)) != ERROR_LOCATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        putWithLocation(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src, int offset, int length) {
+        return tryPutWithLocation(ByteBuffer.wrap(src, offset, length)) != ERROR_LOCATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(ByteBuffer src) {
+        putWithLocation(src);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(ByteBuffer src) {
+        return tryPutWithLocation(src) != ERROR_LOCATION;
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * failing with an Exception if insufficient space is free.
+     * <p>
+     * After this method returns, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log.
+     * @throws BufferOverflowException If there is insufficient space free in this log.
+     */
+    public long putWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        long location = tryPutWithLocation(src);
+        if(location == ERROR_LOCATION) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", location);
+        }
+        return location;
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * returning {@link #ERROR_LOCATION} if insufficient space is free.
+     * <p>
+     * After this method returns a location, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     * <p>
+     * After this method returns {@link #ERROR_LOCATION}, the log is unwritten and the src is unread.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log on success, {@link #ERROR_LOCATION} otherwise.
+     */
+    public long tryPutWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        long result = ERROR_LOCATION;
+
+        lock.lock();
+        try {
+            long position = tail;
+            if(fits(position, src.remaining())) {
+                long nextPosition = write(position, src);
+                persist(position, nextPosition - position);
+                src.position(src.limit());
+                tail = nextPosition;
+                result = position;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void putAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        if(!tryPutAll(srcs)) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        boolean result = false;
+
+        lock.lock();
+        try {
+            // check the whole batch fits before writing any of it.
+            long position = tail;
+            boolean fits = true;
+            for(int i = 0; i < srcs.length && fits; i++) {
+                fits = fits(position, srcs[i].remaining());
+                position = endOfRecord(position, srcs[i].remaining());
+            }
+
+            if(fits) {
+                // the records are contiguous, so are persisted together.
+                position = tail;
+                for(ByteBuffer src : srcs) {
+                    position = write(position, src);
+                }
+                persist(tail, position - tail);
+
+                for(ByteBuffer src : srcs) {
+                    src.position(src.limit());
+                }
+                tail = position;
+                result = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This moves to a new generation, without overwriting the records, and adopts the requested padding.
+     */
+    @Override
+    public void clear() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            nextGeneration();
+
+            if(effectivePaddingSize != requestedPaddingSize) {
+                // the log is empty, so the record layout can change, but only once the new generation is persisted.
+                effectivePaddingSize = requestedPaddingSize;
+                INT_HANDLE.set(segment, PADDING_SIZE_OFFSET, effectivePaddingSize);
+                persist(PADDING_SIZE_OFFSET, INT_SIZE);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This moves to a new generation, without overwriting the records.
+     */
+    @Override
+    public void reset() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            nextGeneration();
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Move the checkpoint back to the start in a new generation, so the existing records won't validate.
+     * When the generation number wraps, records from the earlier use of the numbers are zeroed first.
+     * Generation 0 marks a wrap in progress, as a log recovered in that generation may not have been fully zeroed.
+     * Must be called with the lock held.
+     */
+    private void nextGeneration() {
+        if(generation == GENERATION_MASK || generation == 0) {
+            // no records validate in generation 0, so the log is empty if we crash whilst zeroing.
+            generation = 0;
+            checkpoint = FIRST_RECORD_OFFSET;
+            LONG_HANDLE.set(segment, CHECKPOINT_OFFSET, checkpointValue());
+            persist(CHECKPOINT_OFFSET, LONG_SIZE);
+
+            segment.asSlice(FIRST_RECORD_OFFSET).fill((byte) 0);
+            persist(FIRST_RECORD_OFFSET, capacity - FIRST_RECORD_OFFSET);
+        }
+
+        generation++;
+        checkpoint = FIRST_RECORD_OFFSET;
+        LONG_HANDLE.set(segment, CHECKPOINT_OFFSET, checkpointValue());
+        persist(CHECKPOINT_OFFSET, LONG_SIZE);
+        tail = FIRST_RECORD_OFFSET;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Since the log may be larger than an int can express, the result is capped at Integer.MAX_VALUE.
+     */
+    @Override
+    public int remaining() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        int result = (int) Math.min(Integer.MAX_VALUE, capacity - tail);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canAccept(int length) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with length={1}", this, length);
+        }
+
+        boolean result = fits(tail, length);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The returned views are invalidated when the log is closed.
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new Itr(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Iterator<ByteBuffer> copyingIterator() {
+        return new Itr(true);
+    }
+
+    /**
+     * Unmap the file. Unlike the MappedByteBuffer based structures, this takes effect immediately,
+     * after which any use of the log, or of the record views obtained from it, throws IllegalStateException.
+     * <p>
+     * This fails with IllegalStateException if another thread is accessing the log at the time,
+     * in which case it may be retried.
+     */
+    @Override
+    public void close() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            if(scope.isAlive()) {
+                scope.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * An Iterator over the records from the start to the tail at the time of its creation.
+     * Since writes are completed and persisted under the lock, the records in that range are known to be intact
+     * and are read without locking or validating them.
+     */
+    private class Itr implements Iterator<ByteBuffer> {
+
+        private final boolean returnCopies;
+        private final long end;
+        private final int expectedGeneration;
+
+        private long nextPosition = FIRST_RECORD_OFFSET;
+
+        private Itr(boolean returnCopies) {
+            this.returnCopies = returnCopies;
+
+            lock.lock();
+            try {
+                end = tail;
+                expectedGeneration = generation;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            checkForReset();
+            return nextPosition < end;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            int length = (int) INT_HANDLE.get(segment, nextPosition);
+            ByteBuffer result;
+
+            if(returnCopies) {
+                // copied straight from the window, without a view of the record, where it lies within one.
+                result = ByteBuffer.allocate(length);
+                long payloadPosition = nextPosition + ENTRY_HEADER_SIZE;
+                if(inOneWindow(payloadPosition, length)) {
+                    result.put(0, window(payloadPosition), windowIndex(payloadPosition), length);
+                } else {
+                    result.put(payload(nextPosition, length));
+                    result.rewind();
+                }
+            } else {
+                result = payload(nextPosition, length);
+            }
+
+            // the record is good only if it wasn't overwritten in a new generation whilst we were reading it.
+            checkForReset();
+
+            nextPosition = endOfRecord(nextPosition, length);
+            return result;
+        }
+
+        /**
+         * Throw an Exception if the log has been cleared or reset since the iterator was created.
+         */
+        private void checkForReset() {
+            if(generation != expectedGeneration) {
+                ConcurrentModificationException concurrentModificationException = new ConcurrentModificationException("Log reset after iterator creation");
+                if(logger.isTraceEnabled()) {
+                    logger.tracev(concurrentModificationException, "throwing {0}", concurrentModificationException.toString());
+                }
+                throw concurrentModificationException;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MemorySegmentAppendOnlyLog{" +
+                "capacity=" + capacity +
+                ", generation=" + generation +
+                ", tail=" + tail +
+                ", effectivePaddingSize=" + effectivePaddingSize +
+                '}';
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.jboss.logging.Logger;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+
+/**
+ * An append-only log structure built over memory-mapped pmem, divided into a number of independent partitions
+ * (AppendOnlyLogImpl instances) so that concurrent writers need not contend for a single lock or tail position.
+ * <p>
+ * Each writing Thread is assigned a home partition on first use, round-robin, and writes there for as long as it has space.
+ * A write that does not fit in the home partition goes to the next partition that can take it.
+ * <p>
+ * Where linear ordering is requested, each record additionally carries a sequence number, assigned as it is written,
+ * and iteration merges the partitions in sequence order. Otherwise, iteration returns the records of each partition in turn.
+ */
+public class PartitionedAppendOnlyLog implements AppendOnlyLog {
+
+    private static final Logger logger = Logger.getLogger(PartitionedAppendOnlyLog.class);
+
+    // change this if changing the data layout!
+    private static final byte[] MAGIC_HEADER = new String("TRBPAL01").getBytes(StandardCharsets.UTF_8);
+
+    private static final int BLOCK_SIZE = 256;
+
+    // these offsets are relative to the start of the log
+    private static final int MAGIC_OFFSET = 0;
+    private static final int PARTITION_COUNT_OFFSET = MAGIC_OFFSET + MAGIC_HEADER.length;
+
+    // a whole block, so that the partitions which follow it are block aligned.
+    private static final int LOG_HEADER_BYTES = BLOCK_SIZE;
+
+    private static final int SEQUENCE_NUMBER_SIZE = 8;
+
+    private final MappedByteBuffer byteBuffer;
+    private final int offset;
+    private final int length;
+    private final AppendOnlyLogImplConfig config;
+
+    private final PersistenceHandle persistenceHandle;
+
+    private final int requestedPartitionCount;
+
+    // replaced wholesale if clear() changes the layout. Otherwise fixed.
+    private volatile Layout layout;
+
+    private final AtomicLong nextSequenceNumber = new AtomicLong(0);
+
+    // wraps to negative eventually, so is reduced to a partition index with floorMod.
+    private final AtomicInteger nextHomePartition = new AtomicInteger(0);
+    private final ThreadLocal<Integer> homePartition = ThreadLocal.withInitial(nextHomePartition::getAndIncrement);
+
+    /**
+     * Establishes a partitioned append-only log structure over a given range of mapped memory.
+     * <p>
+     * If the range already contains a partitioned log, its existing partition count is retained until it is cleared.
+     *
+     * @param byteBuffer      The mapped memory to use.  It MUST NOT be a slice or duplicate.
+     * @param offset          The offset within the allocatedMemory, from which to start the log structure. This MUST be cache line aligned and SHOULD be 256-byte block aligned.
+     * @param length          The size of the region within the buffer which is available for the log.
+     * @param partitionCount  The number of partitions into which to divide the log, typically the expected number of writer Threads.
+     * @param config          Configuration parameter values for behaviour modifications, applied to each partition.
+     * @throws IllegalArgumentException if the partitionCount is not positive, or the length is insufficient to accommodate it.
+     */
+    public PartitionedAppendOnlyLog(MappedByteBuffer byteBuffer, int offset, int length, int partitionCount, AppendOnlyLogImplConfig config) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with byteBuffer={0}, offset={1}, length={2}, partitionCount={3}, config={4}",
+                    byteBuffer, offset, length, partitionCount, config);
+        }
+
+        if(partitionCount < 1 || partitionLength(length, partitionCount) < BLOCK_SIZE) {
+            IllegalArgumentException illegalArgumentException =
+                    new IllegalArgumentException("Can't fit "+partitionCount+" partitions in length "+length);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        this.byteBuffer = byteBuffer;
+        this.offset = offset;
+        this.length = length;
+        this.config = config;
+        this.requestedPartitionCount = partitionCount;
+
+        persistenceHandle = new PersistenceHandle(byteBuffer, offset, LOG_HEADER_BYTES);
+
+        ByteBuffer header = header();
+        byte[] magic = new byte[MAGIC_HEADER.length];
+        header.get(magic);
+        int existingPartitionCount = header.getInt(PARTITION_COUNT_OFFSET);
+        if(Arrays.equals(magic, MAGIC_HEADER) && existingPartitionCount > 0 && partitionLength(length, existingPartitionCount) >= BLOCK_SIZE) {
+            // pre-existing data in known format. persisted layout takes priority, or we'll lose the records.
+            layout(existingPartitionCount);
+            recoverSequenceNumber();
+        } else {
+            // the memory may hold stale partitions from some earlier use. Our own header goes last,
+            // in case we crash part way through.
+            invalidatePartitionHeaders(partitionCount);
+            layout(partitionCount);
+            writeHeader(partitionCount);
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    private static int partitionLength(int length, int partitionCount) {
+        // whole blocks, so that each partition starts block aligned.
+        return ((length - LOG_HEADER_BYTES) / partitionCount) / BLOCK_SIZE * BLOCK_SIZE;
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer tmp = byteBuffer.slice();
+        tmp.position(offset);
+        tmp.limit(offset + LOG_HEADER_BYTES);
+        return tmp.slice();
+    }
+
+    private void writeHeader(int partitionCount) {
+        ByteBuffer header = header();
+        header.put(MAGIC_OFFSET, MAGIC_HEADER);
+        header.putInt(PARTITION_COUNT_OFFSET, partitionCount);
+        persistenceHandle.persist(MAGIC_OFFSET, LOG_HEADER_BYTES);
+    }
+
+    /**
+     * Invalidate whatever lies where the headers of the given number of partitions would be,
+     * so that each new partition zeroes itself out, rather than recovering stale data.
+     * An old partition header may otherwise be found there, since clearing a partition in the commit word format
+     * leaves its header valid, and a layout with a different count may start a partition where an old one did.
+     */
+    private void invalidatePartitionHeaders(int partitionCount) {
+        int partitionLength = partitionLength(length, partitionCount);
+        for(int i = 0; i < partitionCount; i++) {
+            int partitionOffset = offset + LOG_HEADER_BYTES + i * partitionLength;
+            byteBuffer.put(partitionOffset, new byte[MAGIC_HEADER.length]);
+            new PersistenceHandle(byteBuffer, partitionOffset, MAGIC_HEADER.length).persist();
+        }
+    }
+
+    private void layout(int partitionCount) {
+        int partitionLength = partitionLength(length, partitionCount);
+        AppendOnlyLogImpl[] partitions = new AppendOnlyLogImpl[partitionCount];
+        ReentrantReadWriteLock[] partitionLocks = new ReentrantReadWriteLock[partitionCount];
+        for(int i = 0; i < partitionCount; i++) {
+            partitions[i] = new AppendOnlyLogImpl(byteBuffer, offset + LOG_HEADER_BYTES + i * partitionLength, partitionLength, config);
+            partitionLocks[i] = new ReentrantReadWriteLock();
+        }
+        layout = new Layout(partitions, partitionLocks);
+    }
+
+    private void recoverSequenceNumber() {
+        Layout current = layout;
+        if(!current.sequenced) {
+            return;
+        }
+        long max = -1;
+        for(AppendOnlyLogImpl partition : current.partitions) {
+            for(ByteBuffer record : partition) {
+                max = Math.max(max, record.getLong(record.position()));
+            }
+        }
+        nextSequenceNumber.set(max + 1);
+    }
+
+    /*
+     * The partitions and their locks, published together so that a writer never pairs a partition with
+     * the lock of another layout, or indexes one array with a count taken from the other.
+     * Writers hold their partition's lock whilst writing, the read lock if they may share it with others, or the write lock
+     * in sequenced mode, so that sequence numbers increase monotonically along each partition, which the merging iterator
+     * relies on. clear and reset take every write lock, so wait for writes in progress, and a writer that finds
+     * the layout replaced once it has the lock retries against the new one.
+     */
+    private static class Layout {
+
+        private final AppendOnlyLogImpl[] partitions;
+        private final ReentrantReadWriteLock[] partitionLocks;
+        private final boolean sequenced;
+
+        private Layout(AppendOnlyLogImpl[] partitions, ReentrantReadWriteLock[] partitionLocks) {
+            this.partitions = partitions;
+            this.partitionLocks = partitionLocks;
+            this.sequenced = partitions[0].isEffectiveLinearOrdering();
+        }
+
+        private Lock writerLock(int index) {
+            return sequenced ? partitionLocks[index].writeLock() : partitionLocks[index].readLock();
+        }
+
+        private void lockAll() {
+            for(ReentrantReadWriteLock partitionLock : partitionLocks) {
+                partitionLock.writeLock().lock();
+            }
+        }
+
+        private void unlockAll() {
+            for(ReentrantReadWriteLock partitionLock : partitionLocks) {
+                partitionLock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Reports the number of partitions currently in use by this log.
+     *
+     * @return the number of partitions.
+     */
+    public int getEffectivePartitionCount() {
+        return layout.partitions.length;
+    }
+
+    /**
+     * Reports the number of partitions requested, which may or may not be currently in use.
+     *
+     * @return the number of partitions.
+     */
+    public int getRequestedPartitionCount() {
+        return requestedPartitionCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectivelyPadded() {
+        return layout.partitions[0].isEffectivelyPadded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPaddingRequested() {
+        return layout.partitions[0].isPaddingRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectiveLinearOrdering() {
+        return layout.partitions[0].isEffectiveLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRequestedLinearOrdering() {
+        return layout.partitions[0].isRequestedLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAlwaysCheckpoint() {
+        return layout.partitions[0].isAlwaysCheckpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAuthoritativeCheckpointOnReads() {
+        return layout.partitions[0].isAuthoritativeCheckpointOnReads();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each partition is checkpointed in turn.
+     */
+    @Override
+    public void checkpoint() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        for(AppendOnlyLogImpl partition : layout.partitions) {
+            partition.checkpoint();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src) {
+        put(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src) {
+        return tryPut(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        put(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src, int offset, int length) {
+        return tryPut(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        if(!tryPut(src)) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        boolean result = forEachCandidatePartition((current, index) -> tryPutInPartition(current, index, src));
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    private boolean tryPutInPartition(Layout current, int index, ByteBuffer src) {
+        Lock partitionLock = current.writerLock(index);
+        partitionLock.lock();
+        try {
+            if(current != layout) {
+                // cleared and divided anew whilst we waited for the lock.
+                return false;
+            }
+
+            AppendOnlyLogImpl partition = current.partitions[index];
+            if(!current.sequenced) {
+                return partition.tryPut(src);
+            }
+
+            // write the sequence number and payload straight into the log, rather than assembling them elsewhere first.
+            AppendOnlyLogReservation reservation = partition.tryReserve(SEQUENCE_NUMBER_SIZE + src.remaining());
+            if(reservation == null) {
+                return false;
+            }
+            try {
+                reservation.buffer().putLong(nextSequenceNumber.getAndIncrement()).put(src);
+            } catch (RuntimeException e) {
+                reservation.abort();
+                throw e;
+            }
+            reservation.commit();
+            return true;
+        } finally {
+            partitionLock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is written to a single partition.
+     */
+    @Override
+    public void putAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        if(!tryPutAll(srcs)) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is written to a single partition.
+     */
+    @Override
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        boolean result = forEachCandidatePartition((current, index) -> tryPutAllInPartition(current, index, srcs));
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    private boolean tryPutAllInPartition(Layout current, int index, ByteBuffer[] srcs) {
+        Lock partitionLock = current.writerLock(index);
+        partitionLock.lock();
+        try {
+            if(current != layout) {
+                // cleared and divided anew whilst we waited for the lock.
+                return false;
+            }
+
+            AppendOnlyLogImpl partition = current.partitions[index];
+            if(!current.sequenced) {
+                return partition.tryPutAll(srcs);
+            }
+
+            // unlike the single record case, there is no batch reservation, so the records are assembled here
+            // in order to keep the single persist of the batch.
+            // If the batch is then rejected, its numbers are simply never used. Gaps are harmless to the merge.
+            long sequenceNumber = nextSequenceNumber.getAndAdd(srcs.length);
+            ByteBuffer[] sequencedSrcs = new ByteBuffer[srcs.length];
+            for(int i = 0; i < srcs.length; i++) {
+                ByteBuffer sequencedSrc = ByteBuffer.allocate(SEQUENCE_NUMBER_SIZE + srcs[i].remaining());
+                sequencedSrc.putLong(sequenceNumber + i);
+                sequencedSrc.put(srcs[i].duplicate());
+                sequencedSrc.flip();
+                sequencedSrcs[i] = sequencedSrc;
+            }
+
+            if(!partition.tryPutAll(sequencedSrcs)) {
+                return false;
+            }
+
+            for(ByteBuffer src : srcs) {
+                src.position(src.limit());
+            }
+            return true;
+        } finally {
+            partitionLock.unlock();
+        }
+    }
+
+    /*
+     * Offers the write to the calling Thread's home partition, then to each other partition in turn until one accepts it.
+     * A write declines a partition of a layout that has been replaced, so if the layout changed along the way, start again.
+     */
+    private boolean forEachCandidatePartition(BiPredicate<Layout, Integer> write) {
+        Layout current;
+        do {
+            current = layout;
+            int partitionCount = current.partitions.length;
+            int home = Math.floorMod(homePartition.get(), partitionCount);
+            for(int i = 0; i < partitionCount; i++) {
+                int index = (home + i) % partitionCount;
+                if(write.test(current, index)) {
+                    if(i != 0) {
+                        // the home partition is full, so move on to save probing it next time.
+                        homePartition.set(index);
+                    }
+                    return true;
+                }
+            }
+        } while(current != layout);
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If a different partition count was requested, the log is divided anew.
+     */
+    @Override
+    public void clear() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        // a concurrent clear may replace the layout whilst we wait for its locks, in which case we clear the new one.
+        Layout current = layout;
+        current.lockAll();
+        while(current != layout) {
+            current.unlockAll();
+            current = layout;
+            current.lockAll();
+        }
+        try {
+            for(AppendOnlyLogImpl partition : current.partitions) {
+                partition.clear();
+            }
+
+            if(current.partitions.length != requestedPartitionCount) {
+                // cleared partitions aren't necessarily zeroed, so a new one may start on an old one's header.
+                invalidatePartitionHeaders(requestedPartitionCount);
+                writeHeader(requestedPartitionCount);
+                layout(requestedPartitionCount);
+            }
+            nextSequenceNumber.set(0);
+        } finally {
+            // writers waiting on the old layout's locks then find it replaced, and retry against the new one.
+            current.unlockAll();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each partition is reset in turn.
+     */
+    @Override
+    public void reset() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        // sequence numbers are not reset, as stale records may remain visible in some ordering modes.
+        // reset doesn't change the layout, but must still wait for writes in progress, lest they straddle it.
+        Layout current = layout;
+        current.lockAll();
+        try {
+            for(AppendOnlyLogImpl partition : current.partitions) {
+                partition.reset();
+            }
+        } finally {
+            current.unlockAll();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the total over all partitions. A single record can't span partitions, so not all of it may be usable.
+     */
+    @Override
+    public int remaining() {
+        int result = 0;
+        for(AppendOnlyLogImpl partition : layout.partitions) {
+            result += partition.remaining();
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean canAccept(int length) {
+        Layout current = layout;
+        int overhead = current.sequenced ? SEQUENCE_NUMBER_SIZE : 0;
+        for(AppendOnlyLogImpl partition : current.partitions) {
+            if(partition.canAccept(length + overhead)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In sequenced mode the partitions are merged in sequence number order, otherwise each is returned in turn.
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return mergingIterator(false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * In sequenced mode the partitions are merged in sequence number order, otherwise each is returned in turn.
+     */
+    @Override
+    public Iterator<ByteBuffer> copyingIterator() {
+        return mergingIterator(true);
+    }
+
+    private Iterator<ByteBuffer> mergingIterator(boolean copying) {
+        Layout current = layout;
+        List<Iterator<ByteBuffer>> iterators = new ArrayList<>(current.partitions.length);
+        for(AppendOnlyLogImpl partition : current.partitions) {
+            iterators.add(copying ? partition.copyingIterator() : partition.iterator());
+        }
+        return new MergingItr(iterators, current.sequenced);
+    }
+
+    /*
+     * Merges the records of the partitions. The number of partitions is expected to be small,
+     * so a linear scan of the heads suffices, where a larger number would warrant a heap.
+     */
+    private static class MergingItr implements Iterator<ByteBuffer> {
+
+        private final List<Iterator<ByteBuffer>> iterators;
+        private final ByteBuffer[] heads;
+        private final boolean sequenced;
+        private int current = 0;
+
+        MergingItr(List<Iterator<ByteBuffer>> iterators, boolean sequenced) {
+            this.iterators = iterators;
+            this.heads = new ByteBuffer[iterators.size()];
+            this.sequenced = sequenced;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(!sequenced) {
+                while(current < iterators.size()) {
+                    if(iterators.get(current).hasNext()) {
+                        return true;
+                    }
+                    current++;
+                }
+                return false;
+            }
+
+            boolean result = false;
+            for(int i = 0; i < heads.length; i++) {
+                if(heads[i] == null && iterators.get(i).hasNext()) {
+                    heads[i] = iterators.get(i).next();
+                }
+                result |= heads[i] != null;
+            }
+            return result;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            if(!sequenced) {
+                return iterators.get(current).next();
+            }
+
+            int chosen = -1;
+            long chosenSequenceNumber = Long.MAX_VALUE;
+            for(int i = 0; i < heads.length; i++) {
+                if(heads[i] != null) {
+                    long sequenceNumber = heads[i].getLong(heads[i].position());
+                    if(sequenceNumber < chosenSequenceNumber) {
+                        chosen = i;
+                        chosenSequenceNumber = sequenceNumber;
+                    }
+                }
+            }
+
+            ByteBuffer record = heads[chosen];
+            heads[chosen] = null;
+            record.position(record.position() + SEQUENCE_NUMBER_SIZE);
+            return record.slice();
+        }
+    }
+
+    @Override
+    public String toString() {
+        Layout current = layout;
+        return "PartitionedAppendOnlyLog{" +
+                "offset=" + offset +
+                ", length=" + length +
+                ", partitions=" + current.partitions.length +
+                ", requestedPartitionCount=" + requestedPartitionCount +
+                ", sequenced=" + current.sequenced +
+                '}';
+    }
+}
@@ -16,12 +16,18 @@ import org.jboss.logging.Logger;
 
 import java.lang.reflect.Field;
 import java.nio.MappedByteBuffer;
+import java.util.Arrays;
 
 /**
  * A holder for a reference to a MappedByteBuffer backed by persistent memory,
  * via which data ranges may be flushed from cache to the persistence domain.
  *
  * Users of higher level abstractions should not normally need to use this class directly.
+ * <p>
+ * A handle obtained via {@link #deferring()} instead records the ranges it's asked to persist,
+ * merging those that share cache lines, and persists them together on {@link #drain()}.
+ * Each force fences, so drain covers ranges that are close together with a single force,
+ * but ranges further apart still cost a force, and so a fence, each.
  *
  * @author Jonathan Halliday (jonathan.halliday@redhat.com)
  * @since 2019-04
@@ -30,10 +36,23 @@ public class PersistenceHandle {
 
     private static final Logger logger = Logger.getLogger(PersistenceHandle.class);
 
+    private static final int CACHE_LINE_SIZE = 64;
+
+    // drain covers dirty ranges separated by at most this many clean lines with a single force,
+    // since writing back a few clean lines costs less than the extra fence that forcing the ranges separately would.
+    private static final int MAX_COALESCED_GAP = 4 * CACHE_LINE_SIZE;
+
     private final MappedByteBuffer buffer;
     private final int offset;
     private final int length;
 
+    // for deferring handles, the dirty ranges awaiting drain, as cache line aligned buffer indexes.
+    // Kept sorted and disjoint, with those that overlap or abut merged as they're added.
+    private final boolean deferring;
+    private int[] dirtyStarts;
+    private int[] dirtyEnds;
+    private int dirtyRangeCount = 0;
+
     /**
      * Initializes a new PersistenceHandle for the specified region of the provided buffer.
      *
@@ -45,13 +64,22 @@ public class PersistenceHandle {
      * @param length the number of bytes in the operational area.
      */
     public PersistenceHandle(MappedByteBuffer buffer, int offset, int length) {
+        this(buffer, offset, length, false);
+    }
+
+    private PersistenceHandle(MappedByteBuffer buffer, int offset, int length, boolean deferring) {
         if(logger.isTraceEnabled()) {
-            logger.tracev("entry with buffer={0}, offset={1}, length={2}", buffer, offset, length);
+            logger.tracev("entry with buffer={0}, offset={1}, length={2}, deferring={3}", buffer, offset, length, deferring);
         }
 
         this.buffer = buffer;
         this.offset = offset;
         this.length = length;
+        this.deferring = deferring;
+        if(deferring) {
+            dirtyStarts = new int[4];
+            dirtyEnds = new int[4];
+        }
 
         if(logger.isTraceEnabled()) {
             logger.tracev("exit {0}", this);
@@ -73,7 +101,7 @@ public class PersistenceHandle {
             throw illegalArgumentException;
         }
 
-        PersistenceHandle persistenceHandle = new PersistenceHandle(buffer, this.offset + offset, length);
+        PersistenceHandle persistenceHandle = new PersistenceHandle(buffer, this.offset + offset, length, deferring);
 
         if(logger.isTraceEnabled()) {
             logger.tracev("exit returning {0}", persistenceHandle);
@@ -81,8 +109,43 @@ public class PersistenceHandle {
         return persistenceHandle;
     }
 
+    /**
+     * Returns a new handle over the same area, which defers persistence until {@link #drain()} is called.
+     * <p>
+     * This allows a structure making several writes as part of one logical operation to persist them together,
+     * without flushing cache lines they share more than once. It must only be used for writes that may reach
+     * persistence in any order relative to each other.
+     * <p>
+     * Unlike immediate handles, deferring handles are not thread-safe, and are intended for use by a single thread.
+     *
+     * @return a deferring handle.
+     */
+    public PersistenceHandle deferring() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        PersistenceHandle persistenceHandle = new PersistenceHandle(buffer, offset, length, true);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", persistenceHandle);
+        }
+        return persistenceHandle;
+    }
+
+    /**
+     * Reports the persistence mode of this handle.
+     *
+     * @return true if persistence is deferred until drain, false if it is immediate.
+     */
+    public boolean isDeferring() {
+        return deferring;
+    }
+
     /**
      * Forces any changes made within the specified area to be written to the persistence domain.
+     * <p>
+     * For a deferring handle, the area is instead recorded, to be persisted on {@link #drain()}.
      *
      * @param from the base offset.
      * @param length the number of bytes.
@@ -101,13 +164,116 @@ public class PersistenceHandle {
             throw illegalArgumentException;
         }
 
-        buffer.force(from + offset, length);
+        if(deferring) {
+            addDirtyRange(from + offset, length);
+        } else {
+            buffer.force(from + offset, length);
+        }
 
         if(logger.isTraceEnabled()) {
             logger.tracev("exit");
         }
     }
 
+    /**
+     * For a deferring handle, forces the changes in all the areas recorded since the last drain
+     * to be written to the persistence domain. For an immediate handle, this does nothing.
+     * <p>
+     * No line is persisted more than once. Dirty ranges separated by only a few clean lines are persisted
+     * by a single force, which writes back the clean lines too, but fences only once. Ranges further apart
+     * are persisted by a force each, so each costs a fence.
+     */
+    public void drain() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        for(int first = 0; first < dirtyRangeCount; first = lastCoalesced(first) + 1) {
+            int last = lastCoalesced(first);
+            buffer.force(dirtyStarts[first], dirtyEnds[last] - dirtyStarts[first]);
+        }
+        dirtyRangeCount = 0;
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    // for testing.
+    int getDirtyRangeCount() {
+        return dirtyRangeCount;
+    }
+
+    // for testing: the number of forces, and so fences, the next drain will make.
+    int getPendingForceCount() {
+        int count = 0;
+        for(int first = 0; first < dirtyRangeCount; first = lastCoalesced(first) + 1) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Find the last of the dirty ranges to be persisted by the same force as the given one,
+     * i.e. the end of the run of ranges following it, each separated from the previous by only a short gap.
+     *
+     * @param first the index of the first dirty range of the run.
+     * @return the index of the last dirty range of the run.
+     */
+    private int lastCoalesced(int first) {
+        int last = first;
+        while(last + 1 < dirtyRangeCount && dirtyStarts[last + 1] - dirtyEnds[last] <= MAX_COALESCED_GAP) {
+            last++;
+        }
+        return last;
+    }
+
+    /**
+     * Record a range for a later drain, widened to whole cache lines, but not beyond our area,
+     * merging it with any recorded ranges that it overlaps or abuts.
+     *
+     * @param index the buffer index at which the range starts.
+     * @param length the number of bytes.
+     */
+    private void addDirtyRange(int index, int length) {
+        if(length <= 0) {
+            return;
+        }
+
+        int start = Math.max(offset, index - (index % CACHE_LINE_SIZE));
+        int end = index + length;
+        end = Math.min(offset + this.length, end + (CACHE_LINE_SIZE - (end % CACHE_LINE_SIZE)) % CACHE_LINE_SIZE);
+
+        // the first range that could merge with the new one, i.e. the first not ending before it starts.
+        int first = 0;
+        while(first < dirtyRangeCount && dirtyEnds[first] < start) {
+            first++;
+        }
+        // and one past the last, i.e. the first starting after the new one ends.
+        int last = first;
+        while(last < dirtyRangeCount && dirtyStarts[last] <= end) {
+            start = Math.min(start, dirtyStarts[last]);
+            end = Math.max(end, dirtyEnds[last]);
+            last++;
+        }
+
+        int merged = last - first;
+        if(merged == 0 && dirtyRangeCount == dirtyStarts.length) {
+            dirtyStarts = Arrays.copyOf(dirtyStarts, dirtyStarts.length * 2);
+            dirtyEnds = Arrays.copyOf(dirtyEnds, dirtyEnds.length * 2);
+        }
+
+        // replace the merged ranges, if any, with the single new one, shifting those after it accordingly.
+        int shift = 1 - merged;
+        if(shift != 0) {
+            System.arraycopy(dirtyStarts, last, dirtyStarts, last + shift, dirtyRangeCount - last);
+            System.arraycopy(dirtyEnds, last, dirtyEnds, last + shift, dirtyRangeCount - last);
+            dirtyRangeCount += shift;
+        }
+        dirtyStarts[first] = start;
+        dirtyEnds[first] = end;
+    }
+
     /**
      * Forces any changes made to be written to the persistence domain.
      */
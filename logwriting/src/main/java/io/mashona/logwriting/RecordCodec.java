@@ -0,0 +1,43 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A transformation applied to record payloads as they are written to a {@link CodecAppendOnlyLog},
+ * and reversed as they are read back, typically compression.
+ * <p>
+ * Implementations must be thread-safe.
+ *
+ * @see LzRecordCodec
+ */
+public interface RecordCodec {
+
+    /**
+     * Encodes the bytes remaining in the given buffer, without changing its position.
+     *
+     * @param src The payload to encode.
+     * @return A buffer holding the encoded form between its position and limit, or null if encoding would not make it smaller.
+     */
+    ByteBuffer encode(ByteBuffer src);
+
+    /**
+     * Decodes the bytes remaining in the given buffer, without changing its position.
+     *
+     * @param src A payload previously returned by {@link #encode(ByteBuffer)}.
+     * @return A buffer holding the original payload between its position and limit.
+     * @throws IllegalArgumentException if the src is not a valid encoding.
+     */
+    ByteBuffer decode(ByteBuffer src);
+}
@@ -0,0 +1,871 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.jboss.logging.Logger;
+import sun.misc.Unsafe;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * An append-only log structure built over a series of memory-mapped pmem files (segments) in a directory,
+ * each holding an AppendOnlyLogImpl. When the current segment is full, writing moves on to the next,
+ * so the log as a whole is bounded only by the retention limit on the number of segments, beyond which
+ * the oldest are deleted.
+ * <p>
+ * A spare segment is kept mapped and ready, so that moving on to it takes constant time.
+ * Its replacement is prepared by the writer that moved on, whilst other writers proceed in the new segment.
+ * <p>
+ * Record locations are 64-bit, with the segment number in the high int and the location within the segment in the low.
+ */
+public class SegmentedAppendOnlyLog implements AppendOnlyLog, Closeable {
+
+    private static final Logger logger = Logger.getLogger(SegmentedAppendOnlyLog.class);
+
+    private static Unsafe unsafe;
+
+    static {
+        // ugliness required for close, until the JDK's unmapping behavior is fixed.
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * The value returned by write methods to indicate that the write failed.
+     */
+    public static final long ERROR_LOCATION = -1;
+
+    private static final String SEGMENT_FILE_SUFFIX = ".seg";
+
+    // returned by rollOver when another writer has already moved on to a new segment.
+    private static final long[] RETRY = new long[0];
+
+    private final File directory;
+    private final int segmentLength;
+    private final int maxSegments;
+    private final AppendOnlyLogImplConfig config;
+
+    // guards the moving on from one segment to the next, the retirement of segments and closing.
+    // Writes and reads don't take it.
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // the retained segments, oldest first. The last is the one being written. Replaced wholesale on change.
+    private volatile Segment[] segments;
+
+    // mapped and ready for writing, once the last of the segments is full. Guarded by the lock.
+    private Segment spare;
+
+    private volatile boolean closed = false;
+
+    /**
+     * Establishes a segmented append-only log structure in the given directory, recovering any segments already present.
+     *
+     * @param directory     The directory in which to hold the segment files. It will be created if necessary.
+     * @param segmentLength The size of each segment file. This bounds the size of a single record, or batch of records.
+     * @param maxSegments   The number of segments to retain, beyond which the oldest are deleted, or 0 to retain all.
+     * @param config        Configuration parameter values for behaviour modifications, applied to each segment.
+     * @throws IOException if the segment files cannot be created or mapped, such as when the directory is not on a DAX filesystem.
+     * @throws IllegalArgumentException if the maxSegments is negative.
+     */
+    public SegmentedAppendOnlyLog(File directory, int segmentLength, int maxSegments, AppendOnlyLogImplConfig config) throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry with directory={0}, segmentLength={1}, maxSegments={2}, config={3}",
+                    directory, segmentLength, maxSegments, config);
+        }
+
+        if(maxSegments < 0) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("maxSegments must not be negative");
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        this.directory = directory;
+        this.segmentLength = segmentLength;
+        this.maxSegments = maxSegments;
+        this.config = config;
+
+        directory.mkdirs();
+
+        List<Long> segmentNumbers = new ArrayList<>();
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(SEGMENT_FILE_SUFFIX));
+        if(files != null) {
+            for(File file : files) {
+                String name = file.getName();
+                try {
+                    segmentNumbers.add(Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()), 16));
+                } catch (NumberFormatException e) {
+                    if(logger.isDebugEnabled()) {
+                        logger.debugv("ignoring unrecognised file {0}", file.getAbsolutePath());
+                    }
+                }
+            }
+        }
+        segmentNumbers.sort(null);
+
+        List<Segment> recoveredSegments = new ArrayList<>();
+        for(long segmentNumber : segmentNumbers) {
+            recoveredSegments.add(openSegment(segmentNumber));
+        }
+
+        if(recoveredSegments.isEmpty()) {
+            recoveredSegments.add(openSegment(0));
+        }
+
+        // the last segment may be a spare that was never written. If so, it can be the spare again.
+        if(recoveredSegments.size() > 1 && !recoveredSegments.get(recoveredSegments.size() - 1).log.iterator().hasNext()) {
+            spare = recoveredSegments.remove(recoveredSegments.size() - 1);
+        } else {
+            spare = openSegment(recoveredSegments.get(recoveredSegments.size() - 1).number + 1);
+        }
+
+        segments = recoveredSegments.toArray(new Segment[0]);
+
+        // the limit may have been lowered since the segments were written.
+        if(maxSegments != 0 && segments.length > maxSegments) {
+            retire(segments, segments.length - maxSegments);
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit {0}", this);
+        }
+    }
+
+    private Segment openSegment(long segmentNumber) throws IOException {
+        File file = new File(directory, String.format("%016x", segmentNumber) + SEGMENT_FILE_SUFFIX);
+
+        FileChannel fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        MappedByteBuffer mappedByteBuffer;
+        try {
+            mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, segmentLength);
+        } catch (IOException e) {
+            fileChannel.close();
+            throw e;
+        }
+
+        AppendOnlyLogImpl log = new AppendOnlyLogImpl(mappedByteBuffer, 0, segmentLength, config);
+        return new Segment(segmentNumber, file, fileChannel, mappedByteBuffer, log);
+    }
+
+    private static class Segment {
+
+        private final long number;
+        private final File file;
+        private final FileChannel fileChannel;
+        private final MappedByteBuffer mappedByteBuffer;
+        private final AppendOnlyLogImpl log;
+
+        // writers don't take the lock, so retiring a segment must wait for those still writing to it.
+        private final AtomicInteger writers = new AtomicInteger(0);
+        private volatile boolean retired = false;
+
+        private Segment(long number, File file, FileChannel fileChannel, MappedByteBuffer mappedByteBuffer, AppendOnlyLogImpl log) {
+            this.number = number;
+            this.file = file;
+            this.fileChannel = fileChannel;
+            this.mappedByteBuffer = mappedByteBuffer;
+            this.log = log;
+        }
+
+        /**
+         * Register a writer, unless the segment has been retired.
+         *
+         * @return true if the writer may proceed, after which it must call endWrite, false if the segment is retired.
+         */
+        private boolean beginWrite() {
+            writers.incrementAndGet();
+            if(retired) {
+                writers.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void endWrite() {
+            writers.decrementAndGet();
+        }
+
+        /**
+         * Unmap the segment, which must no longer be in use.
+         */
+        private void close() throws IOException {
+            // https://bugs.openjdk.java.net/browse/JDK-4724038
+            unsafe.invokeCleaner(mappedByteBuffer);
+            fileChannel.close();
+        }
+
+        /**
+         * Delete the segment. Unlike close, this leaves the memory mapped, in case it's still being iterated.
+         * The mapping is released when the buffer is garbage collected.
+         */
+        private void delete() throws IOException {
+            // a writer that registered before we did may yet report success, so its record must outlive it.
+            retired = true;
+            while(writers.get() != 0) {
+                Thread.onSpinWait();
+            }
+            fileChannel.close();
+            file.delete();
+        }
+    }
+
+    private Segment activeSegment() {
+        if(closed) {
+            IllegalStateException illegalStateException = new IllegalStateException("log is closed");
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalStateException, "throwing {0}", illegalStateException.toString());
+            }
+            throw illegalStateException;
+        }
+        Segment[] currentSegments = segments;
+        return currentSegments[currentSegments.length - 1];
+    }
+
+    /**
+     * Make the spare segment the active one, provided the given segment is still the active one,
+     * then prepare a new spare and retire the oldest segments beyond the retention limit.
+     * <p>
+     * The write is made to the spare before it is published, so it's certain to succeed if it can ever do so.
+     * The next spare is opened before publishing, so that if it can't be, the log is left as it was.
+     *
+     * @param fullSegment the segment that has insufficient space for the write.
+     * @param write the write to make, returning the locations within the segment on success, or null on failure.
+     * @return the locations of the write, {@link #RETRY} if another writer moved on first, or null if even an empty segment can't accommodate the write.
+     */
+    private long[] rollOver(Segment fullSegment, Function<AppendOnlyLogImpl, int[]> write) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with fullSegment={1}", this, fullSegment.number);
+        }
+
+        long[] result = RETRY;
+
+        lock.lock();
+        try {
+            if(activeSegment() == fullSegment) {
+                Segment newSegment = spare;
+                int[] locations = write.apply(newSegment.log);
+                if(locations == null) {
+                    if(logger.isTraceEnabled()) {
+                        logger.tracev("exit returning null");
+                    }
+                    return null;
+                }
+                result = toLocations(newSegment, locations);
+
+                Segment nextSpare;
+                try {
+                    nextSpare = openSegment(newSegment.number + 1);
+                } catch (IOException e) {
+                    // the write wasn't published, so undo it, lest recovery find it. The spare remains for the next attempt.
+                    newSegment.log.clear();
+                    throw e;
+                }
+
+                // recovery of a full segment needn't walk it all.
+                fullSegment.log.checkpoint();
+
+                Segment[] newSegments = Arrays.copyOf(segments, segments.length + 1);
+                newSegments[newSegments.length - 1] = newSegment;
+                spare = nextSpare;
+                segments = newSegments;
+                if(maxSegments != 0 && newSegments.length > maxSegments) {
+                    retire(newSegments, newSegments.length - maxSegments);
+                }
+            }
+        } catch (IOException e) {
+            RuntimeException runtimeException = new RuntimeException(e);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(runtimeException, "throwing {0}", runtimeException.toString());
+            }
+            throw runtimeException;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    private static long[] toLocations(Segment segment, int[] locations) {
+        long[] result = new long[locations.length];
+        for(int i = 0; i < locations.length; i++) {
+            result[i] = (segment.number << 32) | locations[i];
+        }
+        return result;
+    }
+
+    /*
+     * Offers the write to the active segment, moving on to the next if it doesn't fit.
+     * The write returns the locations within the segment on success, or null on failure, as does this.
+     */
+    private long[] writeWithRollOver(Function<AppendOnlyLogImpl, int[]> write) {
+        while(true) {
+            Segment segment = activeSegment();
+            if(!segment.beginWrite()) {
+                // retired since we looked, by which time it's no longer the active segment.
+                continue;
+            }
+            int[] locations;
+            try {
+                locations = write.apply(segment.log);
+            } finally {
+                segment.endWrite();
+            }
+            if(locations != null) {
+                return toLocations(segment, locations);
+            }
+            long[] result = rollOver(segment, write);
+            if(result != RETRY) {
+                return result;
+            }
+        }
+    }
+
+    /**
+     * Publish the given array, less the given number of segments from its start, as the retained segments, then delete those.
+     * Must be called with the lock held, or before the log is shared.
+     *
+     * @return an array of the remaining segments.
+     */
+    private Segment[] retire(Segment[] currentSegments, int count) throws IOException {
+        Segment[] remainingSegments = Arrays.copyOfRange(currentSegments, count, currentSegments.length);
+        // a writer that picked one of the others before this is caught by its delete, which waits for it or turns it away.
+        segments = remainingSegments;
+        for(int i = 0; i < count; i++) {
+            if(logger.isDebugEnabled()) {
+                logger.debugv("retiring segment {0}", currentSegments[i].file.getAbsolutePath());
+            }
+            currentSegments[i].delete();
+        }
+        return remainingSegments;
+    }
+
+    /**
+     * Delete all the segments that lie wholly before the given location, such as when their records have been consumed.
+     * The segment being written is never deleted.
+     *
+     * @param location A location returned by a write to this log.
+     */
+    public void retireSegmentsBefore(long location) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with location={1}", this, location);
+        }
+
+        long segmentNumber = location >>> 32;
+
+        lock.lock();
+        try {
+            Segment[] currentSegments = segments;
+            int count = 0;
+            while(count < currentSegments.length - 1 && currentSegments[count].number < segmentNumber) {
+                count++;
+            }
+            if(count > 0) {
+                retire(currentSegments, count);
+            }
+        } catch (IOException e) {
+            RuntimeException runtimeException = new RuntimeException(e);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(runtimeException, "throwing {0}", runtimeException.toString());
+            }
+            throw runtimeException;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * Reports the number of segments currently retained, including the one being written but not the spare.
+     *
+     * @return the number of segments.
+     */
+    public int getSegmentCount() {
+        return segments.length;
+    }
+
+    /**
+     * Reports the size of each segment.
+     *
+     * @return the segment length in bytes.
+     */
+    public int getSegmentLength() {
+        return segmentLength;
+    }
+
+    /**
+     * Reports the retention limit.
+     *
+     * @return the number of segments to retain, or 0 if all are retained.
+     */
+    public int getMaxSegments() {
+        return maxSegments;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectivelyPadded() {
+        return activeSegment().log.isEffectivelyPadded();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isPaddingRequested() {
+        return activeSegment().log.isPaddingRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEffectiveLinearOrdering() {
+        return activeSegment().log.isEffectiveLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isRequestedLinearOrdering() {
+        return activeSegment().log.isRequestedLinearOrdering();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAlwaysCheckpoint() {
+        return activeSegment().log.isAlwaysCheckpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isAuthoritativeCheckpointOnReads() {
+        return activeSegment().log.isAuthoritativeCheckpointOnReads();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Only the segment being written is checkpointed, since the others are checkpointed as they fill.
+     */
+    @Override
+    public void checkpoint() {
+        activeSegment().log.checkpoint();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src) {
+        put(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src) {
+        return tryPut(ByteBuffer.wrap(src));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(byte[] src, int offset, int length) {
+        put(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(byte[] src, int offset, int length) {
+        return tryPut(ByteBuffer.wrap(src, offset, length));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void put(ByteBuffer src) {
+        putWithLocation(src);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean tryPut(ByteBuffer src) {
+        return tryPutWithLocation(src) != ERROR_LOCATION;
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * moving on to a new segment if necessary.
+     * <p>
+     * After this method returns, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log.
+     * @throws BufferOverflowException If the record is too large for a segment.
+     */
+    public long putWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        long location = tryPutWithLocation(src);
+        if(location == ERROR_LOCATION) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", location);
+        }
+        return location;
+    }
+
+    /**
+     * This method transfers the bytes remaining in the given source buffer into this log,
+     * moving on to a new segment if necessary.
+     * <p>
+     * After this method returns != {@link #ERROR_LOCATION}, the data is guaranteed persisted (i.e. flushed) and the src buffer has been read.
+     * <p>
+     * After this method returns {@link #ERROR_LOCATION}, the log is unwritten and the src is unread.
+     *
+     * @param src The source buffer from which bytes are to be read. Must have at least one byte remaining.
+     * @return The location of the data within the log on success, {@link #ERROR_LOCATION} if the record is too large for a segment.
+     */
+    public long tryPutWithLocation(ByteBuffer src) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with src={1}", this, src);
+        }
+
+        long[] locations = writeWithRollOver((log) -> {
+            int location = log.tryPutWithLocation(src);
+            return location == AppendOnlyLogWithLocation.ERROR_LOCATION ? null : new int[] {location};
+        });
+        long result = locations == null ? ERROR_LOCATION : locations[0];
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is written to a single segment.
+     */
+    @Override
+    public void putAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        if(!tryPutAll(srcs)) {
+            BufferOverflowException bufferOverflowException = new BufferOverflowException();
+            if(logger.isTraceEnabled()) {
+                logger.tracev(bufferOverflowException, "throwing {0}", bufferOverflowException.toString());
+            }
+            throw bufferOverflowException;
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The batch is written to a single segment, so returns false only if it is too large for one.
+     */
+    @Override
+    public boolean tryPutAll(ByteBuffer[] srcs) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with srcs.length={1}", this, srcs.length);
+        }
+
+        boolean result = writeWithRollOver((log) -> log.tryPutAllWithLocation(srcs)) != null;
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * Read the record at the given location.
+     *
+     * @param location A location returned by a write to this log.
+     * @return A read-only view of the record.
+     * @throws IllegalArgumentException if the location is not in a retained segment, or is not a valid location within it.
+     * @throws IllegalStateException if the record at the location is invalid.
+     */
+    public ByteBuffer readRecordAt(long location) {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0} with location={1}", this, location);
+        }
+
+        Segment[] currentSegments = segments;
+        long index = (location >>> 32) - currentSegments[0].number;
+        if(location < 0 || index < 0 || index >= currentSegments.length) {
+            IllegalArgumentException illegalArgumentException = new IllegalArgumentException("invalid record location " + location);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(illegalArgumentException, "throwing {0}", illegalArgumentException.toString());
+            }
+            throw illegalArgumentException;
+        }
+
+        ByteBuffer result = currentSegments[(int) index].log.readRecordAt((int) location);
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit returning {0}", result);
+        }
+        return result;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All but one of the segments are deleted, and that one is cleared.
+     */
+    @Override
+    public void clear() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            Segment[] currentSegments = segments;
+            Segment[] newSegments = retire(currentSegments, currentSegments.length - 1);
+            newSegments[0].log.clear();
+        } catch (IOException e) {
+            RuntimeException runtimeException = new RuntimeException(e);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(runtimeException, "throwing {0}", runtimeException.toString());
+            }
+            throw runtimeException;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * All but one of the segments are deleted, and that one is reset.
+     */
+    @Override
+    public void reset() {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            Segment[] currentSegments = segments;
+            Segment[] newSegments = retire(currentSegments, currentSegments.length - 1);
+            newSegments[0].log.reset();
+        } catch (IOException e) {
+            RuntimeException runtimeException = new RuntimeException(e);
+            if(logger.isTraceEnabled()) {
+                logger.tracev(runtimeException, "throwing {0}", runtimeException.toString());
+            }
+            throw runtimeException;
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the space remaining in the segment being written. The log moves on to a new segment when it's exhausted.
+     */
+    @Override
+    public int remaining() {
+        return activeSegment().log.remaining();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is true for any record that would fit in an empty segment.
+     */
+    @Override
+    public boolean canAccept(int length) {
+        Segment segment = activeSegment();
+        if(segment.log.canAccept(length)) {
+            return true;
+        }
+        lock.lock();
+        try {
+            return spare.log.canAccept(length);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The segments are iterated in turn, oldest first. Those retired during the iteration are still included.
+     */
+    @Override
+    public Iterator<ByteBuffer> iterator() {
+        return new SegmentItr(segments, false);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The segments are iterated in turn, oldest first. Those retired during the iteration are still included.
+     */
+    @Override
+    public Iterator<ByteBuffer> copyingIterator() {
+        return new SegmentItr(segments, true);
+    }
+
+    private static class SegmentItr implements Iterator<ByteBuffer> {
+
+        private final Segment[] segments;
+        private final boolean copying;
+        private int index = 0;
+        private Iterator<ByteBuffer> current;
+
+        private SegmentItr(Segment[] segments, boolean copying) {
+            this.segments = segments;
+            this.copying = copying;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                if(index == segments.length) {
+                    return false;
+                }
+                AppendOnlyLogImpl log = segments[index++].log;
+                current = copying ? log.copyingIterator() : log.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            if(!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return current.next();
+        }
+    }
+
+    /**
+     * Unmaps and closes the segments. The log must not be used concurrently with, or after, closing.
+     *
+     * @throws IOException if a segment file can't be closed.
+     */
+    @Override
+    public void close() throws IOException {
+        if(logger.isTraceEnabled()) {
+            logger.tracev("entry for {0}", this);
+        }
+
+        lock.lock();
+        try {
+            if(!closed) {
+                closed = true;
+                for(Segment segment : segments) {
+                    segment.close();
+                }
+                spare.close();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if(logger.isTraceEnabled()) {
+            logger.tracev("exit");
+        }
+    }
+
+    @Override
+    public String toString() {
+        Segment[] currentSegments = segments;
+        return "SegmentedAppendOnlyLog{" +
+                "directory=" + directory +
+                ", segmentLength=" + segmentLength +
+                ", maxSegments=" + maxSegments +
+                ", segments=" + (currentSegments == null ? 0 : currentSegments.length) +
+                '}';
+    }
+}
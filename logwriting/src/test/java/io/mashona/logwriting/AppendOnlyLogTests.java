@@ -18,6 +18,7 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.CsvSource;
+import org.junit.jupiter.params.provider.ValueSource;
 import sun.misc.Unsafe;
 
 import java.io.File;
@@ -27,9 +28,21 @@ import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -113,6 +126,47 @@ class AppendOnlyLogTests {
         assertThrows(ConcurrentModificationException.class, iter::next);
     }
 
+    @Test
+    public void testIteratorSnapshot() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        appendOnlyLog.put(new byte[10]);
+        appendOnlyLog.put(new byte[20]);
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iterator();
+
+        // in linear mode an outstanding reservation holds the log's lock, which the Iterator should not need.
+        CountDownLatch reserved = new CountDownLatch(1);
+        CountDownLatch iterated = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            AppendOnlyLogReservation reservation = appendOnlyLog.reserve(30);
+            reserved.countDown();
+            try {
+                iterated.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            reservation.commit();
+        });
+        thread.start();
+        reserved.await();
+
+        assertEquals(10, iter.next().remaining());
+        assertEquals(20, iter.next().remaining());
+        assertFalse(iter.hasNext());
+
+        iterated.countDown();
+        thread.join();
+
+        // records written after the Iterator was created are not returned by it.
+        assertFalse(iter.hasNext());
+        iter = appendOnlyLog.iterator();
+        iter.next();
+        iter.next();
+        assertEquals(30, iter.next().remaining());
+        assertFalse(iter.hasNext());
+    }
+
     @Test
     public void testIteratorCopying() {
 
@@ -220,6 +274,126 @@ class AppendOnlyLogTests {
         assertFalse(iter.hasNext());
     }
 
+    @ParameterizedTest
+    @CsvSource({"false,true,false", "false,false,false", "false,false,true", "true,false,false"})
+    public void testSpliterator(boolean commitWords, boolean linearOrdering, boolean lockFreeReservation) throws Exception {
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().linearOrdering(linearOrdering).lockFreeReservation(lockFreeReservation).commitWords(commitWords).build();
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        int count = 0;
+        int corruptLocation = 0;
+        while (appendOnlyLog.canAccept(10)) {
+            int location = appendOnlyLog.putWithLocation(new byte[]{(byte) count, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            if (location < 768) {
+                corruptLocation = location;
+            }
+            count++;
+        }
+
+        Spliterator<ByteBuffer> spliterator = appendOnlyLog.spliterator();
+        Spliterator<ByteBuffer> prefix = spliterator.trySplit();
+        assertNotNull(prefix);
+        assertTrue(prefix.estimateSize() > 0);
+
+        List<Byte> expected = new ArrayList<>();
+        appendOnlyLog.iterator().forEachRemaining(byteBuffer -> expected.add(byteBuffer.get(0)));
+        assertEquals(count, expected.size());
+        assertEquals(expected, appendOnlyLog.stream().map(byteBuffer -> byteBuffer.get(0)).collect(Collectors.toList()));
+        assertEquals(expected, appendOnlyLog.parallelStream().map(byteBuffer -> byteBuffer.get(0)).collect(Collectors.toList()));
+
+        if (!commitWords) {
+            Field f = AppendOnlyLogImpl.class.getDeclaredField("buffer");
+            f.setAccessible(true);
+            MappedByteBuffer buffer = (MappedByteBuffer) f.get(appendOnlyLog);
+
+            ExecutionTracer.INSTANCE.allowNonFlushingOfDirtyLines = true;
+            buffer.put(corruptLocation + 9, (byte) 1); // overwrite the payload to cause checksum mismatch
+
+            // the stream skips the bad record, or where linear ordering has the iterator stop at it, stops there too.
+            List<Byte> streamed = appendOnlyLog.parallelStream().map(byteBuffer -> byteBuffer.get(0)).collect(Collectors.toList());
+            assertFalse(streamed.contains(buffer.get(corruptLocation + 8)));
+            if (!linearOrdering) {
+                assertEquals(count - 1, streamed.size());
+            }
+            expected.clear();
+            appendOnlyLog.iterator().forEachRemaining(byteBuffer -> expected.add(byteBuffer.get(0)));
+            assertEquals(expected, streamed);
+            assertEquals(expected, appendOnlyLog.stream().map(byteBuffer -> byteBuffer.get(0)).collect(Collectors.toList()));
+        }
+    }
+
+    @ParameterizedTest
+    @CsvSource({"true,false", "false,false", "false,true"})
+    public void testParallelRecovery(boolean linearOrdering, boolean lockFreeReservation) throws Exception {
+
+        AppendOnlyLogImplConfig sequentialConfig = AppendOnlyLogImplConfig.builder().linearOrdering(linearOrdering).lockFreeReservation(lockFreeReservation).build();
+        AppendOnlyLogImplConfig parallelConfig = AppendOnlyLogImplConfig.builder().linearOrdering(linearOrdering).lockFreeReservation(lockFreeReservation).parallelRecovery(true).build();
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, parallelConfig);
+        assertTrue(appendOnlyLog.isParallelRecovery());
+        int corruptLocation = 0;
+        for (int i = 0; i < 20; i++) {
+            int location = appendOnlyLog.putWithLocation(new byte[10]);
+            if (i == 10) {
+                corruptLocation = location;
+            }
+        }
+        int remaining = appendOnlyLog.remaining();
+
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, parallelConfig);
+        assertEquals(remaining, appendOnlyLog.remaining());
+
+        Field f = AppendOnlyLogImpl.class.getDeclaredField("buffer");
+        f.setAccessible(true);
+        MappedByteBuffer buffer = (MappedByteBuffer) f.get(appendOnlyLog);
+        ExecutionTracer.INSTANCE.allowNonFlushingOfDirtyLines = true;
+        buffer.put(corruptLocation + 8, (byte) 1); // overwrite the payload to cause checksum mismatch
+
+        // the parallel walk should find the same tail as the sequential one, whether or not it stops at the bad record.
+        remaining = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, sequentialConfig).remaining();
+        assertEquals(remaining, new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, parallelConfig).remaining());
+        if (linearOrdering) {
+            assertEquals(1024 - corruptLocation, remaining);
+        }
+    }
+
+    @Test
+    public void testCheckpointInterval() throws Exception {
+        final int CHECKPOINT_OFFSET = 12;
+
+        assertThrows(IllegalArgumentException.class, () -> AppendOnlyLogImplConfig.builder().linearOrdering(true).checkpointInterval(-1).build());
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().linearOrdering(true).checkpointInterval(100).build();
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        assertEquals(100, appendOnlyLog.getCheckpointInterval());
+
+        // records of 20 bytes including the header, so the fifth write should cause the checkpoint to be updated.
+        int checkpoint = mappedByteBuffer.getInt(CHECKPOINT_OFFSET);
+        int location = 0;
+        for (int i = 0; i < 5; i++) {
+            location = appendOnlyLog.putWithLocation(new byte[12]);
+        }
+
+        // the update is made in the background, so may not have happened yet.
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while(mappedByteBuffer.getInt(CHECKPOINT_OFFSET) == checkpoint && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(location + 20, mappedByteBuffer.getInt(CHECKPOINT_OFFSET));
+
+        // fewer than the interval's worth of writes since, so no further update is due.
+        for (int i = 0; i < 4; i++) {
+            appendOnlyLog.put(new byte[12]);
+        }
+
+        AppendOnlyLogImplConfig authoritativeConfig = new AppendOnlyLogImplConfig(false, true, false, true);
+        int count = 0;
+        for (ByteBuffer byteBuffer : new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, authoritativeConfig)) {
+            count++;
+        }
+        assertEquals(5, count);
+    }
+
     @Test
     public void testEmptyWrite() {
 
@@ -291,6 +465,770 @@ class AppendOnlyLogTests {
         assertEquals(record3.length, iter.next().remaining());
     }
 
+    @Test
+    public void testLockFreeReservationConfig() {
+
+        assertThrows(IllegalArgumentException.class, () -> AppendOnlyLogImplConfig.builder().linearOrdering(true).lockFreeReservation(true).build());
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, AppendOnlyLogImplConfig.builder().lockFreeReservation(true).build());
+        assertTrue(appendOnlyLog.isEffectiveLockFreeReservation());
+        assertTrue(appendOnlyLog.isRequestedLockFreeReservation());
+        assertFalse(appendOnlyLog.isEffectiveLinearOrdering());
+
+        // check that settings persist
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false);
+        assertTrue(appendOnlyLog.isEffectiveLockFreeReservation());
+        assertFalse(appendOnlyLog.isRequestedLockFreeReservation());
+        appendOnlyLog.clear();
+        assertFalse(appendOnlyLog.isEffectiveLockFreeReservation());
+        assertFalse(appendOnlyLog.isEffectiveLinearOrdering());
+    }
+
+    @Test
+    public void testLockFreeConcurrentWrites() throws Exception {
+        final AppendOnlyLog appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, AppendOnlyLogImplConfig.builder().lockFreeReservation(true).build());
+
+        int numThreads = 4;
+        int[] writesPerThread = new int[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread(() -> {
+                byte[] data = new byte[10];
+                Arrays.fill(data, (byte) threadIndex);
+                while (appendOnlyLog.tryPut(data)) {
+                    writesPerThread[threadIndex]++;
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        int[] readsPerThread = new int[numThreads];
+        appendOnlyLog.iterator().forEachRemaining(byteBuffer -> readsPerThread[byteBuffer.get(0)]++);
+
+        assertArrayEquals(writesPerThread, readsPerThread);
+    }
+
+    @Test
+    public void testLockFreeHoleSkipping() throws Exception {
+        AppendOnlyLog appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, AppendOnlyLogImplConfig.builder().lockFreeReservation(true).build());
+
+        byte[] record1 = new byte[]{(byte) 1};
+        byte[] record2 = new byte[]{(byte) 2, (byte) 2};
+
+        appendOnlyLog.put(record1);
+
+        // simulate a writer that claimed some space, then crashed before filling it.
+        Field f = AppendOnlyLogImpl.class.getDeclaredField("tail");
+        f.setAccessible(true);
+        AtomicInteger tail = (AtomicInteger) f.get(appendOnlyLog);
+        tail.addAndGet(32);
+
+        appendOnlyLog.put(record2);
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iterator();
+        assertEquals(record1.length, iter.next().remaining());
+        assertEquals(record2.length, iter.next().remaining());
+        assertFalse(iter.hasNext());
+
+        // recovery should also step over the hole
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, AppendOnlyLogImplConfig.builder().lockFreeReservation(true).build());
+        iter = appendOnlyLog.iterator();
+        assertEquals(record1.length, iter.next().remaining());
+        assertEquals(record2.length, iter.next().remaining());
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testCommitWordsHoleSkippingIgnoresPayload() throws Exception {
+        final int GENERATION_OFFSET = 20;
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().lockFreeReservation(true).commitWords(true).build();
+        AppendOnlyLog appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        byte[] record1 = new byte[]{(byte) 1};
+        byte[] record2 = new byte[]{(byte) 2, (byte) 2};
+
+        appendOnlyLog.put(record1);
+
+        // simulate a writer that claimed some space, then crashed before filling it,
+        // with payload-like bytes in the hole that would pass for a committed record header if only the generation were checked.
+        Field f = AppendOnlyLogImpl.class.getDeclaredField("tail");
+        f.setAccessible(true);
+        AtomicInteger tail = (AtomicInteger) f.get(appendOnlyLog);
+        int holeStart = tail.getAndAdd(64);
+        int generation = mappedByteBuffer.getInt(GENERATION_OFFSET);
+        mappedByteBuffer.putLong(holeStart + 8, ((long) generation << 32) | 0x80000000L | 16);
+
+        appendOnlyLog.put(record2);
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iterator();
+        assertEquals(record1.length, iter.next().remaining());
+        assertEquals(record2.length, iter.next().remaining());
+        assertFalse(iter.hasNext());
+
+        iter = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config).iterator();
+        assertEquals(record1.length, iter.next().remaining());
+        assertEquals(record2.length, iter.next().remaining());
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final int CHECKPOINT_OFFSET = 12;
+
+        assertThrows(IllegalArgumentException.class, () -> AppendOnlyLogImplConfig.builder().groupCommit(true).build());
+
+        final AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, AppendOnlyLogImplConfig.builder().linearOrdering(true).alwaysCheckpoint(true).groupCommit(true).build());
+        assertTrue(appendOnlyLog.isGroupCommit());
+
+        int numThreads = 4;
+        int[] writesPerThread = new int[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int threadIndex = i;
+            threads[i] = new Thread(() -> {
+                byte[] data = new byte[2];
+                data[0] = (byte) threadIndex;
+                while (appendOnlyLog.tryPut(data)) {
+                    writesPerThread[threadIndex]++;
+                    data[1]++;
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        // every record should be present, in the order each thread wrote them.
+        int[] readsPerThread = new int[numThreads];
+        appendOnlyLog.iterator().forEachRemaining(byteBuffer -> {
+            int threadIndex = byteBuffer.get(0);
+            assertEquals((byte) readsPerThread[threadIndex], byteBuffer.get(1));
+            readsPerThread[threadIndex]++;
+        });
+        assertArrayEquals(writesPerThread, readsPerThread);
+
+        // and the checkpoint should have followed the writes
+        assertEquals(1024 - appendOnlyLog.remaining(), mappedByteBuffer.getInt(CHECKPOINT_OFFSET));
+
+        // the persisted ordering takes priority, so an existing relaxed log can't be reopened with group commit.
+        new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false).clear();
+        assertThrows(IllegalArgumentException.class, () -> new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().linearOrdering(true).alwaysCheckpoint(true).groupCommit(true).build()));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "false, false, false",
+            "true, false, false",
+            "false, true, false",
+            "false, false, true",
+            "true, false, true"
+    })
+    public void testPutAll(boolean padding, boolean linear, boolean lockFree) {
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().blockPadding(padding).linearOrdering(linear).lockFreeReservation(lockFree).build());
+
+        if (padding) {
+            ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+        }
+
+        ByteBuffer[] srcs = new ByteBuffer[3];
+        for (int i = 0; i < srcs.length; i++) {
+            byte[] data = new byte[i + 1];
+            Arrays.fill(data, (byte) (i + 1));
+            srcs[i] = ByteBuffer.wrap(data);
+        }
+
+        int[] locations = appendOnlyLog.putAllWithLocation(srcs);
+        assertEquals(srcs.length, locations.length);
+        for (ByteBuffer src : srcs) {
+            assertEquals(0, src.remaining());
+        }
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iterator();
+        for (int i = 0; i < srcs.length; i++) {
+            ByteBuffer x = iter.next();
+            assertEquals(i + 1, x.remaining());
+            assertEquals((byte) (i + 1), x.get(0));
+            assertEquals(x, appendOnlyLog.readRecordAt(locations[i]));
+        }
+        assertFalse(iter.hasNext());
+
+        // the batch is all-or-nothing
+        int remaining = appendOnlyLog.remaining();
+        ByteBuffer[] tooLarge = new ByteBuffer[]{ByteBuffer.allocate(1), ByteBuffer.allocate(remaining)};
+        assertNull(appendOnlyLog.tryPutAllWithLocation(tooLarge));
+        assertFalse(appendOnlyLog.tryPutAll(tooLarge));
+        assertThrows(BufferOverflowException.class, () -> appendOnlyLog.putAll(tooLarge));
+        assertEquals(remaining, appendOnlyLog.remaining(), "failed write should not change log content");
+        assertEquals(1, tooLarge[0].remaining(), "failed write should not consume the src");
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "false, false, false",
+            "true, false, false",
+            "false, true, false",
+            "true, true, false",
+            "false, false, true",
+            "true, false, true"
+    })
+    public void testReserve(boolean padding, boolean linear, boolean lockFree) {
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().blockPadding(padding).linearOrdering(linear).lockFreeReservation(lockFree).build());
+
+        if (padding) {
+            ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+        }
+
+        assertNull(appendOnlyLog.tryReserve(0));
+        assertNull(appendOnlyLog.tryReserve(1024));
+        assertThrows(BufferOverflowException.class, () -> appendOnlyLog.reserve(1024));
+
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(10);
+        assertEquals(10, reservation.buffer().capacity());
+        for (int i = 0; i < 10; i++) {
+            reservation.buffer().put((byte) i);
+        }
+        reservation.commit();
+        assertThrows(IllegalStateException.class, reservation::commit);
+        assertThrows(IllegalStateException.class, reservation::abort);
+
+        ByteBuffer record = appendOnlyLog.readRecordAt(reservation.location());
+        assertEquals(10, record.remaining());
+        assertEquals(9, record.get(9));
+
+        AppendOnlyLogReservation aborted = appendOnlyLog.reserve(20);
+        if (linear) {
+            assertThrows(IllegalStateException.class, () -> appendOnlyLog.reserve(1));
+        }
+        aborted.buffer().put(new byte[20]);
+        aborted.abort();
+
+        int location = appendOnlyLog.putWithLocation(new byte[]{1, 2, 3});
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iterator();
+        assertEquals(record, iter.next());
+        assertEquals(3, iter.next().remaining());
+        assertFalse(iter.hasNext());
+
+        if (linear) {
+            assertEquals(aborted.location(), location, "aborted space should be reused");
+        } else {
+            assertNotEquals(aborted.location(), location, "aborted space should be skipped");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testReserveAcrossClear(boolean lockFree) {
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().lockFreeReservation(lockFree).build());
+
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        // the reserved space belongs to the log again once it's cleared or reset, so committing mustn't publish into it.
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(10);
+        reservation.buffer().put(new byte[10]);
+        appendOnlyLog.clear();
+        assertThrows(IllegalStateException.class, reservation::commit);
+        assertFalse(appendOnlyLog.iterator().hasNext());
+
+        reservation = appendOnlyLog.reserve(10);
+        reservation.buffer().put(new byte[10]);
+        appendOnlyLog.reset();
+        assertThrows(IllegalStateException.class, reservation::commit);
+        assertFalse(appendOnlyLog.iterator().hasNext());
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testClearDuringWrites(boolean lockFree) throws Exception {
+
+        final AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().lockFreeReservation(lockFree).build());
+
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        // writers that claimed space before a clear must finish before it zeroes the log, so no torn or stale record survives it.
+        AtomicBoolean stop = new AtomicBoolean(false);
+        int numThreads = 4;
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            byte[] data = new byte[100];
+            Arrays.fill(data, (byte) (i + 1));
+            threads[i] = new Thread(() -> {
+                while (!stop.get()) {
+                    appendOnlyLog.tryPut(data);
+                }
+            });
+            threads[i].start();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            appendOnlyLog.clear();
+        }
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        appendOnlyLog.forEach(record -> {
+            assertEquals(100, record.remaining());
+            for (int i = 1; i < record.remaining(); i++) {
+                assertEquals(record.get(0), record.get(i));
+            }
+        });
+
+        // once the writers have stopped, a clear leaves nothing behind.
+        appendOnlyLog.clear();
+        for (int i = 64; i < 1024; i++) {
+            assertEquals(0, mappedByteBuffer.get(i));
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testReserveOverStaleRecord(boolean lockFree) {
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024,
+                AppendOnlyLogImplConfig.builder().lockFreeReservation(lockFree).build());
+
+        // the header is rewritten on commit, so is flushed twice.
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        // reset leaves the record in place, so a reservation of the same size over it mustn't look committed.
+        byte[] data = new byte[50];
+        Arrays.fill(data, (byte) 1);
+        int staleLocation = appendOnlyLog.putWithLocation(data);
+        appendOnlyLog.reset();
+
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(50);
+        assertEquals(staleLocation, reservation.location());
+        if (lockFree) {
+            // a lock-free reservation leaves a zero length hole until commit.
+            assertEquals(0, appendOnlyLog.readRecordAt(reservation.location()).remaining());
+        } else {
+            assertThrows(IllegalStateException.class, () -> appendOnlyLog.readRecordAt(reservation.location()));
+        }
+        assertFalse(new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false).iterator().hasNext());
+
+        reservation.buffer().put(new byte[50]);
+        reservation.commit();
+        assertEquals(0, appendOnlyLog.readRecordAt(reservation.location()).get(0));
+    }
+
+    @ParameterizedTest
+    @CsvSource({
+            "false, false, false",
+            "true, false, false",
+            "false, true, false",
+            "true, true, false",
+            "false, false, true",
+            "true, false, true"
+    })
+    public void testCommitWords(boolean padding, boolean linear, boolean lockFree) {
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().blockPadding(padding).linearOrdering(linear).lockFreeReservation(lockFree).commitWords(true).build();
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+
+        // commit words are persisted separately from the payload, so may share a line with one already flushed.
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        assertTrue(appendOnlyLog.isEffectiveCommitWords());
+        assertEquals("TRBAOL02", new String(new byte[]{mappedByteBuffer.get(0), mappedByteBuffer.get(1), mappedByteBuffer.get(2),
+                mappedByteBuffer.get(3), mappedByteBuffer.get(4), mappedByteBuffer.get(5), mappedByteBuffer.get(6), mappedByteBuffer.get(7)}));
+
+        byte[] data = new byte[80]; // more than one cache line in size
+        Arrays.fill(data, (byte) 1);
+        int location = appendOnlyLog.putWithLocation(data);
+        assertEquals(0, location % 8, "commit words must be 8 byte aligned");
+        if (padding) {
+            // block padding leaves room for only three records, so batch just the one
+            appendOnlyLog.putAll(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2})});
+        } else {
+            appendOnlyLog.putAll(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2}), ByteBuffer.wrap(new byte[]{3, 3})});
+        }
+
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(4);
+        assertThrows(IllegalStateException.class, () -> appendOnlyLog.readRecordAt(reservation.location()));
+        reservation.buffer().putInt(4);
+        reservation.commit();
+
+        if (!linear && !padding) {
+            // never committed, so should be skipped
+            appendOnlyLog.reserve(4);
+        }
+
+        assertEquals(1, appendOnlyLog.readRecordAt(location).get(79));
+
+        AppendOnlyLogImpl reopenedLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        assertTrue(reopenedLog.isEffectiveCommitWords());
+
+        Iterator<ByteBuffer> iter = reopenedLog.iterator();
+        assertEquals(data.length, iter.next().remaining());
+        assertEquals(1, iter.next().remaining());
+        if (!padding) {
+            assertEquals(2, iter.next().remaining());
+        }
+        assertEquals(4, iter.next().getInt());
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testCommitWordsFormatUpgrade() {
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().linearOrdering(true).commitWords(true).build();
+
+        AppendOnlyLog appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        appendOnlyLog.put(new byte[]{1});
+
+        // an existing log keeps its checksum format until cleared
+        AppendOnlyLogImpl upgradedLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        assertFalse(upgradedLog.isEffectiveCommitWords());
+        assertTrue(upgradedLog.isRequestedCommitWords());
+        upgradedLog.put(new byte[]{2});
+
+        Iterator<ByteBuffer> iter = upgradedLog.iterator();
+        assertEquals(1, iter.next().get(0));
+        assertEquals(2, iter.next().get(0));
+        assertFalse(iter.hasNext());
+
+        upgradedLog.clear();
+        assertTrue(upgradedLog.isEffectiveCommitWords());
+        upgradedLog.put(new byte[]{3});
+
+        // requesting checksums doesn't revert an existing commit word log either
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        assertTrue(((AppendOnlyLogImpl) appendOnlyLog).isEffectiveCommitWords());
+        iter = appendOnlyLog.iterator();
+        assertEquals(3, iter.next().get(0));
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testCommitWordsResetInvalidatesRecords() {
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().linearOrdering(true).commitWords(true).build();
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        int location = appendOnlyLog.putWithLocation(new byte[]{1});
+        appendOnlyLog.put(new byte[]{2});
+
+        appendOnlyLog.reset();
+
+        // unlike checksummed records, those from before the reset can't be found again
+        assertThrows(IllegalStateException.class, () -> appendOnlyLog.readRecordAt(location));
+        assertFalse(new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config).iterator().hasNext());
+
+        appendOnlyLog.put(new byte[]{3});
+        Iterator<ByteBuffer> iter = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config).iterator();
+        assertEquals(3, iter.next().get(0));
+        assertFalse(iter.hasNext());
+    }
+
+    @ParameterizedTest
+    @CsvSource({"true,false", "false,false", "false,true"})
+    public void testCommitWordsClearWithoutZeroing(boolean linear, boolean lockFree) {
+
+        AppendOnlyLogImplConfig config = AppendOnlyLogImplConfig.builder().linearOrdering(linear).lockFreeReservation(lockFree).commitWords(true).build();
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config);
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+
+        int location = appendOnlyLog.putWithLocation(new byte[]{1});
+        appendOnlyLog.put(new byte[]{2});
+
+        appendOnlyLog.clear();
+
+        // the old record is left in place, but is no longer recognised, even by probing
+        assertEquals(1, mappedByteBuffer.get(location + 8));
+        assertThrows(IllegalStateException.class, () -> appendOnlyLog.readRecordAt(location));
+        assertFalse(appendOnlyLog.iterator().hasNext());
+        assertFalse(new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config).iterator().hasNext());
+
+        appendOnlyLog.put(new byte[]{3});
+        Iterator<ByteBuffer> iter = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, config).iterator();
+        assertEquals(3, iter.next().get(0));
+        assertFalse(iter.hasNext());
+    }
+
+    @Test
+    public void testSequenceNumbers() throws Exception {
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(0));
+        assertFalse(appendOnlyLog.iteratorFrom(0).hasNext());
+
+        // enough records to need more than one index entry
+        int count = 0;
+        while(appendOnlyLog.tryPut(new byte[]{(byte) count})) {
+            count++;
+        }
+        assertTrue(count > 64);
+
+        for(int i = 0; i < count; i++) {
+            assertEquals((byte) i, appendOnlyLog.readRecord(i).get(0));
+        }
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(-1));
+        final int finalCount = count;
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(finalCount));
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.iteratorFrom(finalCount + 1));
+
+        Iterator<ByteBuffer> iter = appendOnlyLog.iteratorFrom(count - 2);
+        assertEquals((byte) (count - 2), iter.next().get(0));
+        assertEquals((byte) (count - 1), iter.next().get(0));
+        assertFalse(iter.hasNext());
+
+        // recovery numbers the records the same, and indexes them up front rather than on the first lookup
+        AppendOnlyLogWithLocation recoveredLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        Field f = AppendOnlyLogImpl.class.getDeclaredField("sequenceIndexRecords");
+        f.setAccessible(true);
+        assertEquals((long) count, f.get(recoveredLog));
+        assertEquals(70, recoveredLog.readRecord(70).get(0));
+
+        // numbering continues on reset, and includes records written after the index was built
+        appendOnlyLog.reset();
+        assertEquals(count, appendOnlyLog.firstSequence());
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(0));
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(finalCount));
+        appendOnlyLog.put(new byte[]{100});
+        assertEquals(100, appendOnlyLog.readRecord(count).get(0));
+        assertThrows(IllegalArgumentException.class, () -> appendOnlyLog.readRecord(finalCount + 1));
+        appendOnlyLog.put(new byte[]{101});
+        assertEquals(101, appendOnlyLog.iteratorFrom(count + 1).next().get(0));
+
+        // and on clear, counting the records not yet indexed
+        appendOnlyLog.put(new byte[]{102});
+        appendOnlyLog.clear();
+        assertEquals(count + 3, appendOnlyLog.firstSequence());
+        appendOnlyLog.put(new byte[]{103});
+        assertEquals(103, appendOnlyLog.readRecord(count + 3).get(0));
+
+        // the base sequence is persisted, so survives recovery
+        recoveredLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        assertEquals(count + 3, recoveredLog.firstSequence());
+        assertEquals(103, recoveredLog.readRecord(count + 3).get(0));
+
+        forceInvalidation();
+
+        AppendOnlyLogWithLocation relaxedLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false);
+        relaxedLog.put(new byte[]{1});
+        assertThrows(IllegalStateException.class, () -> relaxedLog.readRecord(0));
+    }
+
+    @Test
+    public void testSequenceNumbersAfterInterruptedClear() {
+        final int BASE_SEQUENCE_OFFSET = 24;
+
+        // a crash whilst zeroing the log leaves the marker magic, with the base sequence alongside it
+        mappedByteBuffer.put(0, "TRBAOLCL".getBytes(StandardCharsets.UTF_8));
+        mappedByteBuffer.putLong(BASE_SEQUENCE_OFFSET, 1000);
+
+        AppendOnlyLogWithLocation appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        assertEquals(1000, appendOnlyLog.firstSequence());
+        assertFalse(appendOnlyLog.iterator().hasNext());
+        appendOnlyLog.put(new byte[]{1});
+        assertEquals(1, appendOnlyLog.readRecord(1000).get(0));
+    }
+
+    @Test
+    public void testHeaderLayout() {
+
+        // relaxed ordering logs don't number their records, so keep the original layout, with the first record at offset 20.
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false);
+        assertEquals("TRBAOL01", magic());
+        assertEquals(20, appendOnlyLog.putWithLocation(new byte[]{1}));
+        appendOnlyLog.clear();
+        assertEquals("TRBAOL01", magic());
+
+        // linear ordering logs gain the base sequence, so the first record moves to offset 32.
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        assertEquals("TRBAOL01", magic()); // the persisted config wins until cleared
+        appendOnlyLog.clear();
+        assertEquals("TRBAOL03", magic());
+        assertEquals(32, appendOnlyLog.putWithLocation(new byte[]{1}));
+
+        // and back again, dropping the numbering along with the field.
+        appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false);
+        appendOnlyLog.clear();
+        assertEquals("TRBAOL01", magic());
+        assertEquals(0, mappedByteBuffer.getLong(24), "the base sequence must not be left behind in the record area");
+        assertEquals(20, appendOnlyLog.putWithLocation(new byte[]{1}));
+    }
+
+    private String magic() {
+        byte[] magic = new byte[8];
+        mappedByteBuffer.get(0, magic);
+        return new String(magic, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testCursor() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        for(int i = 0; i < 3; i++) {
+            appendOnlyLog.put(new byte[]{(byte) i});
+        }
+
+        AppendOnlyLogCursor cursor = appendOnlyLog.cursor();
+        assertEquals(2, cursor.poll(2).size());
+        assertEquals(2, cursor.poll(10).get(0).get(0));
+        assertTrue(cursor.poll(10).isEmpty());
+        assertTrue(cursor.take(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+
+        // a waiting cursor is woken by the write
+        Thread thread = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            appendOnlyLog.put(new byte[]{3});
+        });
+        thread.start();
+        List<ByteBuffer> records = cursor.take(10, 10, TimeUnit.SECONDS);
+        thread.join();
+        assertEquals(1, records.size());
+        assertEquals(3, records.get(0).get(0));
+
+        appendOnlyLog.reset();
+        assertThrows(ConcurrentModificationException.class, () -> cursor.poll(10));
+
+        // closing a cursor wakes its waiting reader
+        AppendOnlyLogCursor waitingCursor = appendOnlyLog.cursor();
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            waitingCursor.close();
+        });
+        closer.start();
+        assertTrue(waitingCursor.take(10, 10, TimeUnit.SECONDS).isEmpty());
+        closer.join();
+
+        forceInvalidation();
+        AppendOnlyLogImpl relaxedLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, false);
+        assertThrows(IllegalStateException.class, relaxedLog::cursor);
+    }
+
+    @Test
+    public void testPublisher() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+        appendOnlyLog.put(new byte[]{0});
+
+        BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        AtomicReference<Flow.Subscription> subscriptionReference = new AtomicReference<>();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        appendOnlyLog.publisher(executorService).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriptionReference.set(subscription);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received.add(item.get(0));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                received.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // nothing is delivered until requested, and then no more than requested
+        appendOnlyLog.put(new byte[]{1});
+        appendOnlyLog.put(new byte[]{2});
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        subscriptionReference.get().request(2);
+        assertEquals((byte) 0, received.poll(10, TimeUnit.SECONDS));
+        assertEquals((byte) 1, received.poll(10, TimeUnit.SECONDS));
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        // outstanding demand is met by records as they are appended
+        subscriptionReference.get().request(2);
+        assertEquals((byte) 2, received.poll(10, TimeUnit.SECONDS));
+        appendOnlyLog.put(new byte[]{3});
+        assertEquals((byte) 3, received.poll(10, TimeUnit.SECONDS));
+
+        subscriptionReference.get().request(1);
+        appendOnlyLog.clear();
+        assertTrue(received.poll(10, TimeUnit.SECONDS) instanceof ConcurrentModificationException);
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testPublisherInvalidRequest() throws InterruptedException {
+
+        final AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, 1024, false, true);
+
+        BlockingQueue<Object> received = new LinkedBlockingQueue<>();
+        AtomicReference<Flow.Subscription> subscriptionReference = new AtomicReference<>();
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        appendOnlyLog.publisher(executorService).subscribe(new Flow.Subscriber<>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscriptionReference.set(subscription);
+            }
+
+            @Override
+            public void onNext(ByteBuffer item) {
+                received.add(item.get(0));
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                received.add(Thread.currentThread());
+                received.add(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+            }
+        });
+
+        // the error is signalled by the delivery task, even whilst it is waiting for records, not on the requesting thread.
+        subscriptionReference.get().request(1);
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+        subscriptionReference.get().request(0);
+        assertNotEquals(Thread.currentThread(), received.poll(10, TimeUnit.SECONDS));
+        assertTrue(received.poll(10, TimeUnit.SECONDS) instanceof IllegalArgumentException);
+
+        // and nothing follows it
+        appendOnlyLog.put(new byte[]{1});
+        assertNull(received.poll(100, TimeUnit.MILLISECONDS));
+
+        executorService.shutdown();
+        assertTrue(executorService.awaitTermination(10, TimeUnit.SECONDS));
+    }
+
     @Test
     public void testPadding() {
 
@@ -0,0 +1,220 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class AsyncAppendOnlyLogTests {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "test");
+
+    private static final int LENGTH = 1024;
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+
+        if (file.exists()) {
+            file.delete();
+        }
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, LENGTH);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testPutAsync() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true);
+
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        try (AsyncAppendOnlyLog asyncAppendOnlyLog = new AsyncAppendOnlyLog(appendOnlyLog, 4)) {
+
+            for (int i = 0; i < 20; i++) {
+                ByteBuffer src = ByteBuffer.wrap(new byte[]{(byte) i, 0, 0, 0});
+                futures.add(asyncAppendOnlyLog.putAsync(src));
+                assertFalse(src.hasRemaining());
+            }
+
+            // records are written in the order submitted, wherever the batches fall.
+            int previousLocation = -1;
+            for (int i = 0; i < futures.size(); i++) {
+                int location = futures.get(i).join();
+                assertTrue(location > previousLocation);
+                assertEquals((byte) i, appendOnlyLog.readRecordAt(location).get(0));
+                previousLocation = location;
+            }
+
+            // a record too large for the log fails, without holding up those after it.
+            CompletableFuture<Integer> tooLarge = asyncAppendOnlyLog.putAsync(ByteBuffer.allocate(LENGTH));
+            CompletableFuture<Integer> fits = asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{20}));
+            CompletionException completionException = assertThrows(CompletionException.class, tooLarge::join);
+            assertTrue(completionException.getCause() instanceof BufferOverflowException);
+            assertEquals(20, appendOnlyLog.readRecordAt(fits.join()).get(0));
+
+            assertEquals(22, asyncAppendOnlyLog.getCompletedCount());
+            assertTrue(asyncAppendOnlyLog.getMaxCompletionNanos() >= asyncAppendOnlyLog.getMeanCompletionNanos());
+
+            futures.clear();
+            for (int i = 0; i < 10; i++) {
+                futures.add(asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{(byte) i})));
+            }
+        }
+
+        // close waits for records already submitted
+        for (CompletableFuture<Integer> future : futures) {
+            assertTrue(future.isDone());
+        }
+        assertEquals(20 + 1 + 10, appendOnlyLog.stream().count());
+    }
+
+    @Test
+    public void testClose() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true);
+
+        AsyncAppendOnlyLog asyncAppendOnlyLog = new AsyncAppendOnlyLog(appendOnlyLog, 4);
+        asyncAppendOnlyLog.close();
+        asyncAppendOnlyLog.close();
+
+        assertThrows(IllegalStateException.class, () -> asyncAppendOnlyLog.putAsync(ByteBuffer.allocate(1)));
+        assertEquals(0, asyncAppendOnlyLog.getQueueDepth());
+        assertThrows(IllegalArgumentException.class, () -> new AsyncAppendOnlyLog(appendOnlyLog, 0));
+    }
+
+    @Test
+    public void testInterruptedClose() throws InterruptedException {
+
+        CountDownLatch gate = new CountDownLatch(1);
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true) {
+            @Override
+            public int[] tryPutAllWithLocation(ByteBuffer[] srcs) {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                return super.tryPutAllWithLocation(srcs);
+            }
+        };
+
+        AsyncAppendOnlyLog asyncAppendOnlyLog = new AsyncAppendOnlyLog(appendOnlyLog, 4);
+        CompletableFuture<Integer> first = asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{1}));
+        while (asyncAppendOnlyLog.getQueueDepth() != 0) {
+            Thread.sleep(1);
+        }
+        // queued behind the blocked flusher, so it's taken in the same batch as the SHUTDOWN marker.
+        CompletableFuture<Integer> second = asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{2}));
+
+        Thread closer = new Thread(asyncAppendOnlyLog::close);
+        closer.start();
+        // interrupts whilst close waits for the flusher mustn't queue further markers.
+        for (int i = 0; i < 3; i++) {
+            while (closer.getState() != Thread.State.WAITING) {
+                Thread.sleep(1);
+            }
+            closer.interrupt();
+            Thread.sleep(10);
+        }
+        assertEquals(2, asyncAppendOnlyLog.getQueueDepth());
+
+        gate.countDown();
+        closer.join(10000);
+        assertFalse(closer.isAlive());
+
+        assertEquals(1, appendOnlyLog.readRecordAt(first.join()).get(0));
+        assertEquals(2, appendOnlyLog.readRecordAt(second.join()).get(0));
+    }
+
+    @Test
+    public void testErrorFromLog() throws InterruptedException {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true) {
+            @Override
+            public int[] tryPutAllWithLocation(ByteBuffer[] srcs) {
+                throw new InternalError("simulated");
+            }
+        };
+
+        AsyncAppendOnlyLog asyncAppendOnlyLog = new AsyncAppendOnlyLog(appendOnlyLog, 4);
+        CompletableFuture<Integer> first = asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{1}));
+        CompletionException completionException = assertThrows(CompletionException.class, first::join);
+        assertTrue(completionException.getCause() instanceof InternalError);
+
+        // the flusher survives to fail later records, rather than leave them pending, and to be closed.
+        List<CompletableFuture<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            futures.add(asyncAppendOnlyLog.putAsync(ByteBuffer.wrap(new byte[]{(byte) i})));
+        }
+        asyncAppendOnlyLog.close();
+        for (CompletableFuture<Integer> future : futures) {
+            assertTrue(future.isCompletedExceptionally());
+        }
+        assertEquals(11, asyncAppendOnlyLog.getCompletedCount());
+    }
+}
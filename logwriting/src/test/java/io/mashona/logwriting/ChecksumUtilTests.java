@@ -0,0 +1,85 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ChecksumUtilTests {
+
+    @ParameterizedTest
+    @ValueSource(ints = {0, 1, 63, 64, ChecksumUtil.COPY_CHUNK_SIZE - 1, ChecksumUtil.COPY_CHUNK_SIZE,
+            ChecksumUtil.COPY_CHUNK_SIZE + 1, 3 * ChecksumUtil.COPY_CHUNK_SIZE + 17})
+    public void testCopyWithChecksum(int length) {
+
+        byte[] data = new byte[length + 10];
+        new Random(length).nextBytes(data);
+
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(data, 5, length);
+        int expectedChecksum = (int) crc32c.getValue();
+
+        ByteBuffer src = ByteBuffer.wrap(data, 5, length);
+        ByteBuffer dst = ByteBuffer.allocateDirect(length + 20);
+
+        assertEquals(expectedChecksum, ChecksumUtil.checksum(src));
+        assertEquals(5, src.position());
+
+        assertEquals(expectedChecksum, ChecksumUtil.copyWithChecksum(src, dst, 7));
+        assertEquals(5, src.position());
+        assertEquals(0, dst.position());
+
+        assertEquals(src, dst.slice(7, length));
+        assertEquals(0, dst.get(6));
+        assertEquals(0, dst.get(7 + length));
+    }
+
+    @Test
+    public void testSaltedChecksum() {
+
+        byte[] data = new byte[100];
+        new Random(100).nextBytes(data);
+
+        CRC32C crc32c = new CRC32C();
+        crc32c.update(new byte[]{0x01, 0x02, 0x03, 0x04});
+        crc32c.update(data);
+        int expectedChecksum = (int) crc32c.getValue();
+
+        ByteBuffer src = ByteBuffer.wrap(data);
+        ByteBuffer dst = ByteBuffer.allocate(data.length);
+
+        assertEquals(expectedChecksum, ChecksumUtil.checksum(0x01020304, src));
+        assertEquals(expectedChecksum, ChecksumUtil.checksumViaHeap(0x01020304, src));
+        assertEquals(expectedChecksum, ChecksumUtil.checksumViaHeap(0x01020304, src, src.position(), src.remaining()));
+        assertEquals(expectedChecksum, ChecksumUtil.copyWithChecksum(0x01020304, src, dst, 0));
+        assertEquals(src, dst);
+
+        assertNotEquals(expectedChecksum, ChecksumUtil.checksum(0x01020305, src));
+    }
+
+    @Test
+    public void testInsufficientSpace() {
+
+        ByteBuffer src = ByteBuffer.allocate(10);
+        ByteBuffer dst = ByteBuffer.allocate(10);
+
+        assertThrows(IndexOutOfBoundsException.class, () -> ChecksumUtil.copyWithChecksum(src, dst, 1));
+    }
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class CircularAppendOnlyLogTests {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "test");
+
+    private static final int LENGTH = 4096;
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+
+        if (file.exists()) {
+            file.delete();
+        }
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, LENGTH);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private List<Integer> values(CircularAppendOnlyLog log) {
+        List<Integer> values = new ArrayList<>();
+        log.iterator().forEachRemaining(byteBuffer -> values.add(byteBuffer.getInt(0)));
+        return values;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testWrapAround(boolean blockPadding) {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, blockPadding);
+
+        // fill the log, then keep going by releasing the oldest records as we go, so that it wraps several times.
+        List<Integer> locations = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            ByteBuffer record = ByteBuffer.allocate(100).putInt(0, i);
+            if (!log.canAccept(record.remaining())) {
+                assertFalse(log.tryPut(record));
+                assertThrows(BufferOverflowException.class, () -> log.put(record));
+                log.truncateBefore(locations.get(1));
+                locations.remove(0);
+                expected.remove(0);
+            }
+            locations.add(log.putWithLocation(record));
+            expected.add(i);
+        }
+
+        assertTrue(expected.size() > 1);
+        assertEquals(expected, values(log));
+        for (int i = 0; i < locations.size(); i++) {
+            assertEquals((int) expected.get(i), log.readRecordAt(locations.get(i)).getInt(0));
+        }
+
+        // recovery finds the same records, but not those released or from earlier laps.
+        CircularAppendOnlyLog recoveredLog = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, blockPadding);
+        assertEquals(expected, values(recoveredLog));
+        assertEquals(log.remaining(), recoveredLog.remaining());
+
+        recoveredLog.truncateBefore(locations.get(1));
+        expected.remove(0);
+        recoveredLog.put(ByteBuffer.allocate(100).putInt(0, 200));
+        expected.add(200);
+        assertEquals(expected, values(new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, blockPadding)));
+    }
+
+    @Test
+    public void testTruncation() {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false);
+
+        int first = log.putWithLocation(ByteBuffer.allocate(4).putInt(0, 1));
+        int second = log.putWithLocation(ByteBuffer.allocate(4).putInt(0, 2));
+        log.put(ByteBuffer.allocate(4).putInt(0, 3));
+
+        Iterator<ByteBuffer> iter = log.iterator();
+        assertEquals(1, iter.next().getInt(0));
+
+        log.truncateBefore(second);
+        assertEquals(List.of(2, 3), values(log));
+        assertThrows(IllegalArgumentException.class, () -> log.readRecordAt(first));
+        assertThrows(IllegalArgumentException.class, () -> log.truncateBefore(first));
+        assertThrows(IllegalArgumentException.class, () -> log.truncateBefore(second + 1));
+
+        // the iterator's next record is still in the log, but would not have been had we released it too.
+        assertEquals(2, iter.next().getInt(0));
+        log.truncateBefore(log.putWithLocation(ByteBuffer.allocate(4).putInt(0, 4)));
+        assertThrows(ConcurrentModificationException.class, iter::next);
+
+        assertEquals(List.of(4), values(new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false)));
+
+        log.clear();
+        assertFalse(log.iterator().hasNext());
+        assertFalse(new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false).iterator().hasNext());
+    }
+
+    @Test
+    public void testPutAll() {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false);
+
+        log.put(ByteBuffer.allocate(LENGTH / 2).putInt(0, 1));
+        log.truncateBefore(log.putWithLocation(ByteBuffer.allocate(LENGTH / 4).putInt(0, 2)));
+
+        // the batch doesn't fit before the end, so wraps into the space released at the start.
+        ByteBuffer[] batch = new ByteBuffer[]{
+                ByteBuffer.allocate(LENGTH / 8).putInt(0, 3),
+                ByteBuffer.allocate(LENGTH / 4).putInt(0, 4),
+                ByteBuffer.allocate(LENGTH / 8).putInt(0, 5)};
+        log.putAll(batch);
+        assertFalse(batch[0].hasRemaining());
+        assertEquals(List.of(2, 3, 4, 5), values(log));
+        assertEquals(List.of(2, 3, 4, 5), values(new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false)));
+
+        // a batch that doesn't fit is not written at all.
+        ByteBuffer[] tooLarge = new ByteBuffer[]{ByteBuffer.allocate(8), ByteBuffer.allocate(LENGTH / 2)};
+        assertFalse(log.tryPutAll(tooLarge));
+        assertEquals(8, tooLarge[0].remaining());
+        assertThrows(BufferOverflowException.class, () -> log.putAll(tooLarge));
+        assertEquals(List.of(2, 3, 4, 5), values(log));
+    }
+
+    @Test
+    public void testWithLocation() throws InterruptedException {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false);
+
+        int[] locations = log.putAllWithLocation(new ByteBuffer[]{ByteBuffer.allocate(4).putInt(0, 1), ByteBuffer.allocate(4).putInt(0, 2)});
+        assertEquals(1, log.readRecordAt(locations[0]).getInt(0));
+        assertEquals(2, log.readRecordAt(locations[1]).getInt(0));
+        assertEquals(3, log.readRecordAt(log.putWithLocation(new byte[]{0, 0, 0, 3})).getInt(0));
+
+        // so it can be wrapped by the logs that build on locations.
+        try (AsyncAppendOnlyLog asyncAppendOnlyLog = new AsyncAppendOnlyLog(log, 4)) {
+            int location = asyncAppendOnlyLog.putAsync(ByteBuffer.allocate(4).putInt(0, 4)).join();
+            assertEquals(4, log.readRecordAt(location).getInt(0));
+        }
+        CodecAppendOnlyLog codecAppendOnlyLog = new CodecAppendOnlyLog(log, new LzRecordCodec(), 16);
+        int location = codecAppendOnlyLog.putWithLocation(ByteBuffer.allocate(256));
+        assertEquals(ByteBuffer.allocate(256), codecAppendOnlyLog.readRecordAt(location));
+    }
+
+    @Test
+    public void testReservation() {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false);
+
+        AppendOnlyLogReservation aborted = log.reserve(4);
+        aborted.abort();
+        assertThrows(IllegalStateException.class, aborted::commit);
+        assertEquals(List.of(), values(log));
+
+        // fill the log until the next record wraps, to cover a reservation ending the lap.
+        List<Integer> locations = new ArrayList<>();
+        int location;
+        while((location = log.tryPutWithLocation(ByteBuffer.allocate(4).putInt(0, locations.size()))) != AppendOnlyLogWithLocation.ERROR_LOCATION) {
+            locations.add(location);
+        }
+        int count = locations.size();
+        log.truncateBefore(locations.get(count / 2));
+
+        AppendOnlyLogReservation reservation = log.reserve(4);
+        assertThrows(IllegalStateException.class, () -> log.tryReserve(4));
+        reservation.buffer().putInt(0, count);
+        reservation.commit();
+
+        assertEquals(count, log.readRecordAt(reservation.location()).getInt(0));
+        List<Integer> values = values(log);
+        assertEquals(count, values.get(values.size() - 1));
+    }
+
+    @Test
+    public void testBadLength() {
+
+        CircularAppendOnlyLog log = new CircularAppendOnlyLog(mappedByteBuffer, 0, LENGTH, false);
+        int location = log.putWithLocation(ByteBuffer.allocate(4).putInt(0, 1));
+
+        Iterator<ByteBuffer> iter = log.iterator();
+        assertTrue(iter.hasNext());
+
+        // as if the record were overwritten after hasNext, but without its release, so it's reported as corrupt.
+        ExecutionTracer.INSTANCE.allowNonFlushingOfDirtyLines = true;
+        mappedByteBuffer.putInt(location, LENGTH);
+        assertThrows(IllegalStateException.class, iter::next);
+
+        // whereas once released, it's reported as such.
+        iter = log.iterator();
+        assertTrue(iter.hasNext());
+        log.truncateBefore(log.putWithLocation(ByteBuffer.allocate(4).putInt(0, 2)));
+        mappedByteBuffer.putInt(location, -1);
+        assertThrows(ConcurrentModificationException.class, iter::next);
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class CodecAppendOnlyLogTests {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "test");
+
+    private static final int LENGTH = 64 * 1024;
+
+    private static final byte[] COMPRESSIBLE = "{\"xid\":\"0:ffff7f000001:a3c1:5f8e2b1d:17\",\"state\":\"PREPARED\"}"
+            .repeat(20).getBytes(StandardCharsets.UTF_8);
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+
+        if (file.exists()) {
+            file.delete();
+        }
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, LENGTH);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private static byte[] toBytes(ByteBuffer byteBuffer) {
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testLzRoundTrip() {
+
+        LzRecordCodec codec = new LzRecordCodec();
+        Random random = new Random(0);
+
+        List<byte[]> inputs = new ArrayList<>();
+        inputs.add(COMPRESSIBLE);
+        inputs.add(new byte[10000]); // a run long enough to need length extension bytes
+        byte[] incompressible = new byte[1000];
+        random.nextBytes(incompressible);
+        inputs.add(incompressible);
+        for (int i = 0; i < 100; i++) {
+            // short alphabets give matches of all lengths and offsets, including overlapping ones
+            byte[] input = new byte[random.nextInt(5000)];
+            for (int j = 0; j < input.length; j++) {
+                input[j] = (byte) ('a' + random.nextInt(1 + i % 8));
+            }
+            inputs.add(input);
+        }
+
+        for (byte[] input : inputs) {
+            ByteBuffer src = ByteBuffer.wrap(input);
+            ByteBuffer encoded = codec.encode(src);
+            assertEquals(0, src.position());
+            if (encoded == null) {
+                continue;
+            }
+            assertTrue(encoded.remaining() < input.length);
+            assertArrayEquals(input, toBytes(codec.decode(encoded)));
+        }
+
+        assertNull(codec.encode(ByteBuffer.wrap(incompressible)));
+        assertTrue(codec.encode(ByteBuffer.wrap(COMPRESSIBLE)).remaining() < COMPRESSIBLE.length / 5);
+
+        ByteBuffer encoded = codec.encode(ByteBuffer.wrap(COMPRESSIBLE));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(encoded.duplicate().limit(encoded.limit() - 1)));
+        assertThrows(IllegalArgumentException.class, () -> codec.decode(ByteBuffer.wrap(new byte[]{0, 0, 0, 10, 0})));
+    }
+
+    @Test
+    public void testWriteAndReadBack() {
+
+        AppendOnlyLogImpl appendOnlyLog = new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true);
+        CodecAppendOnlyLog codecAppendOnlyLog = new CodecAppendOnlyLog(appendOnlyLog, new LzRecordCodec(), 64);
+
+        byte[] incompressible = new byte[1000];
+        new Random(0).nextBytes(incompressible);
+        byte[] small = "small".getBytes(StandardCharsets.UTF_8);
+
+        int compressedLocation = codecAppendOnlyLog.putWithLocation(ByteBuffer.wrap(COMPRESSIBLE));
+        int incompressibleLocation = codecAppendOnlyLog.putWithLocation(ByteBuffer.wrap(incompressible));
+        codecAppendOnlyLog.put(small);
+        ByteBuffer[] batch = new ByteBuffer[]{ByteBuffer.wrap(small), ByteBuffer.wrap(COMPRESSIBLE)};
+        codecAppendOnlyLog.putAll(batch);
+        assertFalse(batch[1].hasRemaining());
+
+        // only the compressible record takes less space than its payload, the others just a flag byte more.
+        assertTrue(appendOnlyLog.readRecordAt(compressedLocation).remaining() < COMPRESSIBLE.length / 5);
+        assertEquals(incompressible.length + 1, appendOnlyLog.readRecordAt(incompressibleLocation).remaining());
+
+        assertArrayEquals(COMPRESSIBLE, toBytes(codecAppendOnlyLog.readRecordAt(compressedLocation)));
+        assertArrayEquals(incompressible, toBytes(codecAppendOnlyLog.readRecordAt(incompressibleLocation)));
+
+        List<byte[]> expected = List.of(COMPRESSIBLE, incompressible, small, small, COMPRESSIBLE);
+
+        Iterator<ByteBuffer> iterator = codecAppendOnlyLog.iterator();
+        for (byte[] bytes : expected) {
+            assertArrayEquals(bytes, toBytes(iterator.next()));
+        }
+        assertFalse(iterator.hasNext());
+
+        Iterator<ByteBuffer> copyingIterator = codecAppendOnlyLog.copyingIterator();
+        for (byte[] bytes : expected) {
+            assertArrayEquals(bytes, toBytes(copyingIterator.next()));
+        }
+
+        assertEquals(expected.stream().map(String::new).collect(Collectors.toList()),
+                codecAppendOnlyLog.parallelStream().map(byteBuffer -> new String(toBytes(byteBuffer))).collect(Collectors.toList()));
+
+        // the encoding is in the records, so survives recovery
+        CodecAppendOnlyLog recoveredLog = new CodecAppendOnlyLog(
+                new AppendOnlyLogImpl(mappedByteBuffer, 0, LENGTH, false, true), new LzRecordCodec(), 64);
+        iterator = recoveredLog.iterator();
+        for (byte[] bytes : expected) {
+            assertArrayEquals(bytes, toBytes(iterator.next()));
+        }
+        assertFalse(iterator.hasNext());
+
+        assertFalse(codecAppendOnlyLog.tryPut(new byte[0]));
+    }
+}
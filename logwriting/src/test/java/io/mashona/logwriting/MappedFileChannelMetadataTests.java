@@ -103,10 +103,12 @@ public class MappedFileChannelMetadataTests {
 
         mappedFileChannelMetadata.persist(0, 10);
         assertEquals(10, mappedFileChannelMetadata.getPersistenceIndex());
+        assertEquals(10, readFollower.getPublishedPersistenceIndex());
         assertEquals(10, readFollower.getPersistenceIndex());
 
         readFollower.persist(10, 10);
         assertEquals(10, mappedFileChannelMetadata.getPersistenceIndex());
+        assertEquals(10, mappedFileChannelMetadata.getPublishedPersistenceIndex());
         assertEquals(20, readFollower.getPersistenceIndex());
     }
 
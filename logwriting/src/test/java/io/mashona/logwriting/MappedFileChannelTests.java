@@ -21,7 +21,16 @@ import org.junit.jupiter.params.provider.CsvSource;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ReadOnlyBufferException;
 import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -221,12 +230,7 @@ public class MappedFileChannelTests {
     @Test
     public void testUnsupportedMethods() throws IOException {
 
-        assertThrows(IOException.class, () -> mappedFileChannel.read(new ByteBuffer[0], 0, 0));
-        assertThrows(IOException.class, () -> mappedFileChannel.write(new ByteBuffer[0], 0, 0));
         assertThrows(IOException.class, () -> mappedFileChannel.truncate(0));
-        assertThrows(IOException.class, () -> mappedFileChannel.transferTo(0, 0, null));
-        assertThrows(IOException.class, () -> mappedFileChannel.transferFrom(null, 0, 0));
-        assertThrows(IOException.class, () -> mappedFileChannel.map(null, 0, 0));
         assertThrows(IOException.class, () -> mappedFileChannel.lock(0, 0, false));
         assertThrows(IOException.class, () -> mappedFileChannel.tryLock(0, 0, false));
     }
@@ -246,6 +250,357 @@ public class MappedFileChannelTests {
         assertEquals(-1, mappedFileChannel.read(data, 0));
     }
 
+    @Test
+    public void testDeferredDurability() throws IOException {
+
+        assertFalse(mappedFileChannel.isDeferredDurability());
+        mappedFileChannel.close();
+        mappedFileChannel = new MappedFileChannel(file, 1024, false, true);
+        assertTrue(mappedFileChannel.isDeferredDurability());
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(10, mappedFileChannel.write(ByteBuffer.wrap(new byte[]{(byte) i, 1, 2, 3, 4, 5, 6, 7, 8, 9})));
+        }
+        assertThrows(IllegalArgumentException.class, () -> mappedFileChannel.write(ByteBuffer.allocate(1), 50));
+
+        // the writes can be read back, but aren't yet covered by the persisted size.
+        ByteBuffer readBuffer = ByteBuffer.allocate(100);
+        assertEquals(100, mappedFileChannel.read(readBuffer, 0));
+        assertEquals(9, readBuffer.get(90));
+        assertEquals(0, mappedFileChannel.getPersistedSize());
+        try (MappedFileChannelMetadata metadata = new MappedFileChannelMetadata(MappedFileChannel.getMetadataFile(file), true)) {
+            assertEquals(0, metadata.getPersistenceIndex());
+
+            mappedFileChannel.force(true);
+            assertEquals(100, mappedFileChannel.getPersistedSize());
+            assertEquals(100, metadata.getPersistenceIndex());
+
+            // closing forces any remaining writes, since they would otherwise be lost.
+            mappedFileChannel.write(ByteBuffer.allocate(5));
+            mappedFileChannel.close();
+            assertEquals(105, metadata.getPersistenceIndex());
+        }
+
+        mappedFileChannel = new MappedFileChannel(file, 1024, false, true);
+        assertEquals(105, mappedFileChannel.getPersistedSize());
+        mappedFileChannel.write(ByteBuffer.allocate(5), 105);
+        mappedFileChannel.clear();
+        mappedFileChannel.force(false);
+        assertEquals(0, mappedFileChannel.getPersistedSize());
+        assertEquals(-1, mappedFileChannel.read(ByteBuffer.allocate(1), 0));
+    }
+
+    @Test
+    public void testScatterGather() throws IOException {
+
+        ByteBuffer header = ByteBuffer.wrap(new byte[]{1, 2, 3, 4});
+        ByteBuffer body = ByteBuffer.wrap(new byte[]{5, 6, 7, 8, 9, 10});
+        ByteBuffer ignored = ByteBuffer.wrap(new byte[]{11});
+
+        assertEquals(10, mappedFileChannel.write(new ByteBuffer[]{ignored, header, body, ignored}, 1, 2));
+        assertFalse(header.hasRemaining());
+        assertFalse(body.hasRemaining());
+        assertEquals(1, ignored.remaining());
+        assertEquals(10, mappedFileChannel.position());
+        assertEquals(10, mappedFileChannel.getPersistedSize());
+        assertThrows(IndexOutOfBoundsException.class, () -> mappedFileChannel.write(new ByteBuffer[]{ignored}, 1, 1));
+
+        // a gathering write is limited by the capacity, as for a single buffer.
+        ByteBuffer large = ByteBuffer.allocate(1024);
+        assertEquals(1024 - 10, mappedFileChannel.write(new ByteBuffer[]{ignored, large}, 0, 2));
+        assertEquals(11, large.remaining());
+        assertEquals(0, mappedFileChannel.write(new ByteBuffer[]{large}, 0, 1));
+
+        mappedFileChannel.position(0);
+        ByteBuffer first = ByteBuffer.allocate(3);
+        ByteBuffer second = ByteBuffer.allocate(8);
+        assertEquals(11, mappedFileChannel.read(new ByteBuffer[]{first, second}, 0, 2));
+        assertArrayEquals(new byte[]{1, 2, 3}, first.array());
+        assertArrayEquals(new byte[]{4, 5, 6, 7, 8, 9, 10, 11}, second.array());
+        assertEquals(11, mappedFileChannel.position());
+
+        mappedFileChannel.position(1020);
+        ByteBuffer remainder = ByteBuffer.allocate(8);
+        assertEquals(4, mappedFileChannel.read(new ByteBuffer[]{remainder}, 0, 1));
+        assertEquals(-1, mappedFileChannel.read(new ByteBuffer[]{remainder}, 0, 1));
+    }
+
+    @Test
+    public void testTransfer() throws IOException {
+
+        File otherFile = new File(file.getParentFile(), "othertest");
+        File plainFile = new File(file.getParentFile(), "plaintest");
+        otherFile.delete();
+        MappedFileChannel.getMetadataFile(otherFile).delete();
+        plainFile.delete();
+
+        byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        mappedFileChannel.write(ByteBuffer.wrap(data));
+
+        try (FileChannel plainChannel = FileChannel.open(plainFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             MappedFileChannel otherChannel = new MappedFileChannel(otherFile, 1024)) {
+
+            // only the written data is transferred, and the position is unchanged.
+            assertEquals(90, mappedFileChannel.transferTo(10, 200, plainChannel));
+            assertEquals(100, mappedFileChannel.position());
+            assertEquals(0, mappedFileChannel.transferTo(100, 10, plainChannel));
+            assertEquals(90, plainChannel.size());
+
+            assertEquals(50, mappedFileChannel.transferTo(0, 50, otherChannel));
+            assertEquals(50, otherChannel.getPersistedSize());
+
+            assertEquals(90, otherChannel.transferFrom(plainChannel.position(0), 50, 200));
+            assertEquals(140, otherChannel.getPersistedSize());
+            assertThrows(IllegalArgumentException.class, () -> otherChannel.transferFrom(plainChannel.position(0), 0, 10));
+
+            mappedFileChannel.position(0);
+            assertEquals(100, otherChannel.transferFrom(mappedFileChannel, 140, 1024));
+            assertEquals(100, mappedFileChannel.position());
+            assertEquals(240, otherChannel.getPersistedSize());
+
+            ByteBuffer readBuffer = ByteBuffer.allocate(240);
+            assertEquals(240, otherChannel.read(readBuffer, 0));
+            for (int i = 0; i < 240; i++) {
+                int expected = i < 50 ? i : (i < 140 ? i - 40 : i - 140);
+                assertEquals((byte) expected, readBuffer.get(i));
+            }
+
+            assertThrows(IllegalArgumentException.class, () -> mappedFileChannel.transferTo(-1, 10, plainChannel));
+        } finally {
+            otherFile.delete();
+            MappedFileChannel.getMetadataFile(otherFile).delete();
+            plainFile.delete();
+        }
+    }
+
+    @Test
+    public void testOpposingTransfers() throws Exception {
+
+        File otherFile = new File(file.getParentFile(), "othertest");
+        otherFile.delete();
+        MappedFileChannel.getMetadataFile(otherFile).delete();
+
+        try (MappedFileChannel otherChannel = new MappedFileChannel(otherFile, 1024)) {
+            mappedFileChannel.write(ByteBuffer.allocate(10));
+            otherChannel.write(ByteBuffer.allocate(10));
+
+            // each transfer calls the other channel, so would deadlock if it held its own lock whilst doing so.
+            transferConcurrently(
+                    () -> mappedFileChannel.transferTo(0, 1, otherChannel),
+                    () -> otherChannel.transferTo(0, 1, mappedFileChannel));
+            assertEquals(110, mappedFileChannel.getPersistedSize());
+            assertEquals(110, otherChannel.getPersistedSize());
+
+            mappedFileChannel.position(0);
+            otherChannel.position(0);
+            transferConcurrently(
+                    () -> mappedFileChannel.transferFrom(otherChannel, mappedFileChannel.getPersistedSize(), 1),
+                    () -> otherChannel.transferFrom(mappedFileChannel, otherChannel.getPersistedSize(), 1));
+            assertEquals(210, mappedFileChannel.getPersistedSize());
+            assertEquals(210, otherChannel.getPersistedSize());
+        } finally {
+            otherFile.delete();
+            MappedFileChannel.getMetadataFile(otherFile).delete();
+        }
+    }
+
+    private void transferConcurrently(Callable<Long> forwards, Callable<Long> backwards) throws InterruptedException {
+
+        AtomicBoolean failed = new AtomicBoolean(false);
+        List<Thread> threads = new ArrayList<>();
+        for (Callable<Long> transfer : List.of(forwards, backwards)) {
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 100; i++) {
+                        if (transfer.call() != 1) {
+                            failed.set(true);
+                        }
+                    }
+                } catch (Exception e) {
+                    failed.set(true);
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join(10000);
+            assertFalse(thread.isAlive());
+        }
+        assertFalse(failed.get());
+    }
+
+    @Test
+    public void testReadOnlyViews() throws IOException {
+
+        mappedFileChannel.write(ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}));
+
+        MappedByteBuffer view = mappedFileChannel.map(FileChannel.MapMode.READ_ONLY, 2, 4);
+        assertTrue(view.isReadOnly());
+        assertEquals(4, view.remaining());
+        assertEquals(3, view.get(0));
+        assertEquals(6, view.get(3));
+        assertThrows(ReadOnlyBufferException.class, () -> view.put(0, (byte) 0));
+
+        assertEquals(8, mappedFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, 8).remaining());
+        assertThrows(IndexOutOfBoundsException.class, () -> mappedFileChannel.map(FileChannel.MapMode.READ_ONLY, 4, 5));
+        assertThrows(IndexOutOfBoundsException.class, () -> mappedFileChannel.map(FileChannel.MapMode.READ_ONLY, -1, 2));
+        assertThrows(UnsupportedOperationException.class, () -> mappedFileChannel.map(FileChannel.MapMode.READ_WRITE, 0, 8));
+
+        // the view shows the current contents, even after the data it covered is cleared and rewritten.
+        mappedFileChannel.clear();
+        mappedFileChannel.write(ByteBuffer.wrap(new byte[]{9, 9, 9}));
+        assertEquals(9, view.get(0));
+
+        // the view stays usable after close, rather than the mapping being unmapped or truncated from under it.
+        mappedFileChannel.close();
+        assertEquals(1024, mappedFileChannel.getFileSize());
+        assertEquals(9, view.get(0));
+        assertThrows(ClosedChannelException.class, () -> mappedFileChannel.map(FileChannel.MapMode.READ_ONLY, 0, 1));
+    }
+
+    @Test
+    public void testConcurrentReads() throws Exception {
+
+        int recordCount = (int) mappedFileChannel.size() / 8;
+        AtomicBoolean failed = new AtomicBoolean(false);
+        AtomicInteger closedReaders = new AtomicInteger(0);
+
+        // readers check each record is either whole and correct, or not yet readable, until the channel is closed.
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread reader = new Thread(() -> {
+                ByteBuffer record = ByteBuffer.allocate(8);
+                try {
+                    for (int j = 0; ; j = (j + 1) % recordCount) {
+                        record.clear();
+                        int bytesRead = mappedFileChannel.read(record, j * 8L);
+                        if (bytesRead != -1 && (bytesRead != 8 || record.getLong(0) != j)) {
+                            failed.set(true);
+                        }
+                    }
+                } catch (ClosedChannelException e) {
+                    closedReaders.incrementAndGet();
+                } catch (IOException e) {
+                    failed.set(true);
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        for (int i = 0; i < recordCount; i++) {
+            mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, i));
+        }
+
+        mappedFileChannel.close();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertFalse(failed.get());
+        assertEquals(readers.size(), closedReaders.get());
+    }
+
+    @Test
+    public void testConcurrentWrites() throws Exception {
+
+        int recordCount = (int) mappedFileChannel.size() / 8;
+        int writerCount = 4;
+        AtomicBoolean failed = new AtomicBoolean(false);
+
+        // each writer appends its own numbered records, so the writes reserve in order but may complete out of order.
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < writerCount; i++) {
+            long writerId = i + 1;
+            Thread writer = new Thread(() -> {
+                try {
+                    for (int j = 0; j < recordCount / writerCount; j++) {
+                        if (mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, (writerId << 32) | j)) != 8) {
+                            failed.set(true);
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    failed.set(true);
+                }
+            });
+            writers.add(writer);
+        }
+
+        // meanwhile, the persisted size must only ever cover records that have been written.
+        Thread checker = new Thread(() -> {
+            try {
+                long persistedSize;
+                do {
+                    persistedSize = mappedFileChannel.getPersistedSize();
+                    ByteBuffer readBuffer = ByteBuffer.allocate((int) persistedSize);
+                    mappedFileChannel.read(readBuffer, 0);
+                    for (int j = 0; j < persistedSize / 8; j++) {
+                        if (readBuffer.getLong(j * 8) == 0) {
+                            failed.set(true);
+                        }
+                    }
+                } while (persistedSize < recordCount * 8L && !failed.get());
+            } catch (IOException | RuntimeException e) {
+                failed.set(true);
+            }
+        });
+
+        checker.start();
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        checker.join();
+
+        assertFalse(failed.get());
+        assertEquals(recordCount * 8L, mappedFileChannel.getPersistedSize());
+        assertEquals(recordCount * 8L, mappedFileChannel.position());
+
+        // each writer's records are all present, in the order it wrote them.
+        ByteBuffer readBuffer = ByteBuffer.allocate(recordCount * 8);
+        mappedFileChannel.read(readBuffer, 0);
+        long[] next = new long[writerCount + 1];
+        for (int j = 0; j < recordCount; j++) {
+            long record = readBuffer.getLong(j * 8);
+            assertEquals(next[(int) (record >>> 32)]++, record & 0xFFFFFFFFL);
+        }
+        assertThrows(IllegalArgumentException.class, () -> mappedFileChannel.write(ByteBuffer.allocate(8), 0));
+    }
+
+    @Test
+    public void testGapWrites() throws IOException {
+
+        assertEquals(8, mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, 1), 0));
+        assertEquals(8, mappedFileChannel.getPersistedSize());
+
+        // a write beyond the persisted size is covered by it at once, along with the gap before it.
+        assertEquals(8, mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, 2), 100));
+        assertEquals(108, mappedFileChannel.getPersistedSize());
+        ByteBuffer readBuffer = ByteBuffer.allocate(8);
+        assertEquals(8, mappedFileChannel.read(readBuffer, 100));
+        assertEquals(2, readBuffer.getLong(0));
+
+        // the gap can't be written once it's covered, but writes can continue after it.
+        assertThrows(IllegalArgumentException.class, () -> mappedFileChannel.write(ByteBuffer.allocate(8), 50));
+        assertEquals(8, mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, 3), 108));
+        assertEquals(116, mappedFileChannel.getPersistedSize());
+
+        mappedFileChannel.close();
+        mappedFileChannel = new MappedFileChannel(file, 1024);
+        assertEquals(116, mappedFileChannel.getPersistedSize());
+
+        // clear leaves the old data in place, but a gap write mustn't make it readable again.
+        mappedFileChannel.clear();
+        assertEquals(8, mappedFileChannel.write(ByteBuffer.allocate(8).putLong(0, 4), 200));
+        readBuffer = ByteBuffer.allocate(200);
+        assertEquals(200, mappedFileChannel.read(readBuffer, 0));
+        assertArrayEquals(new byte[200], readBuffer.array());
+    }
+
     @Test
     public void testSizes() throws IOException {
         assertEquals(1024, mappedFileChannel.size());
@@ -0,0 +1,145 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class MemorySegmentAppendOnlyLogTests {
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "test");
+
+    private static final int LENGTH = 4096;
+
+    @BeforeEach
+    public void setUp() {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    @AfterEach
+    public void tearDown() {
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    private List<Integer> values(MemorySegmentAppendOnlyLog log) {
+        List<Integer> values = new ArrayList<>();
+        log.iterator().forEachRemaining(byteBuffer -> values.add(byteBuffer.getInt(0)));
+        return values;
+    }
+
+    @ParameterizedTest
+    @ValueSource(booleans = {false, true})
+    public void testWriteAndRecover(boolean blockPadding) throws IOException {
+
+        List<Long> locations = new ArrayList<>();
+        List<Integer> expected = new ArrayList<>();
+
+        try (MemorySegmentAppendOnlyLog log = new MemorySegmentAppendOnlyLog(file, LENGTH, blockPadding)) {
+            assertEquals(LENGTH, log.getCapacity());
+            assertEquals(blockPadding, log.isEffectivelyPadded());
+
+            for (int i = 0; log.canAccept(100); i++) {
+                locations.add(log.putWithLocation(ByteBuffer.allocate(100).putInt(0, i)));
+                expected.add(i);
+            }
+            assertTrue(expected.size() > 1);
+            assertEquals(MemorySegmentAppendOnlyLog.ERROR_LOCATION, log.tryPutWithLocation(ByteBuffer.allocate(100)));
+            assertThrows(BufferOverflowException.class, () -> log.put(new byte[100]));
+
+            assertEquals(expected, values(log));
+            for (int i = 0; i < locations.size(); i++) {
+                assertEquals((int) expected.get(i), log.readRecordAt(locations.get(i)).getInt(0));
+            }
+            assertThrows(IllegalArgumentException.class, () -> log.readRecordAt(locations.get(0) + 1));
+
+            // only part of the log is checkpointed, so recovery must validate the rest.
+            log.reset();
+            log.put(ByteBuffer.allocate(4).putInt(0, -1));
+            log.checkpoint();
+            log.putAll(new ByteBuffer[]{ByteBuffer.allocate(4).putInt(0, -2), ByteBuffer.allocate(4).putInt(0, -3)});
+        }
+
+        try (MemorySegmentAppendOnlyLog log = new MemorySegmentAppendOnlyLog(file, LENGTH, !blockPadding)) {
+            // the persisted padding takes priority, and records from before the reset aren't recovered.
+            assertEquals(blockPadding, log.isEffectivelyPadded());
+            assertEquals(List.of(-1, -2, -3), values(log));
+            assertThrows(IllegalArgumentException.class, () -> log.readRecordAt(locations.get(locations.size() - 1)));
+
+            log.clear();
+            assertEquals(!blockPadding, log.isEffectivelyPadded());
+            assertFalse(log.iterator().hasNext());
+        }
+
+        try (MemorySegmentAppendOnlyLog log = new MemorySegmentAppendOnlyLog(file, LENGTH, blockPadding)) {
+            assertFalse(log.iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+
+        MemorySegmentAppendOnlyLog log = new MemorySegmentAppendOnlyLog(file, LENGTH, false);
+        log.put(ByteBuffer.allocate(4).putInt(0, 1));
+        log.put(ByteBuffer.allocate(4).putInt(0, 2));
+
+        Iterator<ByteBuffer> iter = log.iterator();
+        ByteBuffer view = iter.next();
+        ByteBuffer copy = log.copyingIterator().next();
+        assertEquals(1, view.getInt(0));
+        assertTrue(view.isReadOnly());
+
+        // views can be used for channel I/O, though java.util.zip rejects them, as they derive from a shared segment.
+        Pipe pipe = Pipe.open();
+        pipe.sink().write(view.duplicate());
+        ByteBuffer piped = ByteBuffer.allocate(4);
+        pipe.source().read(piped);
+        assertEquals(1, piped.getInt(0));
+        assertEquals(ChecksumUtil.checksum(0, copy), ChecksumUtil.checksumViaHeap(0, view));
+
+        Iterator<ByteBuffer> staleIter = log.iterator();
+        log.reset();
+        assertThrows(ConcurrentModificationException.class, staleIter::hasNext);
+        log.put(ByteBuffer.allocate(4).putInt(0, 3));
+
+        // the mapping is released at once, so views of it can't be used to read memory that's no longer ours.
+        log.close();
+        log.close();
+        assertThrows(IllegalStateException.class, () -> view.getInt(0));
+        assertThrows(IllegalStateException.class, () -> log.put(new byte[4]));
+        assertEquals(1, copy.getInt(0));
+
+        try (MemorySegmentAppendOnlyLog recoveredLog = new MemorySegmentAppendOnlyLog(file, LENGTH, false)) {
+            assertEquals(List.of(3), values(recoveredLog));
+        }
+    }
+}
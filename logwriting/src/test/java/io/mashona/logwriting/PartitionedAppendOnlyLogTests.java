@@ -0,0 +1,307 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import jdk.nio.mapmode.ExtendedMapMode;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import sun.misc.Unsafe;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class PartitionedAppendOnlyLogTests {
+
+    static Unsafe unsafe;
+
+    static {
+        try {
+            Field f = Unsafe.class.getDeclaredField("theUnsafe");
+            f.setAccessible(true);
+            unsafe = (Unsafe) f.get(null);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static File file = new File(System.getenv("PMEM_TEST_DIR"), "test");
+
+    private static final int LENGTH = 4096;
+
+    private static final AppendOnlyLogImplConfig LINEAR = new AppendOnlyLogImplConfig(false, true, false, false);
+    private static final AppendOnlyLogImplConfig RELAXED = new AppendOnlyLogImplConfig(false, false, false, false);
+
+    private FileChannel fileChannel;
+    private MappedByteBuffer mappedByteBuffer;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+
+        if (file.exists()) {
+            file.delete();
+        }
+
+        fileChannel = (FileChannel) Files
+                .newByteChannel(file.toPath(), EnumSet.of(
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.CREATE));
+
+        mappedByteBuffer = fileChannel.map(ExtendedMapMode.READ_WRITE_SYNC, 0, LENGTH);
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+
+        // https://bugs.openjdk.java.net/browse/JDK-4724038
+        unsafe.invokeCleaner(mappedByteBuffer);
+
+        fileChannel.close();
+
+        if (file.exists()) {
+            file.delete();
+        }
+    }
+
+    // writes happen in the order the calls are made, but each on a new Thread, so spread over the partitions.
+    private void putFromNewThread(AppendOnlyLog appendOnlyLog, byte value) throws InterruptedException {
+        Thread thread = new Thread(() -> appendOnlyLog.put(new byte[]{value}));
+        thread.start();
+        thread.join();
+    }
+
+    private List<Byte> contents(AppendOnlyLog appendOnlyLog) {
+        List<Byte> result = new ArrayList<>();
+        for (ByteBuffer record : appendOnlyLog) {
+            assertEquals(1, record.remaining());
+            result.add(record.get(record.position()));
+        }
+        return result;
+    }
+
+    @Test
+    public void testInvalidPartitionCount() {
+
+        assertThrows(IllegalArgumentException.class, () -> new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 0, LINEAR));
+        assertThrows(IllegalArgumentException.class, () -> new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 16, LINEAR));
+    }
+
+    @Test
+    public void testSequencedMerge() throws InterruptedException {
+
+        PartitionedAppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 3, LINEAR);
+        assertEquals(3, appendOnlyLog.getEffectivePartitionCount());
+        assertTrue(appendOnlyLog.isEffectiveLinearOrdering());
+
+        for (byte i = 1; i <= 7; i++) {
+            putFromNewThread(appendOnlyLog, i);
+        }
+        assertEquals(List.of((byte) 1, (byte) 2, (byte) 3, (byte) 4, (byte) 5, (byte) 6, (byte) 7), contents(appendOnlyLog));
+
+        // recovery resumes the sequence after the highest number found
+        appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 3, LINEAR);
+        appendOnlyLog.put(new byte[]{8});
+        putFromNewThread(appendOnlyLog, (byte) 9);
+        assertEquals(List.of((byte) 1, (byte) 2, (byte) 3, (byte) 4, (byte) 5, (byte) 6, (byte) 7, (byte) 8, (byte) 9),
+                contents(appendOnlyLog));
+
+        ByteBuffer copy = appendOnlyLog.copyingIterator().next();
+        assertEquals(1, copy.remaining());
+        assertEquals(1, copy.get(0));
+    }
+
+    @Test
+    public void testUnsequenced() throws InterruptedException {
+
+        AppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, RELAXED);
+        assertFalse(appendOnlyLog.isEffectiveLinearOrdering());
+
+        for (byte i = 1; i <= 4; i++) {
+            putFromNewThread(appendOnlyLog, i);
+        }
+
+        // each partition in turn
+        assertEquals(List.of((byte) 1, (byte) 3, (byte) 2, (byte) 4), contents(appendOnlyLog));
+    }
+
+    @Test
+    public void testPutAll() throws InterruptedException {
+
+        AppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, LINEAR);
+
+        appendOnlyLog.put(new byte[]{1});
+        ByteBuffer[] srcs = new ByteBuffer[]{ByteBuffer.wrap(new byte[]{2}), ByteBuffer.wrap(new byte[]{3})};
+        Thread thread = new Thread(() -> appendOnlyLog.putAll(srcs));
+        thread.start();
+        thread.join();
+        assertEquals(0, srcs[0].remaining());
+        assertEquals(0, srcs[1].remaining());
+        appendOnlyLog.put(new byte[]{4});
+
+        assertEquals(List.of((byte) 1, (byte) 2, (byte) 3, (byte) 4), contents(appendOnlyLog));
+    }
+
+    @Test
+    public void testOverflowToOtherPartitions() {
+
+        AppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, LINEAR);
+
+        // each partition has room for just two of these. The writing Thread moves on once its home is full.
+        byte[] data = new byte[800];
+        for (int i = 0; i < 4; i++) {
+            assertTrue(appendOnlyLog.canAccept(data.length));
+            appendOnlyLog.put(data);
+        }
+
+        assertFalse(appendOnlyLog.canAccept(data.length));
+        assertFalse(appendOnlyLog.tryPut(data));
+        assertThrows(BufferOverflowException.class, () -> appendOnlyLog.put(data));
+
+        int count = 0;
+        for (ByteBuffer record : appendOnlyLog) {
+            assertEquals(data.length, record.remaining());
+            count++;
+        }
+        assertEquals(4, count);
+
+        appendOnlyLog.clear();
+        assertFalse(appendOnlyLog.iterator().hasNext());
+        assertTrue(appendOnlyLog.tryPut(data));
+    }
+
+    @Test
+    public void testPartitionCountRetainedUntilClear() throws InterruptedException {
+
+        PartitionedAppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, LINEAR);
+        putFromNewThread(appendOnlyLog, (byte) 1);
+        putFromNewThread(appendOnlyLog, (byte) 2);
+
+        appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 4, LINEAR);
+        assertEquals(2, appendOnlyLog.getEffectivePartitionCount());
+        assertEquals(4, appendOnlyLog.getRequestedPartitionCount());
+        assertEquals(List.of((byte) 1, (byte) 2), contents(appendOnlyLog));
+
+        appendOnlyLog.clear();
+        assertEquals(4, appendOnlyLog.getEffectivePartitionCount());
+        assertTrue(contents(appendOnlyLog).isEmpty());
+
+        appendOnlyLog.put(new byte[]{3});
+        appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 4, LINEAR);
+        assertEquals(4, appendOnlyLog.getEffectivePartitionCount());
+        assertEquals(List.of((byte) 3), contents(appendOnlyLog));
+    }
+
+    @Test
+    public void testRelayoutAfterCommitWordClear() throws InterruptedException {
+
+        // clearing a commit word partition leaves its header and records in place, just of an earlier generation.
+        AppendOnlyLogImplConfig commitWords = AppendOnlyLogImplConfig.builder().linearOrdering(true).commitWords(true).build();
+        PartitionedAppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, commitWords);
+        byte[] data = new byte[16];
+        Arrays.fill(data, (byte) 0x5A);
+        appendOnlyLog.put(data);
+        Thread thread = new Thread(() -> appendOnlyLog.put(data));
+        thread.start();
+        thread.join();
+
+        // so a new layout mustn't adopt the old headers it starts on, but have each new partition start afresh.
+        PartitionedAppendOnlyLog relaidAppendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 4, commitWords);
+        relaidAppendOnlyLog.clear();
+        assertEquals(4, relaidAppendOnlyLog.getEffectivePartitionCount());
+        for (int i = 0; i < LENGTH; i++) {
+            assertNotEquals((byte) 0x5A, mappedByteBuffer.get(i), "stale data at " + i);
+        }
+        assertFalse(relaidAppendOnlyLog.iterator().hasNext());
+    }
+
+    @Test
+    public void testHomePartitionWrap() throws Exception {
+
+        PartitionedAppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 3, LINEAR);
+        Field f = PartitionedAppendOnlyLog.class.getDeclaredField("nextHomePartition");
+        f.setAccessible(true);
+        ((AtomicInteger) f.get(appendOnlyLog)).set(Integer.MAX_VALUE);
+
+        // the second Thread's home is assigned after the counter wraps to negative.
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        for (byte i = 1; i <= 2; i++) {
+            byte value = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    appendOnlyLog.put(new byte[]{value});
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            thread.start();
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(List.of((byte) 1, (byte) 2), contents(appendOnlyLog));
+    }
+
+    @Test
+    public void testClearDuringWrites() throws InterruptedException {
+
+        PartitionedAppendOnlyLog appendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 2, LINEAR);
+        appendOnlyLog.put(new byte[]{1});
+        PartitionedAppendOnlyLog relaidAppendOnlyLog = new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 4, LINEAR);
+
+        // writers racing the clear that divides the log anew must each end up in one layout or the other, never both.
+        AtomicBoolean stop = new AtomicBoolean(false);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        relaidAppendOnlyLog.tryPut(new byte[]{2});
+                    }
+                } catch (Throwable t) {
+                    failure.set(t);
+                }
+            });
+            threads[i].start();
+        }
+
+        relaidAppendOnlyLog.clear();
+        stop.set(true);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(4, relaidAppendOnlyLog.getEffectivePartitionCount());
+        List<Byte> contents = contents(relaidAppendOnlyLog);
+        assertFalse(contents.contains((byte) 1));
+        assertEquals(contents, contents(new PartitionedAppendOnlyLog(mappedByteBuffer, 0, LENGTH, 4, LINEAR)));
+    }
+}
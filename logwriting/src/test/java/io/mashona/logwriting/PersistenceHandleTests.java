@@ -28,7 +28,7 @@ import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.EnumSet;
 
-import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.*;
 
 @WithBytemanFrom(source = ExecutionTracer.class)
 public class PersistenceHandleTests {
@@ -102,4 +102,62 @@ public class PersistenceHandleTests {
         mappedByteBuffer.put(384, new byte[256]);
         persistenceHandle.duplicate(128, 384).persist(128, 256);
     }
+
+    @Test
+    public void testDeferredPersistence() {
+
+        PersistenceHandle persistenceHandle = new PersistenceHandle(mappedByteBuffer, 128, 768);
+        assertFalse(persistenceHandle.isDeferring());
+        persistenceHandle.drain();
+
+        PersistenceHandle deferringHandle = persistenceHandle.deferring();
+        assertTrue(deferringHandle.isDeferring());
+
+        // ranges sharing a cache line are merged, as are those abutting, but not those further apart.
+        mappedByteBuffer.put(128, new byte[512]);
+        deferringHandle.persist(0, 10);
+        deferringHandle.persist(10, 10);
+        assertEquals(1, deferringHandle.getDirtyRangeCount());
+        deferringHandle.persist(256, 64);
+        assertEquals(2, deferringHandle.getDirtyRangeCount());
+        deferringHandle.persist(128, 64);
+        assertEquals(3, deferringHandle.getDirtyRangeCount());
+        deferringHandle.persist(64, 64);
+        assertEquals(2, deferringHandle.getDirtyRangeCount());
+        deferringHandle.persist(100, 200);
+        assertEquals(1, deferringHandle.getDirtyRangeCount());
+        assertEquals(1, deferringHandle.getPendingForceCount());
+
+        deferringHandle.drain();
+        assertEquals(0, deferringHandle.getDirtyRangeCount());
+
+        // enough separate ranges to need more space to record them, then filling the gaps between them.
+        for(int i = 0; i < 6; i++) {
+            mappedByteBuffer.put(128 + i * 128 + 1, (byte) 1);
+            deferringHandle.persist(i * 128 + 1, 1);
+        }
+        assertEquals(6, deferringHandle.getDirtyRangeCount());
+        // but they're close enough together to be persisted with a single force.
+        assertEquals(1, deferringHandle.getPendingForceCount());
+        for(int i = 5; i >= 0; i--) {
+            mappedByteBuffer.put(128 + i * 128 + 64, (byte) 1);
+            deferringHandle.persist(i * 128 + 64, 1);
+        }
+        assertEquals(1, deferringHandle.getDirtyRangeCount());
+        deferringHandle.drain();
+
+        // ranges further apart are each persisted with a force of their own.
+        // Those close together share one, writing back the clean line between them.
+        ExecutionTracer.INSTANCE.allowFlushingOfCleanLines = true;
+        for(int position : new int[]{0, 128, 704}) {
+            mappedByteBuffer.put(128 + position, (byte) 2);
+            deferringHandle.persist(position, 1);
+        }
+        assertEquals(3, deferringHandle.getDirtyRangeCount());
+        assertEquals(2, deferringHandle.getPendingForceCount());
+        deferringHandle.drain();
+        assertEquals(0, deferringHandle.getPendingForceCount());
+
+        assertThrows(IllegalArgumentException.class, () -> deferringHandle.persist(0, 1024));
+    }
 }
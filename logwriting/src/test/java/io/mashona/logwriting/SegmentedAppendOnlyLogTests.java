@@ -0,0 +1,173 @@
+/*
+ * Copyright Red Hat
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.mashona.logwriting;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+@WithBytemanFrom(source = ExecutionTracer.class)
+public class SegmentedAppendOnlyLogTests {
+
+    private static File directory = new File(System.getenv("PMEM_TEST_DIR"), "testsegments");
+
+    private static final int SEGMENT_LENGTH = 1024;
+
+    private static final AppendOnlyLogImplConfig LINEAR = new AppendOnlyLogImplConfig(false, true, false, false);
+
+    private void deleteDirectory() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    @BeforeEach
+    public void setUp() {
+        deleteDirectory();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        deleteDirectory();
+    }
+
+    @Test
+    public void testRollOverAndRetention() throws IOException {
+
+        List<Long> locations = new ArrayList<>();
+
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 3, LINEAR)) {
+
+            for (int i = 0; i < 200; i++) {
+                locations.add(log.putWithLocation(ByteBuffer.wrap(new byte[]{(byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0})));
+            }
+
+            // the retained segments plus the spare
+            assertEquals(3, log.getSegmentCount());
+            assertEquals(4, directory.listFiles().length);
+
+            // the oldest records have been retired, but those retained are in order and end with the latest.
+            List<Byte> values = new ArrayList<>();
+            log.iterator().forEachRemaining(byteBuffer -> values.add(byteBuffer.get(0)));
+            assertTrue(values.size() < 200);
+            for (int i = 0; i < values.size(); i++) {
+                assertEquals((byte) (200 - values.size() + i), values.get(i));
+            }
+
+            assertEquals((byte) 199, log.readRecordAt(locations.get(199)).get(0));
+            assertThrows(IllegalArgumentException.class, () -> log.readRecordAt(locations.get(0)));
+
+            assertFalse(log.tryPut(new byte[SEGMENT_LENGTH]));
+            assertThrows(BufferOverflowException.class, () -> log.put(new byte[SEGMENT_LENGTH]));
+
+            log.retireSegmentsBefore(locations.get(199));
+            assertEquals(1, log.getSegmentCount());
+            assertEquals((byte) 199, log.readRecordAt(locations.get(199)).get(0));
+        }
+    }
+
+    @Test
+    public void testRecovery() throws IOException {
+
+        List<Byte> expected = new ArrayList<>();
+
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 0, LINEAR)) {
+            for (int i = 0; i < 100; i++) {
+                log.put(new byte[]{(byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            }
+            // a batch is written to a single segment
+            log.putAll(new ByteBuffer[]{ByteBuffer.wrap(new byte[]{100}), ByteBuffer.wrap(new byte[SEGMENT_LENGTH / 2])});
+            log.iterator().forEachRemaining(byteBuffer -> expected.add(byteBuffer.get(0)));
+            assertEquals(102, expected.size());
+        }
+
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 0, LINEAR)) {
+            List<Byte> actual = new ArrayList<>();
+            log.iterator().forEachRemaining(byteBuffer -> actual.add(byteBuffer.get(0)));
+            assertEquals(expected, actual);
+
+            int segmentCount = log.getSegmentCount();
+            log.put(new byte[]{101});
+            assertEquals(segmentCount, log.getSegmentCount());
+
+            log.clear();
+            assertEquals(1, log.getSegmentCount());
+            assertFalse(log.iterator().hasNext());
+        }
+    }
+
+    @Test
+    public void testRecoveryEnforcesRetention() throws IOException {
+
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 0, LINEAR)) {
+            for (int i = 0; i < 200; i++) {
+                log.put(new byte[]{(byte) i, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+            }
+            assertTrue(log.getSegmentCount() > 2);
+        }
+
+        // a lower limit on reopening retires the oldest segments, just as it would have when writing.
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 2, LINEAR)) {
+            assertEquals(2, log.getSegmentCount());
+            assertEquals(3, directory.listFiles().length);
+
+            List<Byte> values = new ArrayList<>();
+            log.iterator().forEachRemaining(byteBuffer -> values.add(byteBuffer.get(0)));
+            assertEquals((byte) 199, values.get(values.size() - 1));
+        }
+    }
+
+    @Test
+    public void testSingleSegmentRetention() throws Exception {
+
+        // each rollover retires the segment just left, which other writers may still be writing to.
+        try (SegmentedAppendOnlyLog log = new SegmentedAppendOnlyLog(directory, SEGMENT_LENGTH, 1, LINEAR)) {
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(() -> {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            log.put(new byte[]{1, 0, 0, 0, 0, 0, 0, 0, 0, 0});
+                        }
+                    } catch (Throwable t) {
+                        failure.set(t);
+                    }
+                });
+                threads[i].start();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            assertNull(failure.get());
+            assertEquals(1, log.getSegmentCount());
+            assertEquals(2, directory.listFiles().length);
+            assertTrue(log.iterator().hasNext());
+        }
+    }
+}
@@ -12,8 +12,9 @@
  */
 package io.mashona.pobj.transaction;
 
-import io.mashona.logwriting.AppendOnlyLog;
 import io.mashona.logwriting.AppendOnlyLogImpl;
+import io.mashona.logwriting.AppendOnlyLogReservation;
+import io.mashona.logwriting.AppendOnlyLogWithLocation;
 import io.mashona.pobj.transaction.events.*;
 import jdk.nio.mapmode.ExtendedMapMode;
 import sun.misc.Unsafe;
@@ -57,10 +58,13 @@ public class TransactionStore implements Iterable<TransactionEvent> {
     private static final OutcomeEventPersistence OUTCOME_EVENT_PERSISTENCE = new OutcomeEventPersistence();
     private static final DeallocateEventPersistence DELETE_EVENT_PERSISTENCE = new DeallocateEventPersistence();
 
+    // events are serialized directly into the log, in space reserved large enough for any of them.
+    private static final int RECORD_SIZE = 50;
+
     private final File file;
     private final FileChannel fileChannel;
     private final MappedByteBuffer mappedByteBuffer;
-    private final AppendOnlyLog appendOnlyLog;
+    private final AppendOnlyLogWithLocation appendOnlyLog;
 
     /**
      * Create a new transaction persistence facility, backed by a memory-mapped region of the given file.
@@ -96,31 +100,47 @@ public class TransactionStore implements Iterable<TransactionEvent> {
     }
 
     protected void persistMemoryAllocation(MallocEvent mallocEvent) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(50);
-        MALLOC_EVENT_PERSISTENCE.writeInto(mallocEvent, byteBuffer);
-        byteBuffer.rewind();
-        appendOnlyLog.put(byteBuffer);
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(RECORD_SIZE);
+        try {
+            MALLOC_EVENT_PERSISTENCE.writeInto(mallocEvent, reservation.buffer());
+        } catch (RuntimeException e) {
+            reservation.abort();
+            throw e;
+        }
+        reservation.commit();
     }
 
     protected void persistMemoryDelete(DeallocateEvent deallocateEvent) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(50);
-        DELETE_EVENT_PERSISTENCE.writeInto(deallocateEvent, byteBuffer);
-        byteBuffer.rewind();
-        appendOnlyLog.put(byteBuffer);
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(RECORD_SIZE);
+        try {
+            DELETE_EVENT_PERSISTENCE.writeInto(deallocateEvent, reservation.buffer());
+        } catch (RuntimeException e) {
+            reservation.abort();
+            throw e;
+        }
+        reservation.commit();
     }
 
     protected void persistBeforeWrite(BeforeWriteEvent beforeWriteEvent) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(50);
-        BEFORE_WRITE_EVENT_PERSISTENCE.writeInto(beforeWriteEvent, byteBuffer);
-        byteBuffer.rewind();
-        appendOnlyLog.put(byteBuffer);
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(RECORD_SIZE);
+        try {
+            BEFORE_WRITE_EVENT_PERSISTENCE.writeInto(beforeWriteEvent, reservation.buffer());
+        } catch (RuntimeException e) {
+            reservation.abort();
+            throw e;
+        }
+        reservation.commit();
     }
 
     protected void persistOutcomeEvent(OutcomeEvent outcomeTxEntry) {
-        ByteBuffer byteBuffer = ByteBuffer.allocate(50);
-        OUTCOME_EVENT_PERSISTENCE.writeInto(outcomeTxEntry, byteBuffer);
-        byteBuffer.rewind();
-        appendOnlyLog.put(byteBuffer);
+        AppendOnlyLogReservation reservation = appendOnlyLog.reserve(RECORD_SIZE);
+        try {
+            OUTCOME_EVENT_PERSISTENCE.writeInto(outcomeTxEntry, reservation.buffer());
+        } catch (RuntimeException e) {
+            reservation.abort();
+            throw e;
+        }
+        reservation.commit();
     }
 
     @Override